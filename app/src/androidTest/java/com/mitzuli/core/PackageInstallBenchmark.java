@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.mitzuli.core;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+import android.util.Base64;
+import android.util.Log;
+
+import com.mitzuli.core.mt.MtPackage;
+import com.mitzuli.util.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+
+// Installs a package with many entries from a local HTTP server, and compares saving its digests in a single batch
+// with saving them one commit at a time, as it was done before. Run it with: ./gradlew connectedAndroidTest
+public class PackageInstallBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "PackageInstallBenchmark";
+    private static final int ENTRIES = 2000;
+    private static final int ENTRY_SIZE = 1024;
+
+    private File baseDir;
+    private SharedPreferences prefs;
+    private PackageServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        baseDir = new File(getContext().getFilesDir(), TAG);
+        if (baseDir.exists()) IOUtils.deleteAll(baseDir);
+        prefs = getContext().getSharedPreferences(TAG, Context.MODE_PRIVATE);
+        prefs.edit().clear().commit();
+        server = new PackageServer(createPackage());
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.close();
+        prefs.edit().clear().commit();
+        IOUtils.deleteAll(baseDir);
+        super.tearDown();
+    }
+
+    public void testInstall() throws Exception {
+        final String manifest = "<manifest version=\"1\"><mt src=\"spa\" trg=\"eus\">" +
+                "<offline type=\"apertium\" code=\"es-eu\" version=\"1\" signature=\"\" url=\"" + server.getUrl() + "\"/>" +
+                "</mt></manifest>";
+        final PackageManager manager = new PackageManager(new File(baseDir, "files"), new File(baseDir, "cache"), new File(baseDir, "safe"),
+                prefs, new ByteArrayInputStream(manifest.getBytes("UTF-8")), false, null);
+        final MtPackage mtPackage = manager.getMtPackages().get(0);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final Exception[] exception = new Exception[1];
+        final long start = System.nanoTime();
+        mtPackage.install(null, new Package.InstallCallback() {
+            @Override public void onInstall() {
+                done.countDown();
+            }
+        }, new Package.ExceptionCallback() {
+            @Override public void onException(Exception e) {
+                exception[0] = e;
+                done.countDown();
+            }
+        });
+        assertTrue("Installation timed out", done.await(5, TimeUnit.MINUTES));
+        if (exception[0] != null) throw exception[0];
+        final long installTime = System.nanoTime() - start;
+
+        final long verifyStart = System.nanoTime();
+        final File dir = mtPackage.getOfflineServiceProvider().dir;
+        for (int i = 0; i < ENTRIES; i++) assertTrue(mtPackage.verifyFileIntegrity(new File(dir, entryName(i))));
+        final long verifyTime = System.nanoTime() - verifyStart;
+
+        Log.i(TAG, "Installed " + ENTRIES + " entries in " + installTime / 1000000 + " ms, verified them in " + verifyTime / 1000000 + " ms");
+    }
+
+    public void testDigestCommits() {
+        final Map<String, String> digests = new HashMap<String, String>();
+        for (int i = 0; i < ENTRIES; i++) digests.put(entryName(i), Base64.encodeToString(new byte[32], Base64.DEFAULT).trim());
+
+        final KeyValueSaver oneByOne = new KeyValueSaver(prefs, "one");
+        long start = System.nanoTime();
+        for (Map.Entry<String, String> entry : digests.entrySet()) oneByOne.saveString(entry.getKey(), entry.getValue());
+        final long oneByOneTime = System.nanoTime() - start;
+
+        final KeyValueSaver batch = new KeyValueSaver(prefs, "batch");
+        start = System.nanoTime();
+        batch.begin();
+        try {
+            batch.removeAll();
+            batch.saveStrings(digests);
+            batch.commit();
+        } finally {
+            batch.abort();
+        }
+        final long batchTime = System.nanoTime() - start;
+
+        for (String key : digests.keySet()) assertEquals(digests.get(key), batch.getString(key));
+        Log.i(TAG, "Saved " + ENTRIES + " digests in " + oneByOneTime / 1000000 + " ms one by one, " + batchTime / 1000000 + " ms in a batch");
+    }
+
+    private static String entryName(int i) {
+        return "data/" + (i % 20) + "/" + i + ".bin";
+    }
+
+    private static byte[] createPackage() throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final ZipOutputStream zos = new ZipOutputStream(bos);
+        final byte[] data = new byte[ENTRY_SIZE];
+        for (int i = 0; i < ENTRIES; i++) {
+            for (int j = 0; j < data.length; j++) data[j] = (byte) (i * 31 + j);
+            zos.putNextEntry(new ZipEntry(entryName(i)));
+            zos.write(data);
+            zos.closeEntry();
+        }
+        zos.close();
+        return bos.toByteArray();
+    }
+
+
+    // Serves the package to every request with a plain 200 response
+    private static class PackageServer extends Thread {
+
+        private final byte[] data;
+        private final ServerSocket socket;
+
+        public PackageServer(byte[] data) throws IOException {
+            this.data = data;
+            this.socket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+            setDaemon(true);
+        }
+
+        public String getUrl() {
+            return "http://127.0.0.1:" + socket.getLocalPort() + "/package.zip";
+        }
+
+        public void close() throws IOException {
+            socket.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket client = socket.accept();
+                    try {
+                        final InputStream is = client.getInputStream();
+                        int c, last = 0, newlines = 0;
+                        while (newlines < 2 && (c = is.read()) != -1) { // Skip the request until the empty line
+                            if (c == '\n') newlines = last == '\n' ? 2 : 1;
+                            if (c != '\r') last = c;
+                        }
+                        final OutputStream os = client.getOutputStream();
+                        os.write(("HTTP/1.1 200 OK\r\nContent-Length: " + data.length + "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+                        os.write(data);
+                        os.flush();
+                    } finally {
+                        client.close();
+                    }
+                }
+            } catch (IOException e) {
+                // The server was closed
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.mitzuli.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+
+// Downloads a file over HTTP, resuming a previous partial download of it if there is one. Only the rest of the file is
+// requested then, with a Range request that only applies if the file on the server is still the one identified by the
+// validator (its ETag or Last-Modified) given. If the server sends the whole file instead, the download starts again.
+class HttpDownload {
+
+    private static final int HTTP_REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+
+    public static interface Listener {
+        // Called when the file starts being downloaded from the beginning, with its validator (null if there is none),
+        // which has to be kept to resume the download later
+        public void onStart(String validator);
+        // Called as the download progresses, with totalBytes -1 if unknown. Throw InterruptedException to cancel it
+        public void onProgress(long downloadedBytes, long totalBytes) throws InterruptedException;
+    }
+
+    private final URL url;
+    private final File file;
+    private final int bufferSize;
+    private final Listener listener;
+
+    public HttpDownload(URL url, File file, int bufferSize, Listener listener) {
+        this.url = url;
+        this.file = file;
+        this.bufferSize = bufferSize;
+        this.listener = listener;
+    }
+
+    // Downloads the file, resuming what there is of it if the validator of the previous download is given
+    public void download(String validator) throws IOException, InterruptedException {
+        if (validator == null) file.delete(); // We can't tell if the server still has the same file, so start again
+        if (!download(file.length(), validator) && !download(0, null)) throw new IOException("Download failed: unexpected partial response");
+    }
+
+    // The Range request only applies if the file on the server is still the one whose validator is given
+    private static HttpURLConnection openConnection(URL url, long offset, String validator) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (offset > 0) {
+            connection.setRequestProperty("Range", "bytes=" + offset + "-");
+            connection.setRequestProperty("If-Range", validator);
+        }
+        return connection;
+    }
+
+    // The first byte of a partial response, or -1 if the Content-Range header is missing or malformed
+    private static long getContentRangeStart(HttpURLConnection connection) {
+        final String range = connection.getHeaderField("Content-Range");
+        if (range == null || !range.startsWith("bytes ") || range.indexOf('-') < 0) return -1;
+        try {
+            return Long.parseLong(range.substring("bytes ".length(), range.indexOf('-')).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Returns false if the server didn't resume the download where it was left, so it has to start again
+    private boolean download(long offset, String validator) throws IOException, InterruptedException {
+        HttpURLConnection connection = openConnection(url, offset, validator);
+        int responseCode = connection.getResponseCode();
+        while (responseCode == HttpURLConnection.HTTP_MOVED_PERM || responseCode == HttpURLConnection.HTTP_MOVED_TEMP) {
+            connection = openConnection(new URL(connection.getURL(), connection.getHeaderField("location")), offset, validator);
+            responseCode = connection.getResponseCode();
+        }
+        if (offset > 0 && responseCode == HTTP_REQUESTED_RANGE_NOT_SATISFIABLE) { // Already downloaded, if the file has that size
+            connection.disconnect();
+            return ("bytes */" + offset).equals(connection.getHeaderField("Content-Range"));
+        } else if (responseCode == HttpURLConnection.HTTP_OK) { // The server doesn't support resuming or the file changed, so start again
+            offset = 0;
+        } else if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+            if (getContentRangeStart(connection) != offset) {
+                connection.disconnect();
+                return false;
+            }
+        } else {
+            throw new IOException("Download failed: " + responseCode + " " + connection.getResponseMessage());
+        }
+        if (offset == 0) { // Remember what we are downloading, so that we can resume it later (weak ETags can't be used for that)
+            final String etag = connection.getHeaderField("ETag");
+            listener.onStart(etag != null && !etag.startsWith("W/") ? etag : connection.getHeaderField("Last-Modified"));
+        }
+        final long totalBytes = connection.getContentLength() < 0 ? -1 : offset + connection.getContentLength();
+        long downloadedBytes = offset;
+        final byte[] buffer = new byte[bufferSize];
+        final InputStream is = connection.getInputStream();
+        final OutputStream os = new FileOutputStream(file, offset > 0);
+        try {
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                os.write(buffer, 0, count);
+                downloadedBytes += count;
+                listener.onProgress(downloadedBytes, totalBytes);
+            }
+        } finally {
+            os.close();
+            is.close();
+        }
+        if (totalBytes > 0 && downloadedBytes != totalBytes) throw new IOException("Download incomplete");
+        return true;
+    }
+
+}
@@ -20,7 +20,7 @@ package com.mitzuli.core;
 
 import android.content.SharedPreferences;
 
-import java.util.regex.Pattern;
+import java.util.Map;
 
 
 public class KeyValueSaver {
@@ -33,7 +33,8 @@ public class KeyValueSaver {
 
     private final SharedPreferences prefs;
     private final String prefix;
-    private final Pattern keyPattern;
+    private SharedPreferences.Editor batch; // Changes are added to this editor between begin() and commit()
+    private Thread batchThread; // The thread that called begin(). Changes from other threads are saved right away
 
 
     public KeyValueSaver(SharedPreferences prefs) {
@@ -44,14 +45,12 @@ public class KeyValueSaver {
         checkKey(prefix);
         this.prefs = prefs;
         this.prefix = prefix + ":";
-        this.keyPattern = Pattern.compile(Pattern.quote(prefix) + "[^:]+:[^:]*");
     }
 
     public KeyValueSaver(KeyValueSaver saver, String prefix) {
         checkPrefix(prefix);
         this.prefs = saver.prefs;
         this.prefix = saver.prefix + prefix;
-        this.keyPattern = Pattern.compile(Pattern.quote(prefix) + "[^:]+:[^:]*");
     }
 
     public boolean containsBoolean(String key) {
@@ -69,12 +68,12 @@ public class KeyValueSaver {
 
     public void saveBoolean(String key, boolean value) {
         checkKey(key);
-        prefs.edit().putBoolean(prefix + TYPE_BOOLEAN + key, value).commit();
+        finish(edit().putBoolean(prefix + TYPE_BOOLEAN + key, value));
     }
 
     public void removeBoolean(String key) {
         checkKey(key);
-        prefs.edit().remove(prefix + TYPE_BOOLEAN + key).commit();
+        finish(edit().remove(prefix + TYPE_BOOLEAN + key));
     }
 
     public boolean containsInt(String key) {
@@ -92,12 +91,12 @@ public class KeyValueSaver {
 
     public void saveInt(String key, int value) {
         checkKey(key);
-        prefs.edit().putInt(prefix + TYPE_INT + key, value).commit();
+        finish(edit().putInt(prefix + TYPE_INT + key, value));
     }
 
     public void removeInt(String key) {
         checkKey(key);
-        prefs.edit().remove(prefix + TYPE_INT + key).commit();
+        finish(edit().remove(prefix + TYPE_INT + key));
     }
 
     public boolean containsLong(String key) {
@@ -115,12 +114,12 @@ public class KeyValueSaver {
 
     public void saveLong(String key, long value) {
         checkKey(key);
-        prefs.edit().putLong(prefix + TYPE_LONG + key, value).commit();
+        finish(edit().putLong(prefix + TYPE_LONG + key, value));
     }
 
     public void removeLong(String key) {
         checkKey(key);
-        prefs.edit().remove(prefix + TYPE_LONG + key).commit();
+        finish(edit().remove(prefix + TYPE_LONG + key));
     }
 
     public boolean containsFloat(String key) {
@@ -138,12 +137,12 @@ public class KeyValueSaver {
 
     public void saveFloat(String key, float value) {
         checkKey(key);
-        prefs.edit().putFloat(prefix + TYPE_FLOAT + key, value).commit();
+        finish(edit().putFloat(prefix + TYPE_FLOAT + key, value));
     }
 
     public void removeFloat(String key) {
         checkKey(key);
-        prefs.edit().remove(prefix + TYPE_FLOAT + key).commit();
+        finish(edit().remove(prefix + TYPE_FLOAT + key));
     }
 
     public boolean containsString(String key) {
@@ -161,18 +160,66 @@ public class KeyValueSaver {
 
     public void saveString(String key, String value) {
         checkKey(key);
-        prefs.edit().putString(prefix + TYPE_STRING + key, value).commit();
+        finish(edit().putString(prefix + TYPE_STRING + key, value));
     }
 
     public void removeString(String key) {
         checkKey(key);
-        prefs.edit().remove(prefix + TYPE_STRING + key).commit();
+        finish(edit().remove(prefix + TYPE_STRING + key));
+    }
+
+    public void saveStrings(Map<String, String> values) {
+        final SharedPreferences.Editor editor = edit();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            checkKey(entry.getKey());
+            editor.putString(prefix + TYPE_STRING + entry.getKey(), entry.getValue());
+        }
+        finish(editor);
     }
 
     public void removeAll() {
-        final SharedPreferences.Editor editor = prefs.edit();
-        for (String key : prefs.getAll().keySet()) if (keyPattern.matcher(key).matches()) editor.remove(key);
-        editor.commit();
+        final SharedPreferences.Editor editor = edit();
+        for (String key : prefs.getAll().keySet()) if (isOwnKey(key)) editor.remove(key);
+        finish(editor);
+    }
+
+    // Starts a batch: the following changes made by this thread are not saved until commit() is called, and then they
+    // are all saved at once, which is much faster than saving them one by one. Note that they can't be read back before
+    // that. Always call abort() in a finally block after commit(), so that a failure doesn't leave the batch open.
+    public synchronized void begin() {
+        if (batch != null) throw new IllegalStateException("Batch already started");
+        batch = prefs.edit();
+        batchThread = Thread.currentThread();
+    }
+
+    public synchronized void commit() {
+        if (batch == null || batchThread != Thread.currentThread()) throw new IllegalStateException("No batch started");
+        batch.commit();
+        batch = null;
+        batchThread = null;
+    }
+
+    // Discards the changes made since begin(). Does nothing if this thread has no batch open (e.g. it was committed)
+    public synchronized void abort() {
+        if (batchThread != Thread.currentThread()) return;
+        batch = null;
+        batchThread = null;
+    }
+
+    private synchronized SharedPreferences.Editor edit() {
+        return batch != null && batchThread == Thread.currentThread() ? batch : prefs.edit();
+    }
+
+    private synchronized void finish(SharedPreferences.Editor editor) {
+        if (editor != batch) editor.commit();
+    }
+
+    // Whether the given preference key belongs to this saver (and not to a saver derived from it)
+    private boolean isOwnKey(String key) {
+        if (!key.startsWith(prefix) || key.length() < prefix.length() + 2) return false;
+        final String type = key.substring(prefix.length(), prefix.length() + 2);
+        final boolean knownType = type.equals(TYPE_BOOLEAN) || type.equals(TYPE_INT) || type.equals(TYPE_LONG) || type.equals(TYPE_FLOAT) || type.equals(TYPE_STRING);
+        return knownType && key.indexOf(':', prefix.length() + 2) == -1;
     }
 
 
@@ -19,18 +19,17 @@
 package com.mitzuli.core;
 
 import android.os.AsyncTask;
+import android.os.Build;
 import android.util.Base64;
 
 import com.mitzuli.util.IOUtils;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.URL;
 import java.security.DigestInputStream;
 import java.security.DigestOutputStream;
@@ -42,8 +41,10 @@ import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -58,9 +59,12 @@ public abstract class Package {
     private static final String KEY_INSTALLED_TYPE = "installed-type";
     private static final String KEY_INSTALLED_CODE = "installed-code";
     private static final String KEY_INSTALLED_VERSION = "installed-version";
+    private static final String KEY_DOWNLOAD_VALIDATOR = "download-validator"; // ETag or Last-Modified of the partial download
     private static final String PREFIX_DIGEST_SAVER = "digest";
     private static final String DIR_CACHE = "cache";
     private static final String DIR_CACHED_PACKAGE = "package";
+    private static final int BUFFER_SIZE = 65536;
+    static final String SUFFIX_DOWNLOAD = ".download"; // Partial downloads are kept with this suffix to resume them later
 
     private final PackageManager manager;
     private final File packageDir, cacheDir, cachedPackageDir, safeCacheDir, tmpDir;
@@ -200,9 +204,15 @@ public abstract class Package {
             }
         }
         if (installedServiceProvider == null && cachedServiceProvider == null) {
-            saver.removeString(KEY_INSTALLED_TYPE);
-            saver.removeString(KEY_INSTALLED_CODE);
-            saver.removeLong(KEY_INSTALLED_VERSION);
+            saver.begin();
+            try {
+                saver.removeString(KEY_INSTALLED_TYPE);
+                saver.removeString(KEY_INSTALLED_CODE);
+                saver.removeLong(KEY_INSTALLED_VERSION);
+                saver.commit();
+            } finally {
+                saver.abort();
+            }
             digestSaver.removeAll();
             if (packageDir.exists()) IOUtils.deleteAll(packageDir);
             if (cachedPackageDir.exists()) IOUtils.deleteAll(cachedPackageDir);
@@ -251,7 +261,7 @@ public abstract class Package {
             if (progressCallback  != null) installTask.progressCallbacks.add(progressCallback);
             if (installCallback   != null) installTask.installCallbacks.add(installCallback);
             if (exceptionCallback != null) installTask.exceptionCallbacks.add(exceptionCallback);
-            installTask.execute((Void)null);
+            execute(installTask);
         }
     }
 
@@ -265,10 +275,16 @@ public abstract class Package {
             if (progressCallback  != null) installTask.progressCallbacks.add(progressCallback);
             if (installCallback   != null) installTask.installCallbacks.add(installCallback);
             if (exceptionCallback != null) installTask.exceptionCallbacks.add(exceptionCallback);
-            installTask.execute((Void)null);
+            execute(installTask);
         }
     }
 
+    private static void execute(InstallTask task) {
+        // Since Honeycomb tasks run one at a time by default, but several packages can be installed in parallel
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void)null);
+        else task.execute((Void)null);
+    }
+
     public synchronized void update(final ProgressCallback progressCallback, final UpdateCallback updateCallback, final ExceptionCallback exceptionCallback) {
         // Updating a package is simply reinstalling it (but note that we do not check if it was already installed!)
         final InstallCallback installCallback = updateCallback == null ? null : new InstallCallback() {
@@ -287,10 +303,17 @@ public abstract class Package {
             }
             if (installedServiceProvider != null) { // If the package is installed remove it
                 installedServiceProvider = null;
+                onOfflineServiceProviderChanged();
                 if (packageDir.exists()) IOUtils.deleteAll(packageDir);
-                saver.removeString(KEY_INSTALLED_TYPE);
-                saver.removeString(KEY_INSTALLED_CODE);
-                saver.removeLong(KEY_INSTALLED_VERSION);
+                saver.begin();
+                try {
+                    saver.removeString(KEY_INSTALLED_TYPE);
+                    saver.removeString(KEY_INSTALLED_CODE);
+                    saver.removeLong(KEY_INSTALLED_VERSION);
+                    saver.commit();
+                } finally {
+                    saver.abort();
+                }
             }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
@@ -315,12 +338,19 @@ public abstract class Package {
             }
             if (cacheDir.exists()) IOUtils.deleteAll(cacheDir);
             if (safeCacheDir.exists()) IOUtils.deleteAll(safeCacheDir);
+            onOfflineServiceProviderChanged(); // Anything loaded used the caches we have just removed
             if (cachedServiceProvider != null) { // If the package is installed in the cache remove it
                 cachedServiceProvider = null;
                 if (cachedPackageDir.exists()) IOUtils.deleteAll(packageDir);
-                saver.removeString(KEY_INSTALLED_TYPE);
-                saver.removeString(KEY_INSTALLED_CODE);
-                saver.removeLong(KEY_INSTALLED_VERSION);
+                saver.begin();
+                try {
+                    saver.removeString(KEY_INSTALLED_TYPE);
+                    saver.removeString(KEY_INSTALLED_CODE);
+                    saver.removeLong(KEY_INSTALLED_VERSION);
+                    saver.commit();
+                } finally {
+                    saver.abort();
+                }
             }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
@@ -336,16 +366,37 @@ public abstract class Package {
     }
 
     protected boolean verifyFileIntegrity(File f) throws IOException, NoSuchAlgorithmException {
-        if (getOfflineServiceProvider() == null) return false;
+        final OfflineServiceProvider provider = getOfflineServiceProvider();
+        if (provider == null) return false;
         final MessageDigest digest = MessageDigest.getInstance(ALGORITHM_MESSAGE_DIGEST);
-        final byte[] buffer = new byte[2048];
-        final DigestInputStream is = new DigestInputStream(new BufferedInputStream(new FileInputStream(f)), digest);
-        while (is.read(buffer) != -1) {}
-        final String computedDigest = Base64.encodeToString(digest.digest(), Base64.DEFAULT).trim();
-        final String savedDigest = digestSaver.getString(getOfflineServiceProvider().dir.toURI().relativize(f.toURI()).getPath());
-        return computedDigest.equals(savedDigest);
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final DigestInputStream is = new DigestInputStream(new FileInputStream(f), digest);
+        try {
+            while (is.read(buffer) != -1) {}
+        } finally {
+            is.close();
+        }
+        // The digests are kept in the private preferences, as the package itself can be in the external storage
+        final String savedDigest = digestSaver.getString(provider.dir.toURI().relativize(f.toURI()).getPath());
+        return savedDigest != null && MessageDigest.isEqual(digest.digest(), Base64.decode(savedDigest, Base64.DEFAULT));
+    }
+
+    // Replaces the saved digests with the given ones, all in a single commit
+    private void saveDigests(Map<String, String> digests) {
+        digestSaver.begin();
+        try {
+            digestSaver.removeAll();
+            digestSaver.saveStrings(digests);
+            digestSaver.commit();
+        } finally {
+            digestSaver.abort();
+        }
     }
 
+    // Called whenever the offline service provider is installed, updated or uninstalled, or the caches are cleaned up,
+    // with the lock of this package held, so that subclasses can release anything they loaded from the previous one
+    protected void onOfflineServiceProviderChanged() {}
+
     protected long getLastUsage() {
         return saver.getLong(KEY_LAST_USAGE, 0L);
     }
@@ -373,46 +424,66 @@ public abstract class Package {
             this.exceptionCallbacks = new ArrayList<ExceptionCallback>();
         }
 
+        // Downloads the package to the given file, resuming the previous download if it was interrupted
+        private void download(File file) throws Exception {
+            final File[] downloads = tmpDir.getParentFile() == null ? null : tmpDir.getParentFile().listFiles();
+            if (downloads != null) for (File f : downloads) { // Remove downloads of other versions
+                if (f.getName().startsWith(tmpDir.getName() + ".") && f.getName().endsWith(SUFFIX_DOWNLOAD) && !f.equals(file)) f.delete();
+            }
+            new HttpDownload(new URL(remotePackage.url), file, BUFFER_SIZE, new HttpDownload.Listener() {
+                private int progress = 5;
+                @Override public void onStart(String validator) {
+                    if (validator != null) saver.saveString(KEY_DOWNLOAD_VALIDATOR, validator);
+                    else saver.removeString(KEY_DOWNLOAD_VALIDATOR);
+                }
+                @Override public void onProgress(long downloadedBytes, long totalBytes) throws InterruptedException {
+                    if (isCancelled()) throw new InterruptedException();
+                    if (totalBytes > 0 && 5+(int)(45*downloadedBytes/totalBytes) > progress) publishProgress(progress = 5+(int)(45*downloadedBytes/totalBytes));
+                }
+            }).download(saver.getString(KEY_DOWNLOAD_VALIDATOR));
+        }
+
         @Override
         protected Exception doInBackground(Void... args) {
             ZipInputStream zis = null;
+            File download = null;
             try {
                 publishProgress(5);
                 if (remotePackage == null)
                     throw new IllegalStateException("There is no package available");
-                HttpURLConnection connection = (HttpURLConnection) new URL(remotePackage.url).openConnection();
-                int responseCode = connection.getResponseCode();
-                while (responseCode == HttpURLConnection.HTTP_MOVED_PERM || responseCode == HttpURLConnection.HTTP_MOVED_TEMP) {
-                    connection = (HttpURLConnection) new URL(connection.getURL(), connection.getHeaderField("location")).openConnection();
-                    responseCode = connection.getResponseCode();
-                }
-                final int totalBytes = connection.getContentLength();
-                final byte[] buffer = new byte[2048];
-                final BufferedInputStream bis = new BufferedInputStream(connection.getInputStream());
+                tmpDir.getParentFile().mkdirs();
+                download = new File(tmpDir.getParentFile(), tmpDir.getName() + "." + remotePackage.version + SUFFIX_DOWNLOAD);
+                download(download);
+                publishProgress(50);
+
+                // Extract the package. Should anything go wrong the download is removed, as it could be corrupt
+                final long totalBytes = download.length();
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                final BufferedInputStream bis = new BufferedInputStream(new FileInputStream(download), BUFFER_SIZE);
                 final SignatureVerifierInputStream verifier = publicKey == null ? null : new SignatureVerifierInputStream(bis, ALGORITHM_SIGNATURE, publicKey, remotePackage.signature);
                 final ProcessedByteCountingInputStream is = new ProcessedByteCountingInputStream(verifier == null ? bis : verifier);
                 zis = new ZipInputStream(is);
-                int progress = 10;
-                publishProgress(progress);
+                final Map<String, String> digests = new HashMap<String, String>();
+                int progress = 50;
                 ZipEntry entry;
                 while ((entry = zis.getNextEntry()) != null) {
                     if (isCancelled()) throw new InterruptedException();
-                    if (10+80*(int)is.getProcessedByteCount()/totalBytes > progress) publishProgress(progress = 10+80*(int)is.getProcessedByteCount()/totalBytes);
+                    if (50+(int)(40*is.getProcessedByteCount()/totalBytes) > progress) publishProgress(progress = 50+(int)(40*is.getProcessedByteCount()/totalBytes));
                     if (entry.isDirectory()) continue;
 
                     final File destFile = new File(tmpDir, entry.getName());
                     destFile.getParentFile().mkdirs();
 
                     final MessageDigest digester = MessageDigest.getInstance(ALGORITHM_MESSAGE_DIGEST);
-                    final OutputStream os = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(destFile), buffer.length), digester);
+                    final OutputStream os = new DigestOutputStream(new FileOutputStream(destFile), digester);
                     try {
                         int count;
                         while ((count = zis.read(buffer, 0, buffer.length)) != -1) {
                             os.write(buffer, 0, count);
                             if (isCancelled()) throw new InterruptedException();
-                            if (10+80*(int)is.getProcessedByteCount()/totalBytes > progress) publishProgress(progress = 10+80*(int)is.getProcessedByteCount()/totalBytes);
+                            if (50+(int)(40*is.getProcessedByteCount()/totalBytes) > progress) publishProgress(progress = 50+(int)(40*is.getProcessedByteCount()/totalBytes));
                         }
-                        digestSaver.saveString(entry.getName(), Base64.encodeToString(digester.digest(), Base64.DEFAULT).trim());
+                        digests.put(entry.getName(), Base64.encodeToString(digester.digest(), Base64.DEFAULT).trim());
                     } finally {
                         os.close();
                     }
@@ -426,30 +497,47 @@ public abstract class Package {
                     // Remove previous installations
                     installedServiceProvider = null;
                     cachedServiceProvider = null;
+                    onOfflineServiceProviderChanged();
                     if (packageDir.exists()) IOUtils.deleteAll(packageDir);
                     if (cachedPackageDir.exists()) IOUtils.deleteAll(cachedPackageDir);
-                    saver.removeString(KEY_INSTALLED_TYPE);
-                    saver.removeString(KEY_INSTALLED_CODE);
-                    saver.removeLong(KEY_INSTALLED_VERSION);
+                    saver.begin();
+                    try {
+                        saver.removeString(KEY_INSTALLED_TYPE);
+                        saver.removeString(KEY_INSTALLED_CODE);
+                        saver.removeLong(KEY_INSTALLED_VERSION);
+                        saver.commit();
+                    } finally {
+                        saver.abort();
+                    }
+                    saveDigests(digests);
                     publishProgress(95);
 
                     // Install the downloaded package
                     final File installDir = installToCache ? cachedPackageDir : packageDir;
                     installDir.getParentFile().mkdirs();
                     if (!tmpDir.renameTo(installDir)) throw new Exception("Rename failed");
-                    saver.saveString(KEY_INSTALLED_TYPE, remotePackage.type);
-                    saver.saveString(KEY_INSTALLED_CODE, remotePackage.code);
-                    saver.saveLong(KEY_INSTALLED_VERSION, remotePackage.version);
-                    final OfflineServiceProvider provider = new OfflineServiceProvider(remotePackage.type, remotePackage.code, installDir, remotePackage.version);
-                    if (installToCache) cachedServiceProvider = provider;
-                    else installedServiceProvider = provider;
-
-                    markUsage();
-                    manager.cleanUpCache();
+                    saver.begin();
+                    try {
+                        saver.saveString(KEY_INSTALLED_TYPE, remotePackage.type);
+                        saver.saveString(KEY_INSTALLED_CODE, remotePackage.code);
+                        saver.saveLong(KEY_INSTALLED_VERSION, remotePackage.version);
+                        final OfflineServiceProvider provider = new OfflineServiceProvider(remotePackage.type, remotePackage.code, installDir, remotePackage.version);
+                        if (installToCache) cachedServiceProvider = provider;
+                        else installedServiceProvider = provider;
+
+                        markUsage();
+                        saver.commit();
+                    } finally {
+                        saver.abort();
+                    }
                 }
+                manager.cleanUpCache(); // Without our lock, as it takes the locks of other packages
+                download.delete();
+                saver.removeString(KEY_DOWNLOAD_VALIDATOR);
                 publishProgress(100);
                 return null;
             } catch (Exception e) {
+                if (zis != null && download != null && !(e instanceof InterruptedException)) download.delete();
                 return e;
             } finally {
                 if (zis != null) try {zis.close();} catch (IOException e){}
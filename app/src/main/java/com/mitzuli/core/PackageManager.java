@@ -132,7 +132,7 @@ public class PackageManager { // TODO Using packages contained by this manager w
         this.cacheDir = cacheDir;
         this.safeCacheDir = safeCacheDir;
         this.savedManifest = new File(baseDir, "manifest");
-        if (this.tmpDir.exists()) IOUtils.deleteAll(this.tmpDir);
+        if (this.tmpDir.exists()) deleteAllButDownloads(this.tmpDir);
         this.saver = new KeyValueSaver(prefs);
         this.useBetaPackages = useBetaPackages;
         this.publicKey = publicKey;
@@ -150,6 +150,16 @@ public class PackageManager { // TODO Using packages contained by this manager w
         cleanUpCache();
     }
 
+    // Partial downloads are kept so that they can be resumed
+    private static void deleteAllButDownloads(File f) {
+        if (f.isDirectory()) {
+            for (File child : f.listFiles()) deleteAllButDownloads(child);
+            f.delete(); // Only succeeds if it is empty
+        } else if (!f.getName().endsWith(Package.SUFFIX_DOWNLOAD)) {
+            f.delete();
+        }
+    }
+
     public void updateManifest(String url) throws IOException, XmlPullParserException {
         final long localVersion = saver.getLong(KEY_MANIFEST_VERSION, 0L);
         final Manifest manifest = readManifest(new URL(url +
@@ -422,50 +432,91 @@ public class PackageManager { // TODO Using packages contained by this manager w
         public void onManifestsUpdate();
     }
 
-    public static void installPackages(List<Package> packages, Package.ProgressCallback progressCallback, Package.InstallCallback installCallback, Package.ExceptionCallback exceptionCallback) {
-        installPackages(packages, 0, progressCallback, installCallback, exceptionCallback);
+    private static int maxParallelInstalls = 2;
+
+    // Sets how many packages can be downloaded and installed at the same time by installPackages and updatePackages
+    public static void setMaxParallelInstalls(int maxParallelInstalls) {
+        PackageManager.maxParallelInstalls = Math.max(1, maxParallelInstalls);
     }
 
-    private static void installPackages(final List<Package> packages, final int index, final Package.ProgressCallback progressCallback, final Package.InstallCallback installationCallback, final Package.ExceptionCallback exceptionCallback) {
-        if (index == packages.size()) {
-            installationCallback.onInstall();
-        } else {
-            packages.get(index).install(
-                    new Package.ProgressCallback() {
-                        @Override public void onProgress(int progress) {
-                            progressCallback.onProgress((index*100+progress)/packages.size());
-                        }
-                    },
-                    new Package.InstallCallback() {
-                        @Override public void onInstall() {
-                            installPackages(packages, index+1, progressCallback, installationCallback, exceptionCallback);
-                        }
-                    },
-                    exceptionCallback);
-        }
+    public static void installPackages(List<Package> packages, Package.ProgressCallback progressCallback, Package.InstallCallback installCallback, Package.ExceptionCallback exceptionCallback) {
+        new ParallelInstallation(packages, false, progressCallback, installCallback, exceptionCallback).start();
     }
 
-    public static void updatePackages(List<Package> packages, Package.ProgressCallback progressCallback, Package.UpdateCallback updateCallback, Package.ExceptionCallback exceptionCallback) {
-        updatePackages(packages, 0, progressCallback, updateCallback, exceptionCallback);
+    public static void updatePackages(List<Package> packages, Package.ProgressCallback progressCallback, final Package.UpdateCallback updateCallback, Package.ExceptionCallback exceptionCallback) {
+        final Package.InstallCallback installCallback = new Package.InstallCallback() {
+            @Override public void onInstall() {
+                updateCallback.onUpdate();
+            }
+        };
+        new ParallelInstallation(packages, true, progressCallback, installCallback, exceptionCallback).start();
     }
 
-    private static void updatePackages(final List<Package> packages, final int index, final Package.ProgressCallback progressCallback, final Package.UpdateCallback updateCallback, final Package.ExceptionCallback exceptionCallback) {
-        if (index == packages.size()) {
-            updateCallback.onUpdate();
-        } else {
-            packages.get(index).update(
-                    new Package.ProgressCallback() {
-                        @Override public void onProgress(int progress) {
-                            progressCallback.onProgress((index*100+progress)/packages.size());
-                        }
-                    },
-                    new Package.UpdateCallback() {
-                        @Override public void onUpdate() {
-                            updatePackages(packages, index+1, progressCallback, updateCallback, exceptionCallback);
-                        }
-                    },
-                    exceptionCallback);
+    // Installs (or updates) several packages, up to maxParallelInstalls at a time. All the callbacks are called from
+    // the UI thread, so no synchronization is needed. The exception callback is only called for the first failure.
+    private static class ParallelInstallation {
+
+        private final List<Package> packages;
+        private final boolean update;
+        private final Package.ProgressCallback progressCallback;
+        private final Package.InstallCallback installCallback;
+        private final Package.ExceptionCallback exceptionCallback;
+        private final int[] progress;
+        private int next = 0, installed = 0;
+        private boolean failed = false;
+
+        public ParallelInstallation(List<Package> packages, boolean update, Package.ProgressCallback progressCallback, Package.InstallCallback installCallback, Package.ExceptionCallback exceptionCallback) {
+            this.packages = packages;
+            this.update = update;
+            this.progressCallback = progressCallback;
+            this.installCallback = installCallback;
+            this.exceptionCallback = exceptionCallback;
+            this.progress = new int[packages.size()];
         }
+
+        public void start() {
+            if (packages.isEmpty()) installCallback.onInstall();
+            while (next < packages.size() && next < maxParallelInstalls) installNext();
+        }
+
+        private void installNext() {
+            final int index = next++;
+            final Package.ProgressCallback packageProgressCallback = new Package.ProgressCallback() {
+                @Override public void onProgress(int p) {
+                    progress[index] = p;
+                    int sum = 0;
+                    for (int packageProgress : progress) sum += packageProgress;
+                    progressCallback.onProgress(sum/packages.size());
+                }
+            };
+            final Package.ExceptionCallback packageExceptionCallback = new Package.ExceptionCallback() {
+                @Override public void onException(Exception exception) {
+                    if (!failed) exceptionCallback.onException(exception);
+                    failed = true;
+                }
+            };
+            if (update) {
+                packages.get(index).update(packageProgressCallback, new Package.UpdateCallback() {
+                    @Override public void onUpdate() {
+                        onPackageInstalled();
+                    }
+                }, packageExceptionCallback);
+            } else {
+                packages.get(index).install(packageProgressCallback, new Package.InstallCallback() {
+                    @Override public void onInstall() {
+                        onPackageInstalled();
+                    }
+                }, packageExceptionCallback);
+            }
+        }
+
+        private void onPackageInstalled() {
+            installed++;
+            if (failed) return;
+            if (installed == packages.size()) installCallback.onInstall();
+            else if (next < packages.size()) installNext();
+        }
+
     }
 
 
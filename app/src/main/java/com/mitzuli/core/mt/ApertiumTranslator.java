@@ -19,6 +19,9 @@
 
 package com.mitzuli.core.mt;
 
+import org.apertium.TranslationEngine;
+import org.apertium.utils.IOContext;
+
 import java.io.File;
 
 
@@ -27,6 +30,7 @@ public class ApertiumTranslator implements Translator {
     private final String code;
     private final File packageDir, cacheDir;
     private final ClassLoader classLoader;
+    private TranslationEngine engine;
 
     public ApertiumTranslator(String code, File packageDir, File cacheDir, ClassLoader classLoader) {
         this.code = code;
@@ -35,15 +39,18 @@ public class ApertiumTranslator implements Translator {
         this.classLoader = classLoader;
     }
 
+    private synchronized TranslationEngine getEngine() throws Exception {
+        if (engine == null) {
+            final IOContext context = IOContext.forBasePathAndClassLoader(packageDir.getAbsolutePath(), classLoader).withCacheDir(cacheDir);
+            engine = new TranslationEngine(context, code);
+            engine.setDisplayMarks(true);
+        }
+        return engine;
+    }
+
     @Override
     public String translate(String text) throws Exception {
-        synchronized (org.apertium.Translator.class) {
-            org.apertium.Translator.setDisplayMarks(true);
-            org.apertium.Translator.setBase(packageDir.getAbsolutePath(), classLoader);
-            org.apertium.Translator.setMode(code);
-            org.apertium.utils.IOUtils.cacheDir = cacheDir;
-            return org.apertium.Translator.translate(text);
-        }
+        return getEngine().translate(text);
     }
 
 }
@@ -49,6 +49,15 @@ public class MtPackage extends Package { // TODO Installing, updating or uninsta
     private final Language src;
     private final Language trg;
 
+    // The offline translator is kept loaded between translations, together with the provider it was loaded from
+    // and the size and modification time of its verified classes.jar, so that it is only verified again if changed.
+    // These are guarded by their own lock rather than the package's, which the UI thread takes to query the package
+    private final Object apertiumLock = new Object();
+    private ApertiumTranslator apertiumTranslator;
+    private OfflineServiceProvider apertiumProvider;
+    private long apertiumJarLength, apertiumJarLastModified;
+    private int apertiumGeneration; // Increased whenever the offline service provider changes
+
     public static interface TranslationCallback {
         public void onTranslationDone(String translation);
     }
@@ -96,6 +105,40 @@ public class MtPackage extends Package { // TODO Installing, updating or uninsta
         return trg;
     }
 
+    private ApertiumTranslator getApertiumTranslator(OfflineServiceProvider offline) throws Exception {
+        final File jar = new File(offline.dir, "classes.jar");
+        final long length = jar.length(), lastModified = jar.lastModified();
+        final int generation;
+        synchronized (apertiumLock) {
+            if (apertiumTranslator != null && apertiumProvider == offline && length == apertiumJarLength && lastModified == apertiumJarLastModified) {
+                return apertiumTranslator;
+            }
+            generation = apertiumGeneration;
+        }
+        // Verifying and loading the translator takes long, so it is done without holding any lock
+        if (!verifyFileIntegrity(jar)) throw new Exception("Package integrity verification failed");
+        final ClassLoader classLoader = new DexClassLoader(jar.getAbsolutePath(), getSafeCacheDir().getAbsolutePath(), null, getClass().getClassLoader());
+        final ApertiumTranslator translator = new ApertiumTranslator(offline.code, offline.dir, getCacheDir(), classLoader);
+        synchronized (apertiumLock) {
+            if (generation == apertiumGeneration) { // Unless the provider changed meanwhile, keep it for the next translations
+                apertiumTranslator = translator;
+                apertiumProvider = offline;
+                apertiumJarLength = length;
+                apertiumJarLastModified = lastModified;
+            }
+        }
+        return translator;
+    }
+
+    @Override
+    protected void onOfflineServiceProviderChanged() {
+        synchronized (apertiumLock) {
+            apertiumTranslator = null;
+            apertiumProvider = null;
+            apertiumGeneration++;
+        }
+    }
+
     public void translate(String text, TranslationCallback translationCallback, ExceptionCallback exceptionCallback, boolean markUnknown, boolean htmlOutput) {
         markUsage();
         new TranslationTask(translationCallback, exceptionCallback, markUnknown, htmlOutput).execute(text);
@@ -171,10 +214,7 @@ public class MtPackage extends Package { // TODO Installing, updating or uninsta
             } else {
                 try {
                     if (offline.type.equals(OFFLINE_APERTIUM)) {
-                        final File jar = new File(offline.dir, "classes.jar");
-                        if (!verifyFileIntegrity(jar)) throw new Exception("Package integrity verification failed");
-                        final ClassLoader classLoader = new DexClassLoader(jar.getAbsolutePath(), getSafeCacheDir().getAbsolutePath(), null, getClass().getClassLoader());
-                        return format(new ApertiumTranslator(offline.code, offline.dir, getCacheDir(), classLoader).translate(text[0]));
+                        return format(getApertiumTranslator(offline).translate(text[0]));
                     } else {
                         throw new Exception("Unknown engine: " + offline.type);
                     }
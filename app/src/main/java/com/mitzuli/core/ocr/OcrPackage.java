@@ -19,6 +19,7 @@
 package com.mitzuli.core.ocr;
 
 import android.os.AsyncTask;
+import android.os.Build;
 
 import com.mitzuli.Image;
 import com.mitzuli.core.KeyValueSaver;
@@ -36,6 +37,11 @@ public class OcrPackage extends Package { // TODO Installing, updating or uninst
 
     private final Language language;
 
+    // The offline recognizer is kept between images, together with the provider it was created for, so that its
+    // engines don't need to load the language data again
+    private TesseractTextRecognizer tesseractRecognizer;
+    private OfflineServiceProvider tesseractProvider;
+
     public static interface OcrCallback {
         public void onTextRecognized(String text);
     }
@@ -72,7 +78,26 @@ public class OcrPackage extends Package { // TODO Installing, updating or uninst
 
     public void recognizeText(Image image, OcrCallback ocrCallback, ExceptionCallback exceptionCallback) {
         markUsage();
-        new OcrTask(ocrCallback, exceptionCallback).execute(image);
+        final OcrTask task = new OcrTask(ocrCallback, exceptionCallback);
+        // Since Honeycomb tasks run one at a time by default, but several images can be recognized in parallel
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, image);
+        else task.execute(image);
+    }
+
+    private synchronized TesseractTextRecognizer getTesseractRecognizer(OfflineServiceProvider offline) {
+        if (tesseractRecognizer == null || tesseractProvider != offline) {
+            if (tesseractRecognizer != null) tesseractRecognizer.close();
+            tesseractRecognizer = new TesseractTextRecognizer(offline.code, offline.dir);
+            tesseractProvider = offline;
+        }
+        return tesseractRecognizer;
+    }
+
+    @Override
+    protected synchronized void onOfflineServiceProviderChanged() {
+        if (tesseractRecognizer != null) tesseractRecognizer.close();
+        tesseractRecognizer = null;
+        tesseractProvider = null;
     }
 
 
@@ -105,7 +130,7 @@ public class OcrPackage extends Package { // TODO Installing, updating or uninst
             } else {
                 try {
                     if (offline.type.equals(OFFLINE_TESSERACT)) {
-                        return new TesseractTextRecognizer(offline.code, offline.dir).recognizeText(image[0]);
+                        return getTesseractRecognizer(offline).recognizeText(image[0]);
                     } else {
                         throw new Exception("Unknown engine: " + offline.type);
                     }
@@ -31,6 +31,7 @@ import java.io.File;
 import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.LinkedList;
 
 
 public class TesseractTextRecognizer implements TextRecognizer {
@@ -42,10 +43,68 @@ public class TesseractTextRecognizer implements TextRecognizer {
     private final String code;
     private final File packageDir;
 
+    // Initialized engines are kept for the next images, so that the language data is only loaded once per engine
+    private final int maxEngines;
+    private final LinkedList<TessBaseAPI> idleEngines = new LinkedList<TessBaseAPI>();
+    private int engineCount; // Engines created and not ended yet, either idle or in use
+    private boolean closed;
+
 
     public TesseractTextRecognizer(String code, File packageDir) {
+        this(code, packageDir, Runtime.getRuntime().availableProcessors());
+    }
+
+    public TesseractTextRecognizer(String code, File packageDir, int maxEngines) {
         this.code = code;
         this.packageDir = packageDir;
+        this.maxEngines = Math.max(1, maxEngines);
+    }
+
+    private TessBaseAPI acquireEngine() throws Exception {
+        synchronized (this) {
+            while (idleEngines.isEmpty() && engineCount >= maxEngines && !closed) wait();
+            if (closed) throw new IllegalStateException("Text recognizer closed");
+            if (!idleEngines.isEmpty()) return idleEngines.removeFirst();
+            engineCount++;
+        }
+        // Initialize the new engine without holding the lock, as it takes a while
+        final TessBaseAPI tesseract = new TessBaseAPI();
+        boolean initialized = false;
+        try {
+            initialized = tesseract.init(packageDir.getAbsolutePath(), code);
+        } finally {
+            if (!initialized) {
+                tesseract.end();
+                synchronized (this) {
+                    engineCount--;
+                    notifyAll();
+                }
+            }
+        }
+        if (!initialized) throw new Exception("Tesseract init failed.");
+        return tesseract;
+    }
+
+    private void releaseEngine(TessBaseAPI tesseract, boolean reusable) {
+        if (reusable) tesseract.clear();
+        synchronized (this) {
+            if (reusable && !closed) {
+                idleEngines.addFirst(tesseract);
+            } else {
+                tesseract.end();
+                engineCount--;
+            }
+            notifyAll();
+        }
+    }
+
+    // Releases the idle engines, and those in use as soon as they finish. The recognizer can't be used anymore.
+    public synchronized void close() {
+        closed = true;
+        for (TessBaseAPI tesseract : idleEngines) tesseract.end();
+        engineCount -= idleEngines.size();
+        idleEngines.clear();
+        notifyAll();
     }
 
     @Override
@@ -54,15 +113,27 @@ public class TesseractTextRecognizer implements TextRecognizer {
         final File debugDir = DEBUG ? new File(new File(Environment.getExternalStorageDirectory(), "mitzuli_ocr"), TIMESTAMP.format(new Date())) : null;
         if (DEBUG) debugDir.mkdirs();
 
-        final TessBaseAPI tesseract = new TessBaseAPI();
-        if (!tesseract.init(packageDir.getAbsolutePath(), code)) throw new Exception("Tesseract init failed.");
         final Image preprocessedImage = OcrPreprocessor.preprocess(image, debugDir);
         final Pix pix = preprocessedImage.toGrayscalePix();
         preprocessedImage.recycle();
-        tesseract.setImage(pix);
-        pix.recycle();
 
-        final String text = tesseract.getUTF8Text();
+        final String text;
+        final TessBaseAPI tesseract;
+        try {
+            tesseract = acquireEngine();
+        } catch (Exception e) {
+            pix.recycle();
+            throw e;
+        }
+        boolean reusable = false;
+        try {
+            tesseract.setImage(pix);
+            pix.recycle();
+            text = tesseract.getUTF8Text();
+            reusable = true;
+        } finally {
+            releaseEngine(tesseract, reusable);
+        }
         final StringBuilder sb = new StringBuilder();
         boolean lastEmpty = false;
         for (String s : text.split("\n")) {
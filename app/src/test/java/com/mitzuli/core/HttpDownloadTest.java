@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2015 Mikel Artetxe <artetxem@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.mitzuli.core;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+
+// Runs HttpDownload against a local server that can answer Range requests with partial content or ignore them
+public class HttpDownloadTest {
+
+    private static final String ETAG = "\"v1\"";
+
+    private final byte[] data = new byte[100000];
+    private HttpServer server;
+    private URL url;
+    private File file;
+    private boolean supportsRange;
+    private int partialStart = -1; // If not -1, partial responses start here instead of where they were asked to
+    private final List<Integer> responseCodes = new ArrayList<Integer>();
+    private final List<String> validators = new ArrayList<String>();
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (i * 7 + i / 256);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/package.zip", new HttpHandler() {
+            @Override public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/package.zip");
+        file = File.createTempFile("package", ".download");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        file.delete();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        final String range = exchange.getRequestHeaders().getFirst("Range");
+        final String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        int start = 0;
+        if (supportsRange && range != null && ETAG.equals(ifRange)) start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+        exchange.getResponseHeaders().set("ETag", ETAG);
+        if (start >= data.length) {
+            exchange.getResponseHeaders().set("Content-Range", "bytes */" + data.length);
+            respond(exchange, 416, 0);
+        } else if (start > 0) {
+            if (partialStart != -1) start = partialStart;
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (data.length - 1) + "/" + data.length);
+            respond(exchange, 206, start);
+        } else {
+            respond(exchange, 200, 0);
+        }
+    }
+
+    private void respond(HttpExchange exchange, int code, int start) throws IOException {
+        synchronized (responseCodes) {
+            responseCodes.add(code);
+        }
+        final int length = code == 416 ? 0 : data.length - start;
+        exchange.sendResponseHeaders(code, length == 0 ? -1 : length);
+        final OutputStream os = exchange.getResponseBody();
+        os.write(data, start, length);
+        os.close();
+    }
+
+    private void writePartialFile(int length, byte fill) throws IOException {
+        final byte[] partial = Arrays.copyOf(data, length);
+        if (fill != 0) Arrays.fill(partial, fill);
+        final OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(partial);
+        } finally {
+            os.close();
+        }
+    }
+
+    private byte[] readFile() throws IOException {
+        final byte[] content = new byte[(int) file.length()];
+        final InputStream is = new FileInputStream(file);
+        try {
+            int offset = 0, count;
+            while (offset < content.length && (count = is.read(content, offset, content.length - offset)) != -1) offset += count;
+        } finally {
+            is.close();
+        }
+        return content;
+    }
+
+    private void download(String validator) throws Exception {
+        new HttpDownload(url, file, 4096, new HttpDownload.Listener() {
+            @Override public void onStart(String validator) {
+                validators.add(validator);
+            }
+            @Override public void onProgress(long downloadedBytes, long totalBytes) {}
+        }).download(validator);
+    }
+
+    @Test
+    public void testDownload() throws Exception {
+        supportsRange = true;
+        file.delete();
+        download(null);
+        assertArrayEquals(data, readFile());
+        assertEquals(Arrays.asList(200), responseCodes);
+        assertEquals(Arrays.asList(ETAG), validators);
+    }
+
+    @Test
+    public void testResumeWithPartialContent() throws Exception {
+        supportsRange = true;
+        writePartialFile(30000, (byte) 0);
+        download(ETAG);
+        assertArrayEquals(data, readFile());
+        assertEquals(Arrays.asList(206), responseCodes);
+        assertEquals(0, validators.size()); // Still the same download
+    }
+
+    @Test
+    public void testResumeCompleteDownload() throws Exception {
+        supportsRange = true;
+        writePartialFile(data.length, (byte) 0);
+        download(ETAG);
+        assertArrayEquals(data, readFile());
+        assertEquals(Arrays.asList(416), responseCodes);
+    }
+
+    @Test
+    public void testRestartWhenRangeIsIgnored() throws Exception {
+        supportsRange = false;
+        writePartialFile(30000, (byte) 1); // Whatever was downloaded before must be replaced
+        download(ETAG);
+        assertArrayEquals(data, readFile());
+        assertEquals(Arrays.asList(200), responseCodes);
+        assertEquals(Arrays.asList(ETAG), validators);
+    }
+
+    @Test
+    public void testRestartWhenFileChanged() throws Exception {
+        supportsRange = true;
+        writePartialFile(30000, (byte) 1);
+        download("\"v0\""); // The If-Range doesn't match, so the server sends the whole file
+        assertArrayEquals(data, readFile());
+        assertEquals(Arrays.asList(200), responseCodes);
+    }
+
+    @Test
+    public void testRestartWhenPartialContentStartsElsewhere() throws Exception {
+        supportsRange = true;
+        partialStart = 20000;
+        writePartialFile(30000, (byte) 1);
+        download(ETAG);
+        assertArrayEquals(data, readFile());
+        assertEquals(Arrays.asList(206, 200), responseCodes);
+    }
+
+    @Test
+    public void testRestartWithoutValidator() throws Exception {
+        supportsRange = true;
+        writePartialFile(30000, (byte) 1);
+        download(null);
+        assertArrayEquals(data, readFile());
+        assertEquals(Arrays.asList(200), responseCodes);
+    }
+
+}
@@ -16,6 +16,7 @@ import org.apertium.pretransfer.PreTransfer;
 import org.apertium.tagger.Tagger;
 import org.apertium.transfer.ApertiumTransfer;
 import org.apertium.transfer.generation.TransferBytecode;
+import org.apertium.transfer.generation.TransferPrecompiler;
 
 /**
  *
@@ -49,6 +50,7 @@ public class CommandLineInterface {
         + " " + bareCommand + " lt-validate  dic.dix        validate a  dictionary\n"
         + " " + bareCommand + " lt-comp lr dic.dix dic.bin  compile a dictionary\n"
         + " " + bareCommand + " lt-proc dic.bin             morphological analysis/generation\n"
+        + " " + bareCommand + " apertium-precompile-transfer pair_dir  precompile transfer rules\n"
         + " " + bareCommand + " apertium-tagger             tagging/disambigation\n"
         + " " + bareCommand + " apertium-transfer           lexical transfer\n"
         + " " + bareCommand + " apertium-destxt             lexical transfer\n"
@@ -112,6 +114,8 @@ public class CommandLineInterface {
       LTValidate.main(restOfArgs);
     else if (task.startsWith("apertium-preprocess-transfer-bytecode"))
       TransferBytecode.main(restOfArgs);
+    else if (task.startsWith("apertium-precompile-transfer"))
+      TransferPrecompiler.main(restOfArgs);
     else if (task.equals("gui"))
       showGui();
     else if (task.equals("-h"))
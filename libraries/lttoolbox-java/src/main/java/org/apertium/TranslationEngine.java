@@ -0,0 +1,193 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ * 02111-1307, USA.
+ */
+package org.apertium;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apertium.pipeline.Dispatcher;
+import org.apertium.pipeline.Mode;
+import org.apertium.pipeline.PipelineExecutor;
+import org.apertium.pipeline.ProcessorCache;
+import org.apertium.pipeline.Program;
+import org.apertium.utils.IOContext;
+import org.apertium.utils.IOUtils;
+
+/**
+ * A translator for a single mode of a language pair.
+ *
+ * Unlike the static Translator, everything an engine needs (where to read its files from,
+ * its mode and its loaded dictionaries and rules) belongs to the engine itself, so engines
+ * for different language pairs can translate at the same time in different threads.
+ * Calls to the same engine are serialized.
+ */
+public class TranslationEngine {
+  private final IOContext context;
+  private final String[] modeFiles;
+  private final Mode mode;
+  private final ProcessorCache cache = new ProcessorCache();
+  //Display ambiguity, defaults to false
+  private boolean dispAmb = false;
+  //Display marks '*' for unknown words, defaults to true
+  private boolean dispMarks = true;
+  private boolean parallelProcessingEnabled = false;
+  private boolean preTransferFusionEnabled = true;
+
+  /**
+   * @param basePath the directory of the language pair
+   * @param classLoader the class loader to load the precompiled transfer classes from
+   * @param mode the mode to use, or null if the pair has a single mode
+   */
+  public TranslationEngine(String basePath, ClassLoader classLoader, String mode) throws Exception {
+    this(IOContext.forBasePathAndClassLoader(basePath, classLoader), mode);
+  }
+
+  /**
+   * @param context where the files of the language pair are
+   * @param mode the mode to use (either its name or the path of its .mode file),
+   * or null if the pair has a single mode
+   */
+  public TranslationEngine(IOContext context, String mode) throws Exception {
+    this.context = context;
+    IOContext previous = IOUtils.setThreadContext(context);
+    try {
+      String[] files = mode != null && mode.endsWith(".mode") ? new String[]{mode} : IOUtils.listFilesWithExtension("mode");
+      if (files == null)
+        files = IOUtils.readFile("modes").split("\n");
+      this.modeFiles = files;
+      this.mode = new Mode(findModeFile(mode));
+    } finally {
+      IOUtils.setThreadContext(previous);
+    }
+  }
+
+  private String findModeFile(String mode) {
+    if (mode == null && modeFiles.length == 1)
+      return modeFiles[0];
+    if (mode != null)
+      for (String s : modeFiles)
+        if (s.endsWith("/" + mode + ".mode") || s.equals(mode + ".mode") || s.equals(mode))
+          return s;
+    throw new IllegalArgumentException("Invalid mode. Valid modes are " + Arrays.toString(modeFiles));
+  }
+
+  public IOContext getContext() {
+    return context;
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  public synchronized void setDisplayAmbiguity(boolean displayAmbiguity) {
+    dispAmb = displayAmbiguity;
+  }
+
+  public synchronized void setDisplayMarks(boolean displayMarks) {
+    dispMarks = displayMarks;
+  }
+
+  /**
+   * If enabled, all the programs of the pipeline run at the same time in different
+   * threads (see PipelineExecutor). Worth it for long texts on multi-core machines.
+   */
+  public synchronized void setParallelProcessingEnabled(boolean enabled) {
+    parallelProcessingEnabled = enabled;
+  }
+
+  /**
+   * If enabled, the default, each pre-transfer followed by a transfer runs as a single
+   * stage (see Dispatcher.fusePreTransfer).
+   */
+  public synchronized void setPreTransferFusionEnabled(boolean enabled) {
+    preTransferFusionEnabled = enabled;
+  }
+
+  /**
+   * Frees the loaded dictionaries and rules. They will be read again on the next translation.
+   */
+  public synchronized void clearCache() {
+    cache.clear();
+  }
+
+  public String translate(String text) throws Exception {
+    StringWriter output = new StringWriter();
+    translate(new StringReader(text), output);
+    return output.toString();
+  }
+
+  public String translate(String text, String format) throws Exception {
+    StringWriter output = new StringWriter();
+    translate(new StringReader(text), output, format);
+    return output.toString();
+  }
+
+  public void translate(Reader input, Appendable output) throws Exception {
+    translate(input, output, "txt");
+  }
+
+  public void translate(Reader input, Appendable output, String format) throws Exception {
+    translate(input, output, new Program("apertium-des" + format), new Program("apertium-re" + format), null);
+  }
+
+  public synchronized void translate(Reader input, Appendable output, Program deformatter, Program reformatter,
+      Translator.TranslationProgressListener progressListener) throws Exception {
+    if (Thread.interrupted())
+      throw new InterruptedException();
+
+    List<Program> programs = new ArrayList<Program>(mode.getPipelineLength() + 2);
+    programs.add(deformatter);
+    for (int i = 0; i < mode.getPipelineLength(); i++)
+      programs.add(mode.getProgramByIndex(i));
+    programs.add(reformatter);
+    if (preTransferFusionEnabled)
+      programs = Dispatcher.fusePreTransfer(programs);
+
+    if (parallelProcessingEnabled) {
+      PipelineExecutor.execute(programs, input, output, dispAmb, dispMarks, cache, context, progressListener);
+      if (progressListener != null)
+        progressListener.onTranslationProgress("", programs.size(), programs.size());
+      return;
+    }
+
+    IOContext previous = IOUtils.setThreadContext(context);
+    try {
+      int progressMax = programs.size();
+      Reader intInput = input;
+      for (int i = 0; i < progressMax - 1; i++) {
+        StringBuilder intOutput = new StringBuilder(1000);
+        Program prg = programs.get(i);
+        if (progressListener != null)
+          progressListener.onTranslationProgress(prg.getCommandName(), i, progressMax);
+        Dispatcher.dispatch(prg, intInput, intOutput, dispAmb, dispMarks, cache);
+        intInput = new StringReader(intOutput.toString());
+      }
+      if (progressListener != null)
+        progressListener.onTranslationProgress(reformatter.getCommandName(), progressMax - 1, progressMax);
+      Dispatcher.dispatch(reformatter, intInput, output, dispAmb, dispMarks, cache);
+
+      if (progressListener != null)
+        progressListener.onTranslationProgress("", progressMax, progressMax);
+    } finally {
+      IOUtils.setThreadContext(previous);
+    }
+  }
+}
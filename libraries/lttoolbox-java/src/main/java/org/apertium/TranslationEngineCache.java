@@ -0,0 +1,134 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ * 02111-1307, USA.
+ */
+package org.apertium;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apertium.utils.IOContext;
+
+/**
+ * Keeps the most recently used translation engines loaded, so that switching
+ * between a few language pairs doesn't read their dictionaries again every time.
+ * Engines are keyed by their package (context), cache directory and mode, and the
+ * least recently used one is dropped when there are more than maxEngines of them.
+ * Dropped engines are cleared after the cache lock is released, as clearing an
+ * engine waits for any translation it is doing.
+ */
+public class TranslationEngineCache {
+  private final LinkedHashMap<String, TranslationEngine> engines = new LinkedHashMap<String, TranslationEngine>(16, 0.75f, true);
+  private int maxEngines;
+  private long hits, misses, evictions;
+
+  public TranslationEngineCache(int maxEngines) {
+    setMaxEngines(maxEngines);
+  }
+
+  public void setMaxEngines(int maxEngines) {
+    if (maxEngines < 1)
+      throw new IllegalArgumentException("maxEngines must be at least 1");
+    List<TranslationEngine> evicted;
+    synchronized (this) {
+      this.maxEngines = maxEngines;
+      evicted = evict();
+    }
+    clearCaches(evicted);
+  }
+
+  public synchronized int getMaxEngines() {
+    return maxEngines;
+  }
+
+  /**
+   * Returns the engine for the given package and mode, creating it if it isn't loaded.
+   *
+   * @param mode the mode, or null if the package has a single mode
+   */
+  public TranslationEngine get(IOContext context, String mode) throws Exception {
+    String key = context + "; " + context.getCacheDir() + "; " + mode;
+    TranslationEngine engine;
+    List<TranslationEngine> evicted;
+    synchronized (this) {
+      engine = engines.get(key);
+      if (engine != null) {
+        hits++;
+        return engine;
+      }
+      misses++;
+      engine = new TranslationEngine(context, mode);
+      engines.put(key, engine);
+      evicted = evict();
+    }
+    clearCaches(evicted);
+    return engine;
+  }
+
+  /**
+   * Removes the least recently used engines beyond maxEngines. Must be called with the lock held.
+   *
+   * @return the engines removed, to be cleared once the lock is released
+   */
+  private List<TranslationEngine> evict() {
+    List<TranslationEngine> evicted = new ArrayList<TranslationEngine>();
+    Iterator<Map.Entry<String, TranslationEngine>> it = engines.entrySet().iterator();
+    while (engines.size() > maxEngines && it.hasNext()) {
+      evicted.add(it.next().getValue());
+      it.remove();
+      evictions++;
+    }
+    return evicted;
+  }
+
+  private static void clearCaches(List<TranslationEngine> evicted) {
+    for (TranslationEngine engine : evicted)
+      engine.clearCache();
+  }
+
+  public void clear() {
+    List<TranslationEngine> evicted;
+    synchronized (this) {
+      evicted = new ArrayList<TranslationEngine>(engines.values());
+      engines.clear();
+    }
+    clearCaches(evicted);
+  }
+
+  public synchronized int size() {
+    return engines.size();
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "TranslationEngineCache{size=" + engines.size() + "/" + maxEngines + ", hits=" + hits
+        + ", misses=" + misses + ", evictions=" + evictions + "}";
+  }
+}
@@ -19,8 +19,6 @@
 package org.apertium;
 
 import java.io.IOException;
-import java.io.PipedReader;
-import java.io.PipedWriter;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
@@ -28,15 +26,18 @@ import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apertium.pipeline.Dispatcher;
 import org.apertium.pipeline.Mode;
+import org.apertium.pipeline.PipelineExecutor;
 import org.apertium.pipeline.Program;
 import org.apertium.tagger.Tagger;
 import org.apertium.transfer.ApertiumTransfer;
+import org.apertium.utils.IOContext;
 import org.apertium.utils.IOUtils;
 import org.apertium.interchunk.ApertiumInterchunk;
 import org.apertium.lttoolbox.LTProc;
@@ -47,6 +48,7 @@ import org.apertium.lttoolbox.LTProc;
  */
 public class Translator {
   private static Object base;
+  private static IOContext context;
   private static String modeId;
   private static String[] modeFiles;
   private static Mode mode;
@@ -56,7 +58,10 @@ public class Translator {
   private static boolean dispMarks = true;
   private static boolean cacheEnabled = false;
   private static boolean parallelProcessingEnabled = false;
+  private static boolean preTransferFusionEnabled = true;
   private static Thread loader;
+  // The pairs used most recently, so that switching between them doesn't reload everything
+  private static final TranslationEngineCache engines = new TranslationEngineCache(3);
 
   private Translator() {
   }
@@ -73,17 +78,62 @@ public class Translator {
     parallelProcessingEnabled = enabled;
   }
 
+  /**
+   * If enabled, the default, each pre-transfer followed by a transfer runs as a single stage
+   * (see Dispatcher.fusePreTransfer).
+   */
+  public static void setPreTransferFusionEnabled(boolean enabled) {
+    preTransferFusionEnabled = enabled;
+  }
+
   public static void setDelayedNodeLoadingEnabled(boolean enabled) {
     org.apertium.lttoolbox.process.TransducerExe.DELAYED_NODE_LOADING = enabled;
   }
 
+  /**
+   * If enabled, dictionaries are memory mapped from a fixed-width copy in the cache directory instead of
+   * being decoded into memory (see TransducerExe.MAPPED_FORMAT).
+   */
+  public static void setMappedDictionariesEnabled(boolean enabled) {
+    org.apertium.lttoolbox.process.TransducerExe.MAPPED_FORMAT = enabled;
+  }
+
+  /**
+   * Sets how many analysed words each dictionary keeps, so that repeated words are analysed only once
+   * (see FSTProcessor.ANALYSIS_CACHE_SIZE). 0, the default, disables it. Applies to dictionaries loaded afterwards.
+   */
+  public static void setAnalysisCacheSize(int entries) {
+    org.apertium.lttoolbox.process.FSTProcessor.ANALYSIS_CACHE_SIZE = entries;
+  }
+
+  /**
+   * Sets how many bytes of generated transfer classes are kept in the cache directory, so that they are
+   * generated again only when the rule file changes (see TransferClassCache.MAX_SIZE). 0 disables it.
+   */
+  public static void setTransferClassCacheSize(long bytes) {
+    org.apertium.transfer.TransferClassCache.MAX_SIZE = bytes;
+  }
+
   /** @deprecated */
   public static void setMemmappingEnabled(boolean enabled) {
     System.err.println("setMemmappingEnabled not supported");
   }
 
+  /**
+   * Sets how many pairs (or modes) can be kept loaded at the same time when the cache is enabled.
+   */
+  public static void setMaxCachedPairs(int maxPairs) {
+    engines.setMaxEngines(maxPairs);
+  }
+
+  public static TranslationEngineCache getEngineCache() {
+    return engines;
+  }
+
   public static void setCacheEnabled(boolean enabled) {
     cacheEnabled = enabled;
+    if (!enabled)
+      engines.clear();
     LTProc.setCacheEnabled(enabled);
     Tagger.setCacheEnabled(enabled);
     ApertiumTransfer.setCacheEnabled(enabled);
@@ -91,6 +141,7 @@ public class Translator {
   }
 
   public static void clearCache() {
+    engines.clear();
     LTProc.clearCache();
     Tagger.clearCache();
     ApertiumTransfer.clearCache();
@@ -104,10 +155,11 @@ public class Translator {
       loader.join();
       loader = null;
     }
-    clearCache();
 
     try {
       IOUtils.setJarAsResourceZip();
+      context = IOUtils.getContext();
+      modeId = null; // Modes with the same name in different bases are different modes
       modeFiles = IOUtils.listFilesWithExtension("mode");
       mode = modeFiles.length == 1 ? new Mode(modeFiles[0]) : null;
       if (modeFiles.length != 1)
@@ -126,17 +178,20 @@ public class Translator {
       loader.join();
       loader = null;
     }
-    clearCache();
 
     if (filename.endsWith(".mode")) {
       IOUtils.setResourceZip(null);
       IOUtils.setClassLoader(null);
+      context = IOUtils.getContext();
+      modeId = null;
       base = filename;
       modeFiles = new String[1];
       modeFiles[0] = filename;
       setMode(filename);
     } else if (filename.endsWith(".jar") || filename.endsWith(".zip")) {
       IOUtils.setResourceZip(filename);
+      context = IOUtils.getContext();
+      modeId = null;
       base = filename;
       modeFiles = IOUtils.listFilesWithExtension("mode");
       if (modeFiles.length == 1)
@@ -158,9 +213,10 @@ public class Translator {
       loader.join();
       loader = null;
     }
-    clearCache();
 
     IOUtils.setClassLoader(classLoader);
+    context = IOUtils.getContext();
+    modeId = null;
     base = classLoader;
     modeFiles = IOUtils.readFile("modes").split("\n");
     if (modeFiles.length == 1)
@@ -181,9 +237,10 @@ public class Translator {
       loader.join();
       loader = null;
     }
-    clearCache();
 
     IOUtils.setBasePathAndClassLoader(path, classLoader);
+    context = IOUtils.getContext();
+    modeId = null;
     modeFiles = IOUtils.listFilesWithExtension("mode");
     if (modeFiles.length == 1)
       setMode(modeFiles[0]);
@@ -206,7 +263,6 @@ public class Translator {
             loader.interrupt();
             loader.join();
           }
-          clearCache();
           (loader = new Thread(new Runnable() {
             @Override
             public void run() {
@@ -395,7 +451,6 @@ public class Translator {
       // nothing
     }
   };
-  private static Exception processingException = null;
 
   public static void translate(Reader input, Appendable output, Program deformatter, Program reformatter, TranslationProgressListener progressListener) throws Exception {
     if (Thread.interrupted())
@@ -406,64 +461,43 @@ public class Translator {
       loader = null;
     }
 
+    if (cacheEnabled) {
+      // Keep this pair loaded, along with the other pairs used recently
+      TranslationEngine engine = engines.get(context, mode.getFilename());
+      engine.setDisplayAmbiguity(dispAmb);
+      engine.setDisplayMarks(dispMarks);
+      engine.setParallelProcessingEnabled(parallelProcessingEnabled);
+      engine.setPreTransferFusionEnabled(preTransferFusionEnabled);
+      engine.translate(input, output, deformatter, reformatter, progressListener);
+      return;
+    }
+
     if (progressListener == null)
       progressListener = dummyTranslationProgressListener;
-    int progressMax = mode.getPipelineLength() + 2; // +1 for (re)formatting
-    progressListener.onTranslationProgress(deformatter.getCommandName(), 0, progressMax);
+    List<Program> programs = new ArrayList<Program>(mode.getPipelineLength() + 2);
+    programs.add(deformatter);
+    for (int i = 0; i < mode.getPipelineLength(); i++)
+      programs.add(mode.getProgramByIndex(i));
+    programs.add(reformatter);
+    if (preTransferFusionEnabled)
+      programs = Dispatcher.fusePreTransfer(programs);
+    int progressMax = programs.size();
 
     if (parallelProcessingEnabled) {
-      // Warning: Parallel processing not tested
-      PipedWriter intOutput = new PipedWriter();
-      dispatch(deformatter, input, intOutput, parallelProcessingEnabled);
-      Reader intInput = new PipedReader(intOutput);
-
-      for (int i = 0; i < mode.getPipelineLength(); i++) {
-        intOutput = new PipedWriter();
-        Program prg = mode.getProgramByIndex(i);
-        progressListener.onTranslationProgress(prg.getCommandName(), i + 1, progressMax);
-        dispatch(prg, intInput, intOutput, parallelProcessingEnabled);
-        intInput = new PipedReader(intOutput);
-      }
-      progressListener.onTranslationProgress(reformatter.getCommandName(), progressMax - 1, progressMax);
-      dispatch(reformatter, intInput, output, false); // wait for it to finish
+      PipelineExecutor.execute(programs, input, output, dispAmb, dispMarks, null, IOUtils.getContext(), progressListener);
     } else {
-      StringBuilder intOutput = new StringBuilder(1000);
-      dispatch(deformatter, input, intOutput, parallelProcessingEnabled);
-      Reader intInput = new StringReader(intOutput.toString());
-
-      for (int i = 0; i < mode.getPipelineLength(); i++) {
-        intOutput = new StringBuilder(intOutput.length());
-        Program prg = mode.getProgramByIndex(i);
-        progressListener.onTranslationProgress(prg.getCommandName(), i + 1, progressMax);
-        dispatch(prg, intInput, intOutput, parallelProcessingEnabled);
+      Reader intInput = input;
+      for (int i = 0; i < progressMax - 1; i++) {
+        StringBuilder intOutput = new StringBuilder(1000);
+        Program prg = programs.get(i);
+        progressListener.onTranslationProgress(prg.getCommandName(), i, progressMax);
+        Dispatcher.dispatch(prg, intInput, intOutput, dispAmb, dispMarks);
         intInput = new StringReader(intOutput.toString());
       }
       progressListener.onTranslationProgress(reformatter.getCommandName(), progressMax - 1, progressMax);
-      dispatch(reformatter, intInput, output, false); // wait for it to finish
+      Dispatcher.dispatch(reformatter, intInput, output, dispAmb, dispMarks);
     }
 
-    if (processingException != null) {
-      Exception aux = processingException;
-      processingException = null;
-      throw aux;
-    }
     progressListener.onTranslationProgress("", progressMax, progressMax);
   }
-
-  private static void dispatch(final Program program, final Reader input, final Appendable output, boolean async) throws Exception {
-    if (async)
-      new Thread(new Runnable() {
-        @Override
-        public void run() {
-          try {
-            Dispatcher.dispatch(program, input, output, dispAmb, dispMarks);
-            IOUtils.close(output);
-          } catch (Exception ex) {
-            processingException = new Exception(program.toString(), ex);
-          }
-        }
-      }).start();
-    else
-      Dispatcher.dispatch(program, input, output, dispAmb, dispMarks);
-  }
 }
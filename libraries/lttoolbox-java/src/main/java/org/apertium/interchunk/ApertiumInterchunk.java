@@ -27,6 +27,7 @@ import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.SoftReference;
 import java.util.HashMap;
+import java.util.Map;
 
 import org.apertium.lttoolbox.Getopt;
 import org.apertium.transfer.TransferClassLoader;
@@ -142,17 +143,25 @@ public class ApertiumInterchunk {
    * @param par
    * @throws Exception
    */
-  @SuppressWarnings("unchecked")
   public static void doMain(CommandLineParams par, Interchunk newInterOrPostchunk) throws Exception {
+    doMain(par, newInterOrPostchunk, cacheEnabled ? cache : null);
+  }
+
+  /**
+   * Same as doMain(par, newInterOrPostchunk), but loaded interchunks/postchunks are looked
+   * up in and stored into the given cache (which can be null) instead of the static one.
+   */
+  @SuppressWarnings("unchecked")
+  public static void doMain(CommandLineParams par, Interchunk newInterOrPostchunk, Map<String, Interchunk> interchunkCache) throws Exception {
 
     String key = par.t2xFile + "; " + par.preprocFile;
-    Interchunk i = cache.get(key);
+    Interchunk i = interchunkCache != null ? interchunkCache.get(key) : null;
     if (i == null) {
       i = newInterOrPostchunk;
       Class t2xClass = TransferClassLoader.loadTxClass(par.t2xFile, par.preprocFile);
       i.read(t2xClass, par.preprocFile);
-      if (cacheEnabled)
-        cache.put(key, i);
+      if (interchunkCache != null)
+        interchunkCache.put(key, i);
     }
 
     i.setNullFlush(par.nullFlush);
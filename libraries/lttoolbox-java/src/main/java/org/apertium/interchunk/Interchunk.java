@@ -37,8 +37,6 @@ import org.apertium.utils.Timing;
  *
  */
 public class Interchunk extends AbstractTransfer {
-  protected boolean inword;
-
   /* Yes, this increases the linkage and entanglement of the classes, but
    * but it's better than duplicating so much code just for a change of a
    * couple of lines between Interchunk and Postchunk.
@@ -52,98 +50,19 @@ public class Interchunk extends AbstractTransfer {
   protected InterchunkMode icMode = InterchunkMode.INTERCHUNK;
 
   /**
-   * Much of this code originally copied from {@link org.apertium.transfer.Transfer#readToken(Reader)}.
-   * Modified to be in-line with the differences between transfer.cc and interchunk.cc
+   * Like {@link org.apertium.transfer.Transfer#readToken(Reader)}, but words can contain chunks
+   * {...}, as in interchunk.cc
    *
    * @param in
    * @return
    * @throws IOException
    */
   private TransferToken readToken(Reader in) throws IOException {
-    //TODO: Make sure this isn't broken XD The read-ahead might be a failure.
     if (!input_buffer.isEmpty()) {
       return input_buffer.next();
     }
 
-    /* This is a flag that is used if we need to skip a read in the case of a
-     * single character look-ahead.
-     */
-    boolean skipRead = false;
-    String content = "";
-    int val = -1; //declare and initialize val outside of while statement.
-    while (true) {
-      if (skipRead) { //Already read ahead to the next character
-        skipRead = false; //unset flag
-      } else {
-        val = in.read();
-        //if (DEBUG) System.err.println("val = " + (char) val);
-      }
-      if (val == -1 || (val == 0 && internal_null_flush)) {
-        return input_buffer.add(new TransferToken(content,
-            TransferToken.TransferTokenType.tt_eof));
-      }
-      if (val == '\\') {
-        content += '\\';
-        content += (char) in.read();
-      } else if (val == '[') {
-        content += '[';
-        while (true) {
-          int val2 = in.read();
-          if (val2 == '\\') {
-            content += '\\';
-            content += (char) in.read();
-          } else if (val2 == ']') {
-            content += ']';
-            break;
-          } else {
-            content += (char) val2;
-          }
-        }
-      } else if (inword && val == '{') {
-        content += '{';
-        int val2 = -1; //declare and initialize val2 outside of while statement.
-        while (true) {
-          if (skipRead) { //Already read ahead to the next character
-            skipRead = false; //unset flag
-          } else {
-            val2 = in.read();
-            //if (DEBUG) System.err.println("val2 = " + (char) val2);
-          }
-          if (val2 == '\\') {
-            content += '\\';
-            content += (char) in.read();
-          } else if (val2 == '}') {
-            /*
-             * Here's where we peek ahead to see if the next char is
-             * a '$' If it's not, we want that character to still be
-             * processed normally. Unfortunately, we can't "unget" a
-             * character, but we can set a flag and test for it.
-             * Instead of storing it in a new val3, we just read the
-             * next character into val2.
-             */
-            content += '}';
-            val2 = in.read();
-            if (val2 == '$') {
-              val = val2; //pass read-ahead char into val
-              skipRead = true; // skip next read
-              break; //exit inner while loop
-            }
-          } else {
-            content += (char) val2;
-          }
-        }
-      } else if (inword && val == '$') {
-        inword = false;
-        return input_buffer.add(new TransferToken(content,
-            TransferToken.TransferTokenType.tt_word));
-      } else if (val == '^') {
-        inword = true;
-        return input_buffer.add(new TransferToken(content,
-            TransferToken.TransferTokenType.tt_blank));
-      } else {
-        content += (char) val;
-      }
-    }
+    return input_buffer.add(readTokenFrom(in, true));
   }
 
   /**
@@ -168,7 +87,7 @@ public class Interchunk extends AbstractTransfer {
 
     output = checkIfOutputMustBeWriterCompatible(output, rule_map);
 
-    Method lastMatchedRule = null; // xmlNode *lastrule;
+    int lastMatchedRule = -1; // xmlNode *lastrule;
     ArrayList<String> tmpword = new ArrayList<String>(); // vector<wstring *> tmpword;
     ArrayList<String> tmpblank = new ArrayList<String>(); // vector<wstring *> tmpblank;
     ArrayList<String> matchedWords = new ArrayList<String>();
@@ -179,10 +98,10 @@ public class Interchunk extends AbstractTransfer {
       timing = new Timing("Interchunk");
     while (true) {
       if (ms.size() == 0) {
-        if (lastMatchedRule != null) {
+        if (lastMatchedRule != -1) {
           // there was a rule match
           applyRule(output, lastMatchedRule, matchedWords, matchedBlanks);
-          lastMatchedRule = null;
+          lastMatchedRule = -1;
           tmpword.clear();
           tmpblank.clear();
           ms.init(me.getInitial());
@@ -224,12 +143,12 @@ public class Interchunk extends AbstractTransfer {
         // a rule match was found. This might not be the longest match, though.
         // so, we store the stuff to invoke applyRule() later
 
-        lastMatchedRule = rule_map[(val - 1)];
+        lastMatchedRule = val - 1;
         lastPos = input_buffer.getPos();
 
         if (DEBUG)
           System.err.println("lastrule = " + (val - 1) + " "
-              + lastMatchedRule.getName());
+              + rule_map[lastMatchedRule].getName());
         if (DEBUG)
           System.err.println("tmpword = " + tmpword.size()
               + "  tmpblank = " + tmpblank.size());
@@ -292,12 +211,13 @@ public class Interchunk extends AbstractTransfer {
    * Modified to be in-line with the differences between transfer.cc and interchunk.cc
    *
    * @param output
+   * @param ruleNo the number of the rule in rule_map
    * @throws IOException
    * @throws IllegalAccessException
    * @throws IllegalArgumentException
    * @throws InvocationTargetException
    */
-  protected void applyRule(Appendable output, Method rule,
+  protected void applyRule(Appendable output, int ruleNo,
       ArrayList<String> words, ArrayList<String> blanks)
       throws IOException, IllegalAccessException,
       IllegalArgumentException, InvocationTargetException {
@@ -309,14 +229,32 @@ public class Interchunk extends AbstractTransfer {
 
     int limit = words.size(); // number of words
 
+    InterchunkWord[] wordarr = new InterchunkWord[limit];
+    String[] blankarr = new String[limit - 1];
+    for (int i = 0; i != limit; i++) {
+      if (i > 0)
+        blankarr[i - 1] = blanks.get(i - 1);
+      wordarr[i] = new InterchunkWord(words.get(i));
+    }
+
+    if (DO_TIMING)
+      timing.log("applyRule 1");
+    if (transferObject.applyRule(ruleNo, output, wordarr, blankarr)) {
+      if (DO_TIMING)
+        timing.log("rule invoke");
+      return;
+    }
+
+    // class generated before applyRule() existed, so we need Java Method Invocation
+    Method rule = rule_map[ruleNo];
     Object[] args = new Object[1 + limit + limit - 1]; // number of arguments out:1, words:limit, blanks:limit-1
     int argn = 0;
     args[argn++] = output;
 
     for (int i = 0; i != limit; i++) {
       if (i > 0)
-        args[argn++] = blanks.get(i - 1);
-      args[argn++] = new InterchunkWord(words.get(i));
+        args[argn++] = blankarr[i - 1];
+      args[argn++] = wordarr[i];
     }
 
     if (DEBUG)
@@ -325,8 +263,6 @@ public class Interchunk extends AbstractTransfer {
 //            System.err.println("processRule:" + lastrule.getName() + "("
 //                    + Arrays.toString(args));
     try {
-      if (DO_TIMING)
-        timing.log("applyRule 1");
       rule.invoke(transferObject, args);
       if (DO_TIMING)
         timing.log("rule invoke");
@@ -24,6 +24,13 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.ArrayList;
@@ -67,6 +74,66 @@ public class Expander {
     }
   }
 
+  /**
+   * Transductions of an entry, not expanded yet. Each product stands for the concatenations
+   * of a pair of each of its parts, for all the combinations, in the order the first part
+   * changes the slowest. So entries with big paradigms don't need memory for all their forms.
+   */
+  private static class Products extends ArrayList<EntList[]> {
+    private static final long serialVersionUID = 1L;
+
+    public Products() {
+    }
+
+    public Products(SPair p) {
+      add(new EntList[] {single(p)});
+    }
+
+    /**
+     * @return the number of transductions
+     */
+    long count() {
+      long total = 0;
+      for (EntList[] product : this) {
+        long n = 1;
+        for (EntList part : product) {
+          n *= part.size();
+        }
+        total += n;
+      }
+      return total;
+    }
+  }
+
+  private static EntList single(SPair p) {
+    EntList l = new EntList();
+    l.add(p);
+    return l;
+  }
+
+  /**
+   * Number of threads expanding entries
+   */
+  private int threads = Runtime.getRuntime().availableProcessors();
+  /**
+   * Entries waiting to be expanded, and their number of transductions
+   */
+  private List<Products[]> batch = new ArrayList<Products[]>();
+  private long batchSize;
+  /**
+   * Expanded batches, in order, waiting to be written
+   */
+  private LinkedList<Future<String>> pending = new LinkedList<Future<String>>();
+  private ExecutorService executor;
+  /**
+   * Transductions in a batch of entries to be expanded by a thread
+   */
+  private static final int BATCH_SIZE = 4096;
+  /**
+   * Maximum number of batches expanded but not written yet, per thread
+   */
+  private static final int MAX_PENDING_PER_THREAD = 4;
+
   /**
    * Paradigms
    */
@@ -87,6 +154,9 @@ public class Expander {
     paradigm = new HashMap<String, EntList>();
     paradigm_lr = new HashMap<String, EntList>();
     paradigm_rl = new HashMap<String, EntList>();
+    if (threads > 1) {
+      executor = Executors.newFixedThreadPool(threads);
+    }
     try {
       output = out;
       XMLInputFactory factory = XMLInputFactory.newInstance();
@@ -96,11 +166,159 @@ public class Expander {
         reader.next();
       }
       reader.close();
+      flush();
     } catch (FileNotFoundException e) {
       throw new RuntimeException("Error: Cannot open '" + file + "'.");
     } catch (XMLStreamException e) {
       e.printStackTrace();
       throw new RuntimeException("Error: An error occured parsing '" + file + "'.");
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+        executor = null;
+      }
+      batch.clear();
+      pending.clear();
+    }
+  }
+
+  /**
+   * Sets the number of threads expanding the entries of the sections. Defaults to the number of processors.
+   * The output is the same whatever the number of threads.
+   */
+  public void setThreads(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * Writes the transductions of an entry of a section, or queues them to be expanded in another thread
+   */
+  private void writeEntry(Products items, Products items_lr, Products items_rl) throws IOException {
+    if (executor == null) {
+      StringBuilder sb = new StringBuilder();
+      expandEntry(sb, items, items_lr, items_rl);
+      output.append(sb);
+      return;
+    }
+    batch.add(new Products[] {items, items_lr, items_rl});
+    batchSize += items.count() + items_lr.count() + items_rl.count();
+    if (batchSize >= BATCH_SIZE) {
+      submitBatch();
+    }
+  }
+
+  private void submitBatch() throws IOException {
+    if (batch.isEmpty()) {
+      return;
+    }
+    final List<Products[]> entries = batch;
+    batch = new ArrayList<Products[]>();
+    batchSize = 0;
+    pending.add(executor.submit(new Callable<String>() {
+      public String call() {
+        StringBuilder sb = new StringBuilder();
+        for (Products[] e : entries) {
+          expandEntry(sb, e[0], e[1], e[2]);
+        }
+        return sb.toString();
+      }
+    }));
+    while (pending.size() > threads * MAX_PENDING_PER_THREAD) {
+      writePending();
+    }
+  }
+
+  private void writePending() throws IOException {
+    try {
+      output.write(pending.removeFirst().get());
+    } catch (InterruptedException e) {
+      // Not JDK 1.5 compliant: throw new IOException("Interrupted", e);
+      IOException ioe = new IOException("Interrupted");
+      ioe.initCause(e);
+      throw ioe;
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      IOException ioe = new IOException(String.valueOf(e.getCause()));
+      ioe.initCause(e.getCause());
+      throw ioe;
+    }
+  }
+
+  /**
+   * Writes all the entries queued
+   */
+  private void flush() throws IOException {
+    if (executor == null) {
+      return;
+    }
+    submitBatch();
+    while (!pending.isEmpty()) {
+      writePending();
+    }
+  }
+
+  private static void expandEntry(StringBuilder sb, Products items, Products items_lr, Products items_rl) {
+    expand(sb, items, ":");
+    expand(sb, items_lr, ":>:");
+    expand(sb, items_rl, ":<:");
+  }
+
+  /**
+   * Writes all the transductions, one per line, with the given separator
+   */
+  private static void expand(StringBuilder sb, Products items, String separator) {
+    StringBuilder left = new StringBuilder();
+    StringBuilder right = new StringBuilder();
+    for (EntList[] product : items) {
+      expand(sb, product, 0, left, right, separator);
+    }
+  }
+
+  private static void expand(StringBuilder sb, EntList[] product, int part, StringBuilder left, StringBuilder right,
+      String separator) {
+    if (part == product.length) {
+      sb.append(left).append(separator).append(right).append('\n');
+      return;
+    }
+    int l = left.length();
+    int r = right.length();
+    for (SPair p : product[part]) {
+      left.append(p.first);
+      right.append(p.second);
+      expand(sb, product, part + 1, left, right, separator);
+      left.setLength(l);
+      right.setLength(r);
+    }
+  }
+
+  /**
+   * Expands the transductions, for a paradigm
+   */
+  private EntList toEntList(Products items) {
+    EntList result = new EntList();
+    StringBuilder left = new StringBuilder();
+    StringBuilder right = new StringBuilder();
+    for (EntList[] product : items) {
+      toEntList(result, product, 0, left, right);
+    }
+    return result;
+  }
+
+  private void toEntList(EntList result, EntList[] product, int part, StringBuilder left, StringBuilder right) {
+    if (part == product.length) {
+      result.add(new SPair(left.toString(), right.toString()));
+      return;
+    }
+    int l = left.length();
+    int r = right.length();
+    for (SPair p : product[part]) {
+      left.append(p.first);
+      right.append(p.second);
+      toEntList(result, product, part + 1, left, right);
+      left.setLength(l);
+      right.setLength(r);
     }
   }
 
@@ -129,16 +347,15 @@ public class Expander {
    * @param endings the endings to be appended
    * @return the result of concatenations
    */
-  private EntList append(EntList result, EntList endings) {
-    EntList temp = new EntList();
-    for (int i = 0; i < result.size(); i++) {
-      for (int j = 0; j < endings.size(); j++) {
-        temp.add(new SPair(result.get(i).first + endings.get(j).first,
-            result.get(i).second + endings.get(j).second));
-      }
+  private Products append(Products result, EntList endings) {
+    Products temp = new Products();
+    for (EntList[] product : result) {
+      EntList[] p = new EntList[product.length + 1];
+      System.arraycopy(product, 0, p, 0, product.length);
+      p[product.length] = endings;
+      temp.add(p);
     }
-    result = temp;
-    return result;
+    return temp;
   }
 
   /**
@@ -148,12 +365,8 @@ public class Expander {
    * @param endings the ending to be appended
    * @return the result of concatenations
    */
-  private EntList append(EntList result, String endings) {
-    for (int i = 0; i < result.size(); i++) {
-      result.get(i).first += endings;
-      result.get(i).second += endings;
-    }
-    return result;
+  private Products append(Products result, String endings) {
+    return append(result, single(new SPair(endings, endings)));
   }
 
   /**
@@ -163,12 +376,8 @@ public class Expander {
    * @param endings the endings to be appended
    * @return the result of concatenations
    */
-  private EntList append(EntList result, Pair<String, String> endings) {
-    for (int i = 0; i < result.size(); i++) {
-      result.get(i).first += endings.first;
-      result.get(i).second += endings.second;
-    }
-    return result;
+  private Products append(Products result, SPair endings) {
+    return append(result, single(endings));
   }
 
   /**
@@ -223,16 +432,16 @@ public class Expander {
       return;
     }
 
-    EntList items = new EntList();
-    EntList items_lr = new EntList();
-    EntList items_rl = new EntList();
+    Products items = new Products();
+    Products items_lr = new Products();
+    Products items_rl = new Products();
 
     if (attribute.equals(Compile.COMPILER_RESTRICTION_LR_VAL)) {
-      items_lr.add(new SPair("", ""));
+      items_lr = new Products(new SPair("", ""));
     } else if (attribute.equals(Compile.COMPILER_RESTRICTION_RL_VAL)) {
-      items_rl.add(new SPair("", ""));
+      items_rl = new Products(new SPair("", ""));
     } else {
-      items.add(new SPair("", ""));
+      items = new Products(new SPair("", ""));
     }
 
     while (true) {
@@ -284,7 +493,7 @@ public class Expander {
               name = skip(name, Compile.COMPILER_ENTRY_ELEM);
               return;
             }
-            EntList first = new EntList();
+            Products first = new Products();
             first.addAll(items_lr);
             first = append(first, paradigm.get(p));
             items_lr = append(items_lr, paradigm_lr.get(p));
@@ -296,7 +505,7 @@ public class Expander {
               return;
             }
 
-            EntList first = new EntList();
+            Products first = new Products();
             first.addAll(items_rl);
             first = append(first, paradigm.get(p));
             items_rl = append(items_rl, paradigm_rl.get(p));
@@ -308,9 +517,9 @@ public class Expander {
             if (paradigm_rl.get(p).size() > 0) {
               items_rl.addAll(items);
             }
-            EntList aux_lr = new EntList();
+            Products aux_lr = new Products();
             aux_lr.addAll(items_lr);
-            EntList aux_rl = new EntList();
+            Products aux_rl = new Products();
             aux_rl.addAll(items_rl);
             aux_lr = append(aux_lr, paradigm.get(p));
             aux_rl = append(aux_rl, paradigm.get(p));
@@ -323,41 +532,20 @@ public class Expander {
         }
       } else if (name.equals(Compile.COMPILER_ENTRY_ELEM) && type == XMLStreamConstants.END_ELEMENT) {
         if (current_paradigm.equals("")) {
-          for (SPair it : items) {
-            output.write(it.first);
-            output.write(':');
-            output.write(it.second);
-            output.write('\n');
-          }
-          for (SPair it : items_lr) {
-            output.write(it.first);
-            output.write(':');
-            output.write('>');
-            output.write(':');
-            output.write(it.second);
-            output.write('\n');
-          }
-          for (SPair it : items_rl) {
-            output.write(it.first);
-            output.write(':');
-            output.write('<');
-            output.write(':');
-            output.write(it.second);
-            output.write('\n');
-          }
+          writeEntry(items, items_lr, items_rl);
         } else {
           if (!paradigm_lr.containsKey(current_paradigm)) {
             paradigm_lr.put(current_paradigm, new EntList());
           }
-          paradigm_lr.get(current_paradigm).addAll(items_lr);
+          paradigm_lr.get(current_paradigm).addAll(toEntList(items_lr));
           if (!paradigm_rl.containsKey(current_paradigm)) {
             paradigm_rl.put(current_paradigm, new EntList());
           }
-          paradigm_rl.get(current_paradigm).addAll(items_rl);
+          paradigm_rl.get(current_paradigm).addAll(toEntList(items_rl));
           if (!paradigm.containsKey(current_paradigm)) {
             paradigm.put(current_paradigm, new EntList());
           }
-          paradigm.get(current_paradigm).addAll(items);
+          paradigm.get(current_paradigm).addAll(toEntList(items));
         }
         return;
       } else if (type == XMLStreamConstants.COMMENT) {
@@ -445,7 +633,8 @@ public class Expander {
   /**
    * Parse the <pardef> elements
    */
-  private void procParDef() {
+  private void procParDef() throws IOException {
+    flush(); // queued entries must see the paradigms as they are now
     int type = reader.getEventType();
     if (type != XMLStreamConstants.END_ELEMENT) {
       current_paradigm = attrib(Compile.COMPILER_N_ATTR);
@@ -37,10 +37,13 @@ public class LTComp {
   static void endProgram(String name) {
     if (name != null) {
       System.out.println(" v" + CommandLineInterface.PACKAGE_VERSION + ": build a letter transducer from a dictionary\n"
-          + "USAGE: " + name + " lr | rl dictionary_file output_file [acx_file]\n"
+          + "USAGE: " + name + " [-c cache_dir] lr | rl dictionary_file output_file [acx_file]\n"
           + "Modes:\n"
           + "  lr:     left-to-right compilation\n"
-          + "  rl:     right-to-left compilation\n");
+          + "  rl:     right-to-left compilation\n"
+          + "Options:\n"
+          + "  -c:     incremental compilation: reuse the paradigms and sections that didn't\n"
+          + "          change since the last compilation with the same cache_dir\n");
     }
   }
 
@@ -51,13 +54,19 @@ public class LTComp {
    * @throws java.io.IOException
    */
   public static void main(String[] argv) throws IOException {
+    Compile c = new Compile();
+    if (argv.length > 2 && argv[0].equals("-c")) {
+      c.setCacheDirectory(argv[1]);
+      String[] rest = new String[argv.length - 2];
+      System.arraycopy(argv, 2, rest, 0, rest.length);
+      argv = rest;
+    }
     final int argc = argv.length;
     if (argc != 3 && argc != 4) {
       endProgram("LTComp");
       return;
     }
     String opc = argv[0];
-    Compile c = new Compile();
 
     if (opc.equals("lr")) {
       if (argc == 4) {
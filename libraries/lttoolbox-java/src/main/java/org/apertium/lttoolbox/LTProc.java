@@ -19,7 +19,8 @@ package org.apertium.lttoolbox;
 import java.io.IOException;
 import java.io.Reader;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apertium.CommandLineInterface;
 import org.apertium.lttoolbox.process.FSTProcessor;
 import org.apertium.lttoolbox.process.State;
@@ -42,7 +43,7 @@ class MyGetOpt extends Getopt {
  * @author Raah
  */
 public class LTProc {
-  private static HashMap<String, FSTProcessor> cache = new HashMap<String, FSTProcessor>();
+  private static Map<String, FSTProcessor> cache = new ConcurrentHashMap<String, FSTProcessor>();
   private static boolean cacheEnabled = false;
 
   public static void setCacheEnabled(boolean enabled) {
@@ -79,6 +80,39 @@ public class LTProc {
 
   }
 
+  /**
+   * Prepares a freshly loaded processor for the command
+   */
+  private static void init(FSTProcessor fstp, int cmd) {
+    switch (cmd) {
+      case 'n':
+      case 'g':
+      case 'd':
+      case 'l':
+        fstp.initGeneration();
+        break;
+
+      case 'p':
+      case 't':
+        fstp.initPostgeneration();
+        break;
+
+      case 'e':
+        fstp.initDecomposition();
+        break;
+
+      case 'b':
+        fstp.initBiltrans();
+        break;
+
+      case 's':
+      case 'a':
+      default:
+        fstp.initAnalysis();
+        break;
+    }
+  }
+
   static void checkValidity(FSTProcessor fstp) {
     if (!fstp.valid()) {
       throw new RuntimeException("Validity test for FSTProcessor failed");
@@ -92,6 +126,16 @@ public class LTProc {
   }
 
   public static void doMain(String[] argv, Reader input, Appendable output) throws IOException {
+    doMain(argv, input, output, cacheEnabled ? cache : null);
+  }
+
+  /**
+   * Same as doMain(argv, input, output), but loaded transducers are looked up in and
+   * stored into the given cache (which can be null) instead of the static one.
+   * A transducer is cached already set up for the command and options it was loaded with,
+   * and isn't changed afterwards, so several threads can use it at a time.
+   */
+  public static void doMain(String[] argv, Reader input, Appendable output, Map<String, FSTProcessor> fstpCache) throws IOException {
 
     if (argv.length == 0) {
       showHelp("LTProc");
@@ -218,81 +262,67 @@ public class LTProc {
 
     FSTProcessor fstp = null;
     final String filename = argv[optind + 1];
-    fstp = cache.get(filename);
+    // The options change the processor, so each combination gets its own one
+    final String key = filename + " -" + (char) cmd + (caseSensitiveMode ? "c" : "") + (flagMatchMode ? "f" : "")
+        + (showControlSymbols ? "S" : "") + (dictionaryCase ? "w" : "") + (nullFlush ? "z" : "");
+    if (fstpCache != null)
+      fstp = fstpCache.get(key);
     if (fstp == null) {
       fstp = new FSTProcessor();
       ByteBuffer in = openFileAsByteBuffer(filename);
       fstp.load(in, filename);
       if (IOUtils.timing != null)
         IOUtils.timing.log("Load transducer " + filename);
-      if (cacheEnabled)
-        cache.put(filename, fstp);
-    }
 
-    fstp.setCaseSensitiveMode(caseSensitiveMode);
-    fstp.setFlagMatchMode(flagMatchMode);
-    fstp.setShowControlSymbols(showControlSymbols);
-    fstp.setDictionaryCase(dictionaryCase);
-    fstp.setNullFlush(nullFlush);
+      fstp.setCaseSensitiveMode(caseSensitiveMode);
+      fstp.setFlagMatchMode(flagMatchMode);
+      fstp.setShowControlSymbols(showControlSymbols);
+      fstp.setDictionaryCase(dictionaryCase);
+      fstp.setNullFlush(nullFlush);
+      init(fstp, cmd);
+      checkValidity(fstp);
+      if (fstpCache != null)
+        fstpCache.put(key, fstp);
+    }
 
     try {
       switch (cmd) {
         case 'n':
-          fstp.initGeneration();
-          checkValidity(fstp);
           fstp.generation(input, output, FSTProcessor.GenerationMode.gm_clean);
           break;
 
         case 'g':
-          fstp.initGeneration();
-          checkValidity(fstp);
           fstp.generation(input, output, FSTProcessor.GenerationMode.gm_unknown);
           break;
 
         case 'd':
-          fstp.initGeneration();
-          checkValidity(fstp);
           fstp.generation(input, output, FSTProcessor.GenerationMode.gm_all);
 
         case 'l':
-          fstp.initGeneration();
-          checkValidity(fstp);
           fstp.generation(input, output, FSTProcessor.GenerationMode.gm_tagged);
 
         case 'p':
-          fstp.initPostgeneration();
-          checkValidity(fstp);
           fstp.postgeneration(input, output);
           break;
 
         case 's':
-          fstp.initAnalysis();
-          checkValidity(fstp);
           fstp.SAO(input, output);
           break;
 
         case 't':
-          fstp.initPostgeneration();
-          checkValidity(fstp);
           fstp.transliteration(input, output);
           break;
 
         case 'e':
-          fstp.initDecomposition();
-          checkValidity(fstp);
           fstp.analysis(input, output);
           break;
 
         case 'b':
-          fstp.initBiltrans();
-          checkValidity(fstp);
           fstp.bilingual(input, output);
           break;
 
         case 'a':
         default:
-          fstp.initAnalysis();
-          checkValidity(fstp);
           fstp.analysis(input, output);
           break;
       }
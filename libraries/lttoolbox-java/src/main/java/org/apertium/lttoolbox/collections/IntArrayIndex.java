@@ -0,0 +1,126 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ * 02111-1307, USA.
+ */
+package org.apertium.lttoolbox.collections;
+
+/**
+ * Numbers distinct int arrays 0, 1, 2, ... in the order they are added, like a
+ * Map<Set<Integer>, Integer> together with its inverse List<Set<Integer>>, but
+ * without boxing. Used for the state sets when determinizing a transducer.
+ *
+ * Keys are compared element by element, so sets must be given sorted.
+ */
+public class IntArrayIndex {
+  private int[][] keys = new int[64][];
+  private int[] hashes = new int[64];
+  /** Open addressing table of key numbers + 1, 0 meaning empty */
+  private int[] table = new int[128];
+  private int size;
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the array numbered n. Must not be modified
+   */
+  public int[] get(int n) {
+    return keys[n];
+  }
+
+  /**
+   * @return the number of the array equal to key[from..from+length), or -1 if there is none
+   */
+  public int indexOf(int[] key, int from, int length) {
+    int hash = hash(key, from, length);
+    int mask = table.length - 1;
+    for (int i = hash & mask;; i = (i + 1) & mask) {
+      int n = table[i] - 1;
+      if (n < 0) {
+        return -1;
+      }
+      if (hashes[n] == hash && equals(keys[n], key, from, length)) {
+        return n;
+      }
+    }
+  }
+
+  /**
+   * Adds a copy of key[from..from+length), unless it is there already
+   *
+   * @return its number
+   */
+  public int add(int[] key, int from, int length) {
+    int n = indexOf(key, from, length);
+    if (n >= 0) {
+      return n;
+    }
+    if (size == keys.length) {
+      int[][] newKeys = new int[size * 2][];
+      System.arraycopy(keys, 0, newKeys, 0, size);
+      keys = newKeys;
+      int[] newHashes = new int[size * 2];
+      System.arraycopy(hashes, 0, newHashes, 0, size);
+      hashes = newHashes;
+    }
+    n = size++;
+    keys[n] = new int[length];
+    System.arraycopy(key, from, keys[n], 0, length);
+    hashes[n] = hash(key, from, length);
+    if (size * 2 > table.length) {
+      table = new int[table.length * 2];
+      for (int i = 0; i < size; i++) {
+        insert(i);
+      }
+    } else {
+      insert(n);
+    }
+    return n;
+  }
+
+  public int add(int[] key) {
+    return add(key, 0, key.length);
+  }
+
+  private void insert(int n) {
+    int mask = table.length - 1;
+    int i = hashes[n] & mask;
+    while (table[i] != 0) {
+      i = (i + 1) & mask;
+    }
+    table[i] = n + 1;
+  }
+
+  private static int hash(int[] key, int from, int length) {
+    int h = 1;
+    for (int i = from; i < from + length; i++) {
+      h = 31 * h + key[i];
+    }
+    return h ^ (h >>> 16);
+  }
+
+  private static boolean equals(int[] a, int[] key, int from, int length) {
+    if (a.length != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (a[i] != key[from + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
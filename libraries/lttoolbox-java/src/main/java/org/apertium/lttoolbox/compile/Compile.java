@@ -17,6 +17,7 @@ package org.apertium.lttoolbox.compile;
  * 02111-1307, USA.
  */
 import org.apertium.lttoolbox.*;
+import java.io.File;
 import java.io.OutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -127,6 +128,22 @@ public class Compile {
    */
   XMLStreamReader reader;
   public static boolean DEBUG = false;
+  /**
+   * Compiled paradigms and sections from previous compilations, or null
+   */
+  private CompileCache cache;
+  /**
+   * The paradigm or section being compiled, when using the cache
+   */
+  private CompileCache.Unit current_unit;
+  /**
+   * Sections read from the cache, which are minimized already
+   */
+  private Set<String> cached_sections = new HashSet<String>();
+  /**
+   * Sections to store in the cache once minimized
+   */
+  private List<CompileCache.Unit> sections_to_store = new ArrayList<CompileCache.Unit>();
 
   /**
    * The constructor
@@ -137,6 +154,16 @@ public class Compile {
     // LtLocale.tryToSetLocale();
   }
 
+  /**
+   * Enables incremental compilation: paradigms and sections that didn't change since a
+   * previous compilation are read from the given directory instead of being compiled again.
+   *
+   * @param dir the cache directory, or null to compile everything
+   */
+  public void setCacheDirectory(String dir) {
+    cache = dir == null ? null : new CompileCache(new File(dir));
+  }
+
   /**
    * Compile dictionary to letter transducers
    *
@@ -149,8 +176,12 @@ public class Compile {
       direction = dir;
       XMLInputFactory factory = XMLInputFactory.newInstance();
       if (file.equals("-")) {
+        cache = null; // can't read it twice
         reader = factory.createXMLStreamReader(System.in);
       } else {
+        if (cache != null) {
+          cache.scan(file, direction, acx_map);
+        }
         reader = factory.createXMLStreamReader(new FileInputStream(file));
       }
       while (reader.hasNext()) {
@@ -159,8 +190,19 @@ public class Compile {
       }
       reader.close();
       // Minimize transducers
-      for (TransducerComp transducer : sections.values()) {
-        transducer.minimize();
+      List<TransducerComp> toMinimize = new ArrayList<TransducerComp>();
+      for (Map.Entry<String, TransducerComp> e : sections.entrySet()) {
+        if (!cached_sections.contains(e.getKey())) {
+          toMinimize.add(e.getValue());
+        }
+      }
+      TransducerComp.minimize(toMinimize);
+      if (cache != null) {
+        for (CompileCache.Unit unit : sections_to_store) {
+          cache.store(unit, alphabet, sections.get(unit.name));
+        }
+        System.err.println("Cache: " + cache.getHits() + " paradigms and sections reused, "
+            + cache.getMisses() + " compiled");
       }
 
     } catch (FileNotFoundException e) {
@@ -600,7 +642,7 @@ public class Compile {
    *
    * @throws javax.xml.stream.XMLStreamException
    */
-  private void procNode() throws XMLStreamException {
+  private void procNode() throws XMLStreamException, IOException {
     int eventType = reader.getEventType();
     String nombre = "";
     if (eventType == XMLStreamConstants.END_ELEMENT
@@ -623,6 +665,8 @@ public class Compile {
       procParDef();
     } else if (nombre.equals(COMPILER_DICTIONARY_ELEM)) {
       /* ignore */
+    } else if (eventType == XMLStreamConstants.END_ELEMENT && nombre.equals(COMPILER_SECTION_ELEM)) {
+      procSection();
     } else if (eventType == XMLStreamConstants.END_ELEMENT && !nombre.equals(COMPILER_PARDEF_ELEM)) {
       //do nothing
     } else if (nombre.equals(COMPILER_ALPHABET_ELEM)) {
@@ -685,9 +729,20 @@ public class Compile {
   /**
    * Parse the <pardef> elements
    */
-  private void procParDef() {
+  private void procParDef() throws XMLStreamException, IOException {
     if (reader.getEventType() != XMLStreamConstants.END_ELEMENT) {
       current_paradigm = attrib(COMPILER_N_ATTR);
+      if (cache != null) {
+        current_unit = cache.begin(current_paradigm, true, alphabet);
+        TransducerComp t = cache.load(current_unit, alphabet);
+        if (t != null) {
+          skipElement(COMPILER_PARDEF_ELEM);
+          paradigms.put(current_paradigm, t);
+          current_paradigm = "";
+          current_unit = null;
+          return;
+        }
+      }
 
       if (DEBUG)
         System.err.println("current_paradigm1 = " + current_paradigm);
@@ -699,11 +754,16 @@ public class Compile {
         if (!paradigms.get(current_paradigm).isEmpty()) {
           paradigms.get(current_paradigm).minimize();
           paradigms.get(current_paradigm).joinFinals();
+          if (current_unit != null) {
+            cache.end(current_unit, alphabet);
+            cache.store(current_unit, alphabet, paradigms.get(current_paradigm));
+          }
           current_paradigm = "";
         }
       } else {
         paradigms.put(current_paradigm, new TransducerComp());
       }
+      current_unit = null;
     }
   }
 
@@ -743,7 +803,24 @@ public class Compile {
       requireAttribute(id, COMPILER_ID_ATTR, COMPILER_SECTION_ELEM);
       requireAttribute(type_attr, COMPILER_TYPE_ATTR, COMPILER_SECTION_ELEM);
       current_section = id + "@" + type_attr;
+      if (cache != null) {
+        // entries go to the paradigm if its <pardef> wasn't closed properly
+        current_unit = cache.begin(current_section, current_paradigm.equals(""), alphabet);
+        TransducerComp t = cache.load(current_unit, alphabet);
+        if (t != null) {
+          skipElement(COMPILER_SECTION_ELEM);
+          sections.put(current_section, t);
+          cached_sections.add(current_section);
+          current_section = "";
+          current_unit = null;
+        }
+      }
     } else {
+      if (current_unit != null && current_unit.key != null) {
+        cache.end(current_unit, alphabet);
+        sections_to_store.add(current_unit);
+      }
+      current_unit = null;
       current_section = "";
     }
   }
@@ -1048,6 +1125,18 @@ public class Compile {
     }
   }
 
+  /**
+   * Skips the rest of the current element (which can't contain elements of the same name)
+   *
+   * @param elem the name of the current element
+   * @throws javax.xml.stream.XMLStreamException
+   */
+  private void skipElement(String elem) throws XMLStreamException {
+    while (!(reader.isEndElement() && reader.getLocalName().equals(elem))) {
+      reader.next();
+    }
+  }
+
   /**
    *
    * @param name the name of the current node
@@ -42,4 +42,11 @@ class CompileAlphabet extends Alphabet {
     }
     return res;
   }
+
+  /**
+   * @return the number of pairs of characters, which are numbered from 0 in the order they were first cast
+   */
+  int numberOfPairs() {
+    return spairinv.size();
+  }
 }
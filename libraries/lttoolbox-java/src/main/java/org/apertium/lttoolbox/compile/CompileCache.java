@@ -0,0 +1,363 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ * 02111-1307, USA.
+ */
+package org.apertium.lttoolbox.compile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.apertium.lttoolbox.Alphabet.IntegerPair;
+
+/**
+ * A cache of compiled paradigms and sections, so that recompiling a dictionary after
+ * a small change only rebuilds the &lt;pardef&gt;s and &lt;section&gt;s that changed
+ * (and those using a changed paradigm).
+ *
+ * Each paradigm or section is keyed by a SHA-1 of everything its transducer depends on:
+ * its content, the direction, the ACX map, the keys of the paradigms it uses and the
+ * alphabet as it was when it started (symbol pairs are numbered in the order they are
+ * first seen, so a change adding new pairs invalidates everything after it).
+ * Next to the minimized transducer, the cache keeps the pairs that compiling it added
+ * to the alphabet, so they can be added again in the same order. The result is the
+ * same .bin file as compiling without the cache.
+ *
+ * Paradigms defined twice and sections appearing twice are always compiled.
+ * Entries are never removed from the cache directory; delete it to free the space.
+ */
+class CompileCache {
+  /** Change when the compiler changes in a way that gives different transducers */
+  private static final int VERSION = 1;
+  private static final int MAGIC = 0x4c544343; // LTCC
+  private final File dir;
+  private final List<Unit> units = new ArrayList<Unit>();
+  private int nextUnit;
+  /** Key of each paradigm compiled so far, or null if it isn't cacheable */
+  private final Map<String, String> paradigmKeys = new HashMap<String, String>();
+  /** Key of the direction and ACX map */
+  private byte[] contextKey;
+  /** Chained key of the symbols and pairs of the alphabet seen so far */
+  private byte[] alphabetKey = new byte[0];
+  private int hashedSymbols;
+  private int hashedPairs;
+  private int hits;
+  private int misses;
+
+  /**
+   * A paradigm or section of the dictionary
+   */
+  static class Unit {
+    final boolean section;
+    final String name;
+    byte[] content;
+    final Set<String> paradigms = new LinkedHashSet<String>();
+    boolean cacheable = true;
+    /** Null if it must be compiled, and not stored */
+    String key;
+    /** The pairs of the alphabet added while compiling it are those from firstPair on */
+    int firstPair;
+    int lastPair;
+
+    Unit(boolean section, String name) {
+      this.section = section;
+      this.name = name;
+    }
+  }
+
+  CompileCache(File dir) {
+    this.dir = dir;
+  }
+
+  /**
+   * Reads the dictionary once to fingerprint its paradigms and sections
+   */
+  void scan(String file, String direction, Map<Integer, HashSet<Integer>> acx_map) throws IOException, XMLStreamException {
+    MessageDigest md = newDigest();
+    update(md, "v" + VERSION + " " + direction);
+    for (Map.Entry<Integer, HashSet<Integer>> e : new TreeMap<Integer, HashSet<Integer>>(acx_map).entrySet()) {
+      update(md, e.getKey() + "=" + new TreeSet<Integer>(e.getValue()));
+    }
+    contextKey = md.digest();
+
+    units.clear();
+    nextUnit = 0;
+    Map<String, Unit> seen = new HashMap<String, Unit>();
+    FileInputStream in = new FileInputStream(file);
+    try {
+      XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+      Unit unit = null;
+      String unitElement = null;
+      while (reader.hasNext()) {
+        int type = reader.next();
+        if (type == XMLStreamConstants.START_ELEMENT) {
+          String name = reader.getLocalName();
+          if (unit == null && (name.equals(Compile.COMPILER_PARDEF_ELEM) || name.equals(Compile.COMPILER_SECTION_ELEM))) {
+            boolean section = name.equals(Compile.COMPILER_SECTION_ELEM);
+            String unitName = section
+                ? attribute(reader, Compile.COMPILER_ID_ATTR) + "@" + attribute(reader, Compile.COMPILER_TYPE_ATTR)
+                : attribute(reader, Compile.COMPILER_N_ATTR);
+            unit = new Unit(section, unitName);
+            Unit other = seen.put((section ? "s " : "p ") + unitName, unit);
+            if (other != null) {
+              other.cacheable = false;
+              unit.cacheable = false;
+            }
+            units.add(unit);
+            unitElement = name;
+            md.reset();
+          }
+          if (unit != null) {
+            if (name.equals(Compile.COMPILER_PAR_ELEM)) {
+              unit.paradigms.add(attribute(reader, Compile.COMPILER_N_ATTR));
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append('<').append(name);
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+              sb.append(' ').append(reader.getAttributeLocalName(i)).append("=\"").append(reader.getAttributeValue(i)).append('"');
+            }
+            update(md, sb.append('>').toString());
+          }
+        } else if (type == XMLStreamConstants.END_ELEMENT) {
+          if (unit != null) {
+            update(md, "</" + reader.getLocalName() + ">");
+            if (reader.getLocalName().equals(unitElement)) {
+              unit.content = md.digest();
+              unit = null;
+            }
+          }
+        } else if (unit != null && (type == XMLStreamConstants.CHARACTERS || type == XMLStreamConstants.SPACE
+            || type == XMLStreamConstants.CDATA)) {
+          // no separator, as the parser may split a text in several events
+          char[] text = reader.getTextCharacters();
+          byte[] bytes = new byte[reader.getTextLength() * 2];
+          for (int i = 0; i < reader.getTextLength(); i++) {
+            char c = text[reader.getTextStart() + i];
+            bytes[2 * i] = (byte) (c >> 8);
+            bytes[2 * i + 1] = (byte) c;
+          }
+          md.update(bytes);
+        }
+      }
+      reader.close();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String attribute(XMLStreamReader reader, String name) {
+    String value = reader.getAttributeValue(reader.getNamespaceURI(), name);
+    return value == null ? "" : value;
+  }
+
+  /**
+   * Called when a paradigm or section starts, in the same order as they were scanned.
+   *
+   * @param name the name of the paradigm, or the id@type of the section
+   * @param cacheable false if it must be compiled anyway
+   * @return the unit, whose key is null if it must be compiled and not stored
+   */
+  Unit begin(String name, boolean cacheable, CompileAlphabet alphabet) {
+    if (nextUnit >= units.size() || !units.get(nextUnit).name.equals(name)) {
+      throw new IllegalStateException("The dictionary changed while compiling it");
+    }
+    Unit unit = units.get(nextUnit++);
+    updateAlphabetKey(alphabet);
+    unit.firstPair = alphabet.numberOfPairs();
+    unit.key = null;
+    if (unit.cacheable && cacheable) {
+      MessageDigest md = newDigest();
+      md.update(contextKey);
+      md.update(alphabetKey);
+      update(md, (unit.section ? "section " : "pardef ") + unit.name);
+      md.update(unit.content);
+      String key = "";
+      for (String p : unit.paradigms) {
+        key = paradigmKeys.get(p);
+        if (key == null) {
+          break;
+        }
+        update(md, p + "=" + key);
+      }
+      if (key != null) {
+        unit.key = hex(md.digest());
+      }
+    }
+    if (!unit.section) {
+      paradigmKeys.put(name, unit.key);
+    }
+    return unit;
+  }
+
+  /**
+   * Looks the unit up in the cache. If found, the pairs it added to the alphabet are added again.
+   *
+   * @return the minimized transducer, or null if it must be compiled
+   */
+  TransducerComp load(Unit unit, CompileAlphabet alphabet) {
+    if (unit.key == null) {
+      misses++;
+      return null;
+    }
+    File file = new File(dir, unit.key);
+    if (!file.exists()) {
+      misses++;
+      return null;
+    }
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+          throw new IOException("Not a cache file");
+        }
+        int n = in.readInt();
+        int[] pairs = new int[n * 2];
+        for (int i = 0; i < pairs.length; i++) {
+          pairs[i] = in.readInt();
+        }
+        TransducerComp t = TransducerComp.readCached(in);
+        // only now, so a bad file leaves the alphabet as it was
+        for (int i = 0; i < n; i++) {
+          if (alphabet.cast(pairs[2 * i], pairs[2 * i + 1]) != unit.firstPair + i) {
+            throw new IllegalStateException("Cache entry " + file + " doesn't match the alphabet");
+          }
+        }
+        hits++;
+        return t;
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      System.err.println("Warning: ignoring cache entry " + file + ": " + e);
+      misses++;
+      return null;
+    }
+  }
+
+  /**
+   * Called when a compiled paradigm or section ends, to remember which pairs it added to the alphabet
+   */
+  void end(Unit unit, CompileAlphabet alphabet) {
+    unit.lastPair = alphabet.numberOfPairs();
+  }
+
+  /**
+   * Stores the minimized transducer of a compiled unit
+   */
+  void store(Unit unit, CompileAlphabet alphabet, TransducerComp t) throws IOException {
+    if (unit.key == null) {
+      return;
+    }
+    dir.mkdirs();
+    File tmp = File.createTempFile(unit.key, ".tmp", dir);
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(unit.lastPair - unit.firstPair);
+        for (int i = unit.firstPair; i < unit.lastPair; i++) {
+          IntegerPair pair = alphabet.decode(i);
+          out.writeInt(pair.first);
+          out.writeInt(pair.second);
+        }
+        t.writeCached(out);
+      } finally {
+        out.close();
+      }
+      File file = new File(dir, unit.key);
+      if (!tmp.renameTo(file)) {
+        // another compilation may have stored it meanwhile
+        file.delete();
+        if (!tmp.renameTo(file)) {
+          throw new IOException("Cannot rename " + tmp + " to " + file);
+        }
+      }
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  int getHits() {
+    return hits;
+  }
+
+  int getMisses() {
+    return misses;
+  }
+
+  private void updateAlphabetKey(CompileAlphabet alphabet) {
+    if (hashedSymbols == alphabet.size() && hashedPairs == alphabet.numberOfPairs()) {
+      return;
+    }
+    MessageDigest md = newDigest();
+    md.update(alphabetKey);
+    StringBuilder sb = new StringBuilder();
+    for (; hashedSymbols < alphabet.size(); hashedSymbols++) {
+      sb.append(alphabet.getSymbol(-hashedSymbols - 1)).append('\n');
+    }
+    for (; hashedPairs < alphabet.numberOfPairs(); hashedPairs++) {
+      IntegerPair pair = alphabet.decode(hashedPairs);
+      sb.append(pair.first).append(',').append(pair.second).append('\n');
+    }
+    update(md, sb.toString());
+    alphabetKey = md.digest();
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void update(MessageDigest md, String s) {
+    try {
+      md.update(s.getBytes("UTF-8"));
+      md.update((byte) 0);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String hex(byte[] b) {
+    StringBuilder sb = new StringBuilder(b.length * 2);
+    for (byte x : b) {
+      sb.append(Character.forDigit((x >> 4) & 15, 16)).append(Character.forDigit(x & 15, 16));
+    }
+    return sb.toString();
+  }
+}
@@ -6,6 +6,8 @@ package org.apertium.lttoolbox.compile;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -14,6 +16,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -23,12 +26,17 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.apertium.lttoolbox.Alphabet;
 import org.apertium.lttoolbox.Alphabet.IntegerPair;
 import org.apertium.lttoolbox.Compression;
 import org.apertium.lttoolbox.LTPrint;
 import org.apertium.lttoolbox.LTTrim;
 import org.apertium.lttoolbox.collections.AbundantIntSet;
+import org.apertium.lttoolbox.collections.IntArrayIndex;
 import org.apertium.lttoolbox.collections.IntSet;
 import org.apertium.lttoolbox.collections.SlowIntegerHashSet;
 import org.apertium.lttoolbox.collections.SlowIntegerTreeSet;
@@ -73,6 +81,49 @@ public class TransducerComp extends org.apertium.lttoolbox.collections.Transduce
     determinize();
   }
 
+  /**
+   * Minimizes several transducers, at the same time in different threads.
+   * Transducers are independent, so the result is the same as minimizing them one after the other.
+   *
+   * @param transducers the transducers, which must not share states
+   */
+  public static void minimize(java.util.Collection<TransducerComp> transducers) {
+    int threads = Math.min(transducers.size(), Runtime.getRuntime().availableProcessors());
+    if (threads <= 1) {
+      for (TransducerComp t : transducers) {
+        t.minimize();
+      }
+      return;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>(transducers.size());
+      for (final TransducerComp t : transducers) {
+        futures.add(executor.submit(new Runnable() {
+          public void run() {
+            t.minimize();
+          }
+        }));
+      }
+      for (Future<?> f : futures) {
+        f.get();
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Minimization interrupted", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
   /**
    * Insertion of a single transduction, forcing create a new target
    * state
@@ -159,38 +210,6 @@ public class TransducerComp extends org.apertium.lttoolbox.collections.Transduce
     return counter;
   }
 
-  /**
-   * Computes whether two sets have elements in common
-   *
-   * @param s1 the firstInt set
-   * @param s2 the second set
-   * @return true if the sets don't trim
-   */
-  private boolean isEmptyIntersection(Set<Integer> s1, Set<Integer> s2) {
-    for (Integer i : s1) {
-      if (s2.contains(i)) {
-        return false;
-      }
-    }
-    return true;
-  }
-
-  /**
-   * Computes whether two sets have elements in common
-   *
-   * @param s1 the firstInt set
-   * @param s2 the second set
-   * @return true if the sets don't trim
-   */
-  private boolean isEmptyIntersection(Set<Integer> s1, IntSet s2) {
-    for (Integer i : s1) {
-      if (s2.contains(i)) {
-        return false;
-      }
-    }
-    return true;
-  }
-
   /**
    * set the epsilon tag
    *
@@ -201,27 +220,60 @@ public class TransducerComp extends org.apertium.lttoolbox.collections.Transduce
   }
 
   /**
-   * Determinize the transducer
+   * Determinize the transducer (subset construction).
+   *
+   * The states of the new transducer are numbered in the same order as apertium's C++ lttoolbox
+   * does (breadth first, and for each state by increasing tag), so the .bin files are the same.
+   * The transitions are copied into int arrays first, the epsilon closures are computed once per
+   * state, and the state sets are sorted int arrays.
    */
   private void determinize() {
-    List<Set<Integer>> R = new ArrayList<Set<Integer>>(2);
-    // MUST be TreeSet to retain binary compatibility:
-    R.add(new TreeSet<Integer>()); // new SlowIntegerTreeSet() giver problemer. Hvorfor???
-    R.add(new TreeSet<Integer>()); // new SlowIntegerTreeSet() giver problemer. Hvorfor???
-
-    Map<Integer, Set<Integer>> Q_prima = new HashMap<Integer, Set<Integer>>();
-    Map<Set<Integer>, Integer> Q_prima_inv = new HashMap<Set<Integer>, Integer>(); // setComparator
+    final int n = transitions.size();
+    int numberOfStates = Math.max(n, initial + 1);
+    // non-epsilon transitions of state s are tags[s][i] -> targets[s][i], and epsilon ones epsilons[s][i]
+    int[][] tags = new int[n][];
+    int[][] targets = new int[n][];
+    int[][] epsilons = new int[n][];
+    for (int s = 0; s < n; s++) {
+      Map<Integer, IntSet> place = transitions.get(s);
+      int count = 0;
+      int epsilonCount = 0;
+      for (Map.Entry<Integer, IntSet> e : place.entrySet()) {
+        if (e.getKey().equals(epsilon_tag)) {
+          epsilonCount += e.getValue().size();
+        } else {
+          count += e.getValue().size();
+        }
+      }
+      int[] tg = new int[count];
+      int[] tt = new int[count];
+      int[] ep = new int[epsilonCount];
+      count = 0;
+      epsilonCount = 0;
+      for (Map.Entry<Integer, IntSet> e : place.entrySet()) {
+        int tag = e.getKey();
+        boolean epsilon = e.getKey().equals(epsilon_tag);
+        for (Integer destination : e.getValue()) {
+          numberOfStates = Math.max(numberOfStates, destination + 1);
+          if (epsilon) {
+            ep[epsilonCount++] = destination;
+          } else {
+            tg[count] = tag;
+            tt[count++] = destination;
+          }
+        }
+      }
+      tags[s] = tg;
+      targets[s] = tt;
+      epsilons[s] = ep;
+    }
 
+    Closures closures = new Closures(epsilons, numberOfStates);
+    IntArrayIndex Q_prima = new IntArrayIndex();
     // MUST be ordered to retain binary compatibility:
     ArrayList<Map<Integer, IntSet>> transitions_prima = new ArrayList<Map<Integer, IntSet>>();
 
-    int talla_Q_prima = 0;
-
-    Set<Integer> initial_closure = closure(initial);
-    Q_prima.put(0, initial_closure);
-    Q_prima_inv.put(initial_closure, 0);
-    R.get(0).add(0);
-
+    Q_prima.add(closures.get(initial));
     int initial_prima = 0;
     AbundantIntSet finals_prima = new AbundantIntSet();
 
@@ -229,66 +281,146 @@ public class TransducerComp extends org.apertium.lttoolbox.collections.Transduce
       finals_prima.add(0);
     }
 
-    int t = 0;
-
-    while (talla_Q_prima != Q_prima.size()) {
-      talla_Q_prima = Q_prima.size();
-      R.get((t + 1) % 2).clear();
-
-      for (Integer it : R.get(t)) {
-        if (!isEmptyIntersection(Q_prima.get(it), finals)) {
+    // (tag, state) pairs reachable from a state set, tag in the upper 32 bits
+    long[] pairs = new long[256];
+    int[] set = new int[64];
+    for (int it = 0; it < Q_prima.size(); it++) {
+      int[] Q = Q_prima.get(it);
+      for (int q : Q) {
+        if (finals.contains(q)) {
           finals_prima.add(it);
+          break;
         }
+      }
 
-        Map<Integer, Set<Integer>> mymap = new TreeMap<Integer, Set<Integer>>();
-
-        for (Integer it2 : Q_prima.get(it)) {
-          if (it2 < transitions.size()) {
-            Map<Integer, IntSet> xxx = transitions.get(it2);
-            for (Integer it3 : xxx.keySet()) {
-              if (!it3.equals(epsilon_tag)) {
-                for (Integer it3p : xxx.get(it3)) {
-                  Set<Integer> c = closure(it3p);
-                  Set<Integer> zzz = mymap.get(it3);
-                  if (zzz == null) {
-                    mymap.put(it3, c);
-                  } else {
-                    zzz.addAll(c);
-                  }
-                }
-              }
-            }
-          }
+      int npairs = 0;
+      for (int q : Q) {
+        if (q >= n) {
+          continue;
         }
-        // adding new states
-        for (Map.Entry<Integer, Set<Integer>> it2 : mymap.entrySet()) {
-          if (!Q_prima_inv.containsKey(it2.getValue())) {
-            int etiq = Q_prima.size();
-            Q_prima.put(etiq, it2.getValue());
-            Q_prima_inv.put(it2.getValue(), etiq);
-            R.get((t + 1) % 2).add(Q_prima_inv.get(it2.getValue()));
-            //transitions_prima.add(new TreeMap<Integer, Set<Integer>>());
-            while (transitions_prima.size() <= etiq)
-              transitions_prima.add(new TreeMap<Integer, IntSet>());
-            transitions_prima.set(etiq, new TreeMap<Integer, IntSet>());
-
+        int[] tg = tags[q];
+        int[] tt = targets[q];
+        for (int i = 0; i < tg.length; i++) {
+          int[] c = closures.get(tt[i]);
+          if (npairs + c.length > pairs.length) {
+            pairs = copyOf(pairs, Math.max(npairs + c.length, pairs.length * 2));
           }
-
-          while (transitions_prima.size() <= it) {
-            transitions_prima.add(new TreeMap<Integer, IntSet>());
+          long tag = ((long) tg[i]) << 32;
+          for (int j = 0; j < c.length; j++) {
+            pairs[npairs++] = tag | c[j];
           }
-          transitions_prima.get(it).put(it2.getKey(), new SlowIntegerTreeSet());
-          transitions_prima.get(it).get(it2.getKey()).add(Q_prima_inv.get(it2.getValue()));
         }
       }
+      if (npairs == 0) {
+        if (it > 0) {
+          transitions_prima.add(new TreeMap<Integer, IntSet>());
+        }
+        continue;
+      }
+      Arrays.sort(pairs, 0, npairs);
 
-      t = (t + 1) % 2;
+      Map<Integer, IntSet> place = new TreeMap<Integer, IntSet>();
+      while (transitions_prima.size() < it) {
+        transitions_prima.add(new TreeMap<Integer, IntSet>());
+      }
+      transitions_prima.add(place);
+      // adding new states, by increasing tag
+      for (int i = 0; i < npairs;) {
+        int tag = (int) (pairs[i] >> 32);
+        int size = 0;
+        for (; i < npairs && (int) (pairs[i] >> 32) == tag; i++) {
+          int state = (int) pairs[i];
+          if (size == 0 || set[size - 1] != state) {
+            if (size == set.length) {
+              set = copyOf(set, size * 2);
+            }
+            set[size++] = state;
+          }
+        }
+        IntSet destination = new SlowIntegerTreeSet();
+        destination.add(Q_prima.add(set, 0, size));
+        place.put(tag, destination);
+      }
     }
 
     transitions = transitions_prima;
     finals = finals_prima;
     initial = initial_prima;
+  }
+
+  /**
+   * Epsilon closures of the states of a transducer, computed when first needed
+   */
+  private static class Closures {
+    private final int[][] epsilons;
+    private final int[][] closures;
+    /** visited[s] == stamp if s has been visited in the current closure computation */
+    private final int[] visited;
+    private int stamp;
+    private int[] stack = new int[64];
+
+    Closures(int[][] epsilons, int numberOfStates) {
+      this.epsilons = epsilons;
+      closures = new int[numberOfStates][];
+      visited = new int[numberOfStates];
+    }
 
+    /**
+     * @return the sorted set of the states epsilon-connected to the given one, including itself
+     */
+    int[] get(int state) {
+      int[] c = closures[state];
+      if (c != null) {
+        return c;
+      }
+      if (state >= epsilons.length || epsilons[state].length == 0) {
+        c = new int[] {state};
+      } else {
+        stamp++;
+        visited[state] = stamp;
+        stack[0] = state;
+        int top = 1;
+        int size = 0;
+        c = new int[8];
+        while (top > 0) {
+          int s = stack[--top];
+          if (size == c.length) {
+            c = copyOf(c, size * 2);
+          }
+          c[size++] = s;
+          if (s < epsilons.length) {
+            for (int e : epsilons[s]) {
+              if (visited[e] != stamp) {
+                visited[e] = stamp;
+                if (top == stack.length) {
+                  stack = copyOf(stack, top * 2);
+                }
+                stack[top++] = e;
+              }
+            }
+          }
+        }
+        c = copyOf(c, size);
+        Arrays.sort(c);
+      }
+      closures[state] = c;
+      return c;
+    }
+  }
+
+  /**
+   * Arrays.copyOf(), which isn't available before Android API 9
+   */
+  private static int[] copyOf(int[] a, int length) {
+    int[] copy = new int[length];
+    System.arraycopy(a, 0, copy, 0, Math.min(a.length, length));
+    return copy;
+  }
+
+  private static long[] copyOf(long[] a, int length) {
+    long[] copy = new long[length];
+    System.arraycopy(a, 0, copy, 0, Math.min(a.length, length));
+    return copy;
   }
 
   /**
@@ -440,6 +572,68 @@ public class TransducerComp extends org.apertium.lttoolbox.collections.Transduce
   }
 
 
+  /**
+   * Writes the transducer as it is, for CompileCache. Unlike write(), the state numbers and
+   * the number of final states are kept exactly, so reading it gives back the same transducer.
+   */
+  void writeCached(DataOutputStream out) throws IOException {
+    out.writeInt(initial);
+    out.writeInt(epsilon_tag);
+    out.writeInt(finals.size());
+    int count = 0;
+    for (int it = finals.next(0); it >= 0; it = finals.next(it + 1)) {
+      count++;
+    }
+    out.writeInt(count);
+    for (int it = finals.next(0); it >= 0; it = finals.next(it + 1)) {
+      out.writeInt(it);
+    }
+    out.writeInt(transitions.size());
+    for (Map<Integer, IntSet> place : transitions) {
+      out.writeInt(place.size());
+      for (Map.Entry<Integer, IntSet> e : place.entrySet()) {
+        out.writeInt(e.getKey());
+        out.writeInt(e.getValue().size());
+        for (Integer destination : e.getValue()) {
+          out.writeInt(destination);
+        }
+      }
+    }
+  }
+
+  static TransducerComp readCached(DataInputStream in) throws IOException {
+    TransducerComp t = new TransducerComp();
+    t.initial = in.readInt();
+    t.epsilon_tag = in.readInt();
+    int size = in.readInt();
+    int first = -1;
+    for (int i = in.readInt(); i > 0; i--) {
+      int state = in.readInt();
+      t.finals.add(state);
+      if (first == -1) {
+        first = state;
+      }
+    }
+    // AbundantIntSet counts states added twice twice, and write() depends on it
+    while (t.finals.size() < size) {
+      t.finals.add(first);
+    }
+    t.transitions.clear();
+    for (int n = in.readInt(); n > 0; n--) {
+      Map<Integer, IntSet> place = new TreeMap<Integer, IntSet>();
+      for (int i = in.readInt(); i > 0; i--) {
+        int tag = in.readInt();
+        IntSet destinations = new SlowIntegerTreeSet();
+        for (int j = in.readInt(); j > 0; j--) {
+          destinations.add(in.readInt());
+        }
+        place.put(tag, destinations);
+      }
+      t.transitions.add(place);
+    }
+    return t;
+  }
+
   /**
    * Compare the tranducer with another one
    *
@@ -116,6 +116,13 @@ public class BasicFSTProcessor {
       System.err.println("FSTProcessor load(" + input + " " + filename);
       System.err.println("alphabet = " + alphabet.toString().replace(',', '\n'));
     }
+    // the file itself, to know if the mapped copies of its transducers are up to date
+    File sourceFile = null;
+    if (TransducerExe.MAPPED_FORMAT && filename != null) {
+      sourceFile = IOUtils.openFile(filename);
+      if (!sourceFile.isFile())
+        sourceFile = null;
+    }
     //loading the sections transducers
     len = Compression.multibyte_read(input); // xx  (2 for eo-en.dix)
     while (len > 0) {
@@ -129,13 +136,13 @@ public class BasicFSTProcessor {
       }
       File cacheFile = null;
       //System.out.println("reading : "+name);
-      if (IOUtils.cacheDir != null && filename != null) {
+      if (IOUtils.getCacheDir() != null && filename != null) {
         // Try to load make cached a memmapped transducer cache file
         String fileid = new File(filename).getAbsolutePath().replace(File.separatorChar, '_').replace('.', '_');
-        cacheFile = new File(IOUtils.cacheDir, fileid + "@" + input.position());
+        cacheFile = new File(IOUtils.getCacheDir(), fileid + "@" + input.position());
         //System.out.println("cachedFile = " + cacheFile);
       }
-      tx.read(input, alphabet, cacheFile);
+      tx.read(input, alphabet, cacheFile, sourceFile);
       len--;
       //System.out.println(len);
     }
@@ -70,8 +70,20 @@ import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 import org.apertium.utils.IOUtils;
+import org.apertium.utils.LookupCache;
 
-public class FSTProcessor extends BasicFSTProcessor {
+/**
+ * A loaded dictionary, and the algorithms to process text with it.
+ *
+ * The dictionary is only modified by load() and the init and set methods, so once it is ready an FSTProcessor can
+ * be used by several threads at a time. Each call processing a stream (analysis(), generation()...) runs in its own
+ * session, a shallow copy of the processor with its own input buffer and blank queue.
+ */
+public class FSTProcessor extends BasicFSTProcessor implements Cloneable {
+  /**
+   * True for the copies made by newSession()
+   */
+  private boolean session = false;
   private boolean isLastBlankTM;
   private boolean showControlSymbols = false;
   private boolean biltransSurfaceForms;
@@ -114,7 +126,11 @@ public class FSTProcessor extends BasicFSTProcessor {
    * @param dictionaryCase the dictionaryCase to set
    */
   public void setDictionaryCase(boolean dictionaryCase) {
-    this.dictionaryCase = dictionaryCase;
+    if (this.dictionaryCase != dictionaryCase) {
+      this.dictionaryCase = dictionaryCase;
+      biltransCache.clear();
+      analysisCache.clear();
+    }
   }
 
   /**
@@ -177,6 +193,25 @@ public class FSTProcessor extends BasicFSTProcessor {
    */
   private boolean nullFlush = false;
   private ArrayList<String> tmNumbers;
+  public static final int DEFAULT_BILTRANS_CACHE_SIZE = 10000;
+  /**
+   * Results of biltrans(), biltransWithQueue() and biltransWithoutQueue(), as transfer looks up the same words
+   * (mostly function words) again and again. Shared by all sessions. Keys are prefixed with a char telling
+   * the method and with_delim
+   */
+  private final LookupCache<String, Object> biltransCache = new LookupCache<String, Object>(DEFAULT_BILTRANS_CACHE_SIZE);
+  /**
+   * Number of words whose analysis new processors keep, see setAnalysisCacheSize(). 0 (the default) disables it.
+   */
+  public static int ANALYSIS_CACHE_SIZE = 0;
+  /** Longer words are always analysed, as they are rarely repeated */
+  private static final int MAX_CACHED_WORD_LENGTH = 64;
+  /**
+   * What analysis() printed for a word, keyed by the word followed by the character after it. Shared by all
+   * sessions. The output depends only on these characters (including their case), as the state is reset after
+   * each word, so a repeated word is printed without stepping through the transducer again.
+   */
+  private final LookupCache<String, String> analysisCache = new LookupCache<String, String>(ANALYSIS_CACHE_SIZE);
 
   public FSTProcessor() {
     // escaped_chars chars
@@ -197,6 +232,24 @@ public class FSTProcessor extends BasicFSTProcessor {
     // JACOB initial_state.poolInit();
   }
 
+  /**
+   * Makes a copy of this processor sharing the dictionary, but with its own state for reading a stream
+   */
+  private FSTProcessor newSession() {
+    try {
+      FSTProcessor s = (FSTProcessor) clone();
+      s.session = true;
+      s.blankqueue = new LinkedList<String>();
+      s.input_buffer = new Buffer(2048);
+      s.outOfWord = false;
+      s.isLastBlankTM = false;
+      s.tmNumbers = new ArrayList<String>();
+      return s;
+    } catch (CloneNotSupportedException e) {
+      throw new InternalError(e.toString());
+    }
+  }
+
   private void streamError() {
     throw new RuntimeException("Error: Malformed input stream.");
   }
@@ -646,12 +699,18 @@ public class FSTProcessor extends BasicFSTProcessor {
   public void initAnalysis() {
     calc_initial_state();
     classifyFinals();
+    // Analyses cached before are only wrong if symbols are hidden now that weren't then
+    boolean changed = false;
     if (do_flagMatch) {
+      changed = flagMatch_symbolToVarVal == null;
       initFlagMatch();
     }
 
     if (!showControlSymbols) {
-      hideControlSymbols();
+      changed |= hideControlSymbols();
+    }
+    if (changed) {
+      analysisCache.clear();
     }
   }
   private boolean do_decomposition = false;
@@ -660,17 +719,24 @@ public class FSTProcessor extends BasicFSTProcessor {
   int compound_max_elements = 4; //Integer.MAX_VALUE-1;// hard coded for now, but there might come a switch one day
 
   public void initDecomposition() {
-    do_decomposition = true;
+    if (!do_decomposition) {
+      do_decomposition = true;
+      analysisCache.clear();
+    }
     initAnalysis();
     initDecompositionSymbols();
 
     //System.err.println("initial_compounding_state = " + initial_compounding_state.toString());
-    if (!showControlSymbols) {
-      hideControlSymbols();
+    if (!showControlSymbols && hideControlSymbols()) {
+      analysisCache.clear();
     }
   }
 
-  private void hideControlSymbols() {
+  /**
+   * @return true if any symbol was hidden
+   */
+  private boolean hideControlSymbols() {
+    boolean hidden = false;
     for (String symbol : alphabet.getFlagMatchSymbols()) {
       // Find symbols starting with "<@" (or "<:")
       if ("".equals(symbol)) {
@@ -680,9 +746,11 @@ public class FSTProcessor extends BasicFSTProcessor {
       if (start == '@' || start == ':') {
         int symboli = alphabet.cast(symbol);
         alphabet.setSymbol(symboli, "");
+        hidden = true;
         //System.err.println("Skjuler symbol = " + symbol);
       }
     }
+    return hidden;
   }
   private boolean do_flagMatch = false;
   int[] flagMatch_symbolToVarVal;
@@ -765,9 +833,10 @@ public class FSTProcessor extends BasicFSTProcessor {
       if (DEBUG) {
         System.err.println("deleteStatesWithConflictingFlags: " + current_state.state.get(i));
       }
-      List<Integer> seq = current_state.state.get(i).sequence;
-      for (Integer symbolii : seq) {
-        int symboli = symbolii.intValue();
+      State.TNodeState state_i = current_state.state.get(i);
+      int[] seq = state_i.sequence;
+      for (int j = 0, limit = state_i.sequence_length; j < limit; j++) {
+        int symboli = seq[j];
         if (symboli >= 0) {
           continue;
         }
@@ -822,12 +891,45 @@ public class FSTProcessor extends BasicFSTProcessor {
 
   public void initBiltrans() {
     initGeneration();
+    biltransCache.clear();
+  }
+
+  /**
+   * Sets how many results of bilingual lookups are kept. 0 disables the cache.
+   */
+  public void setBiltransCacheSize(int entries) {
+    biltransCache.setCapacity(entries);
+  }
+
+  /**
+   * The cache of bilingual lookups, to see how well it is doing
+   */
+  public LookupCache<String, Object> getBiltransCache() {
+    return biltransCache;
+  }
+
+  /**
+   * Sets how many analysed words are kept. 0 disables the cache.
+   */
+  public void setAnalysisCacheSize(int entries) {
+    analysisCache.setCapacity(entries);
+  }
+
+  /**
+   * The cache of analysed words, to see how well it is doing
+   */
+  public LookupCache<String, String> getAnalysisCache() {
+    return analysisCache;
   }
 
   /*
    * private final char charAt(String s, int index) { return s.charAt(index); }
    */
-  public synchronized void analysis(Reader input, Appendable output) throws IOException {
+  public void analysis(Reader input, Appendable output) throws IOException {
+    if (!session) {
+      newSession().analysis(input, output);
+      return;
+    }
     if (getNullFlush()) {
       analysis_wrapper_null_flush(input, output);
     }
@@ -843,8 +945,45 @@ public class FSTProcessor extends BasicFSTProcessor {
      * System.err.println("\nall_finals = " + all_finals); System.err.println("\ninconditional = " + inconditional);
      * System.err.println("\npostblank = " + postblank); System.err.println("\npreblank = " + preblank);
      */
+    boolean useCache = analysisCache.isEnabled();
+    boolean lookedUp = false; // the word starting at val has already been looked up in the cache
+    String recordKey = null; // while analysing a word that wasn't in the cache, its key
+    int recordStart = 0; // ... and its start in input_buffer
+    StringBuilder recordOutput = new StringBuilder(100); // ... and what has been printed for it
+    Appendable realOutput = output;
     char val;
     while ((val = readAnalysis(input)) != (char) 0) {
+      if (useCache && sf.length() == 0 && isAlphabetic(val)) {
+        if (lookedUp) {
+          lookedUp = false;
+        } else {
+          // read the word and the character after it, and look them up
+          input_buffer.back(1);
+          int start = input_buffer.getPos();
+          StringBuilder key = new StringBuilder(16);
+          char next = readAnalysis(input);
+          do {
+            key.append(next);
+          } while ((next = readAnalysis(input)) != (char) 0 && isAlphabetic(next) && key.length() < MAX_CACHED_WORD_LENGTH);
+          if (next != (char) 0 && !isAlphabetic(next)) {
+            key.append(next);
+            String cached = analysisCache.get(key.toString());
+            if (cached != null) {
+              output.append(cached);
+              input_buffer.back(1);
+              continue;
+            }
+            recordKey = key.toString();
+            recordStart = start;
+            output = recordOutput;
+          }
+          // analyse it as usual
+          input_buffer.setPos(start);
+          lookedUp = true;
+          continue;
+        }
+      }
+
       if (current_state.isFinal()) {
         if (current_state.isFinal(inconditional)) {
           boolean firstupper = !dictionaryCase && Alphabet.isUpperCase(sf.charAt(0));
@@ -916,6 +1055,13 @@ public class FSTProcessor extends BasicFSTProcessor {
       if (current_state.size() != 0) {
 
         sf.append(alphabet.getSymbol(val));
+        if (recordKey != null && input_buffer.diffPrevPos(recordStart) >= recordKey.length()) {
+          // a multiword, which depends on more than the word
+          realOutput.append(recordOutput);
+          recordOutput.setLength(0);
+          output = realOutput;
+          recordKey = null;
+        }
 
       } else {
         if (!isAlphabetic(val) && sf.length() == 0) {
@@ -998,9 +1144,24 @@ public class FSTProcessor extends BasicFSTProcessor {
         lf.setLength(0);
         sf.setLength(0);
         last_incond = last_postblank = last_preblank = false;
+
+        if (recordKey != null) {
+          // the word is done. Keep what was printed if exactly the word was consumed
+          if (input_buffer.diffPrevPos(recordStart) == recordKey.length() - 1) {
+            analysisCache.put(recordKey, recordOutput.toString());
+          }
+          realOutput.append(recordOutput);
+          recordOutput.setLength(0);
+          output = realOutput;
+          recordKey = null;
+        }
       }
     }
 
+    if (recordKey != null) {
+      realOutput.append(recordOutput);
+      output = realOutput;
+    }
     // print remaining blanks
     flushBlanks(output);
   }
@@ -1314,7 +1475,11 @@ public class FSTProcessor extends BasicFSTProcessor {
     flushBlanks(output);
   }
 
-  public synchronized void generation(Reader input, Appendable output, GenerationMode mode) throws IOException {
+  public void generation(Reader input, Appendable output, GenerationMode mode) throws IOException {
+    if (!session) {
+      newSession().generation(input, output, mode);
+      return;
+    }
     if (getNullFlush()) {
       generation_wrapper_null_flush(input, output, mode);
     }
@@ -1393,7 +1558,11 @@ public class FSTProcessor extends BasicFSTProcessor {
     }
   }
 
-  public synchronized void postgeneration(Reader input, Appendable output) throws IOException {
+  public void postgeneration(Reader input, Appendable output) throws IOException {
+    if (!session) {
+      newSession().postgeneration(input, output);
+      return;
+    }
     if (getNullFlush()) {
       postgeneration_wrapper_null_flush(input, output);
     }
@@ -1510,7 +1679,11 @@ public class FSTProcessor extends BasicFSTProcessor {
     flushBlanks(output);
   }
 
-  public synchronized void transliteration(Reader input, Appendable output) throws IOException {
+  public void transliteration(Reader input, Appendable output) throws IOException {
+    if (!session) {
+      newSession().transliteration(input, output);
+      return;
+    }
     if (getNullFlush()) {
       transliteration_wrapper_null_flush(input, output);
     }
@@ -1582,7 +1755,19 @@ public class FSTProcessor extends BasicFSTProcessor {
     flushBlanks(output);
   }
 
-  public synchronized String biltrans(String input_word, boolean with_delim) {
+  public String biltrans(String input_word, boolean with_delim) {
+    if (!biltransCache.isEnabled())
+      return biltransUncached(input_word, with_delim);
+    String key = (with_delim ? 'B' : 'b') + input_word;
+    String result = (String) biltransCache.get(key);
+    if (result == null) {
+      result = biltransUncached(input_word, with_delim);
+      biltransCache.put(key, result);
+    }
+    return result;
+  }
+
+  private String biltransUncached(String input_word, boolean with_delim) {
     State current_state = initial_state.copy();
     StringBuilder result = new StringBuilder("");
     int start_point = 1;
@@ -1702,7 +1887,11 @@ public class FSTProcessor extends BasicFSTProcessor {
    * @param output ^Jeg<prn><p1><mf><sg><nom>/Prpers<prn><p1><mf><sg><nom>$ ^ha<vblex><pres>/have<vbhaver><pres>$ ^ikke<adv>/not<adv>$
    * @throws IOException
    */
-  public synchronized void bilingual(Reader input, Appendable output) throws IOException {
+  public void bilingual(Reader input, Appendable output) throws IOException {
+    if (!session) {
+      newSession().bilingual(input, output);
+      return;
+    }
     /* XXX TODO
      * if (getNullFlush()) {
      * transliteration_wrapper_null_flush(input, output);
@@ -1836,7 +2025,20 @@ public class FSTProcessor extends BasicFSTProcessor {
     flushBlanks(output);
   }
 
-  public synchronized Pair<String, Integer> biltransWithQueue(String input_word, boolean with_delim) {
+  public Pair<String, Integer> biltransWithQueue(String input_word, boolean with_delim) {
+    if (!biltransCache.isEnabled())
+      return biltransWithQueueUncached(input_word, with_delim);
+    String key = (with_delim ? 'Q' : 'q') + input_word;
+    @SuppressWarnings("unchecked")
+    Pair<String, Integer> result = (Pair<String, Integer>) biltransCache.get(key);
+    if (result == null) {
+      result = biltransWithQueueUncached(input_word, with_delim);
+      biltransCache.put(key, result);
+    }
+    return new Pair<String, Integer>(result.first, result.second); // Pair is mutable
+  }
+
+  private Pair<String, Integer> biltransWithQueueUncached(String input_word, boolean with_delim) {
     State current_state = initial_state.copy();
     StringBuilder result = new StringBuilder();
     StringBuilder queue = new StringBuilder();
@@ -1964,7 +2166,19 @@ public class FSTProcessor extends BasicFSTProcessor {
     }
   }
 
-  public synchronized String biltransWithoutQueue(String input_word, boolean with_delim) {
+  public String biltransWithoutQueue(String input_word, boolean with_delim) {
+    if (!biltransCache.isEnabled())
+      return biltransWithoutQueueUncached(input_word, with_delim);
+    String key = (with_delim ? 'W' : 'w') + input_word;
+    String result = (String) biltransCache.get(key);
+    if (result == null) {
+      result = biltransWithoutQueueUncached(input_word, with_delim);
+      biltransCache.put(key, result);
+    }
+    return result;
+  }
+
+  private String biltransWithoutQueueUncached(String input_word, boolean with_delim) {
     State current_state = initial_state.copy();
     StringBuilder result = new StringBuilder("");
     int start_point = 1;
@@ -2100,6 +2314,10 @@ public class FSTProcessor extends BasicFSTProcessor {
   }
 
   public void SAO(Reader input, Appendable output) throws IOException {
+    if (!session) {
+      newSession().SAO(input, output);
+      return;
+    }
     boolean last_incond = false;
     boolean last_postblank = false;
     State current_state = initial_state.copy();
@@ -2107,7 +2325,7 @@ public class FSTProcessor extends BasicFSTProcessor {
     String sf = "";
     int last = 0;
 
-    escaped_chars.clear();
+    escaped_chars = new SetOfCharacters(); // the session's own, as the processor's is shared
     escaped_chars.add('\\');
     escaped_chars.add(('<'));
     escaped_chars.add(('>'));
@@ -2224,14 +2442,23 @@ public class FSTProcessor extends BasicFSTProcessor {
 
   public void setBiltransSurfaceForms(boolean value) {
     biltransSurfaceForms = value;
+    biltransCache.clear();
   }
 
   public void setCaseSensitiveMode(boolean value) {
-    caseSensitive = value;
+    if (caseSensitive != value) {
+      caseSensitive = value;
+      biltransCache.clear();
+      analysisCache.clear();
+    }
   }
 
   public void setFlagMatchMode(boolean b) {
-    do_flagMatch = b;
+    if (do_flagMatch != b) {
+      do_flagMatch = b;
+      biltransCache.clear();
+      analysisCache.clear();
+    }
   }
 
   public void setNullFlush(boolean value) {
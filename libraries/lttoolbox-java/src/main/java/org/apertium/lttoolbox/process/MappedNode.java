@@ -0,0 +1,45 @@
+package org.apertium.lttoolbox.process;
+
+/*
+ * This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; if not, write to the Free
+ * Software Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+import java.nio.IntBuffer;
+
+/**
+ * A node whose transitions are read in place from the memory mapped file of a transducer
+ * (see TransducerExe.MAPPED_FORMAT). The heap only holds where they start.
+ * Each transition is three consecutive ints: input symbol, output symbol and destination.
+ */
+class MappedNode extends Node {
+  private final IntBuffer transitions;
+  private final int first;
+
+  MappedNode(IntBuffer transitions, int first, int size) {
+    super(size);
+    this.transitions = transitions;
+    this.first = first;
+  }
+
+  @Override
+  int inputSymbol(int t) {
+    return transitions.get(first + 3 * t);
+  }
+
+  @Override
+  int outputSymbol(int t) {
+    return transitions.get(first + 3 * t + 1);
+  }
+
+  @Override
+  int nodeDest(int t) {
+    return transitions.get(first + 3 * t + 2);
+  }
+}
@@ -5,31 +5,59 @@
 package org.apertium.lttoolbox.process;
 
 import java.util.Arrays;
-import java.util.HashSet;
 
 /**
  *
  * @author Jacob Nordfalk
  */
 public final class SetOfCharacters {
-  /** Limit on when to fall back on a slower HashSet<Character> */
+  /** Limit on when to fall back on a slower binary search in otherChars */
   private static final int LIMIT = 255;
   final boolean[] set = new boolean[LIMIT];
-  HashSet<Character> otherChars = new HashSet<Character>();
+  /** Characters above the limit, sorted, in the first otherCount positions */
+  private char[] otherChars = new char[4];
+  private int otherCount;
 
   // Probe
   //public static int max_encountered = 0;
   final public void add(char c) {
     //max_encountered = Math.max(max_encountered, c);
-    if (c < LIMIT)
+    if (c < LIMIT) {
       set[c] = true;
-    else
-      otherChars.add(c);
+      return;
+    }
+    int pos = indexOf(c);
+    if (pos >= 0)
+      return;
+    pos = -pos - 1;
+    if (otherCount == otherChars.length) {
+      char[] grown = new char[otherCount * 2];
+      System.arraycopy(otherChars, 0, grown, 0, otherCount);
+      otherChars = grown;
+    }
+    System.arraycopy(otherChars, pos, otherChars, pos + 1, otherCount - pos);
+    otherChars[pos] = c;
+    otherCount++;
   }
 
   final void clear() {
     Arrays.fill(set, false);
-    otherChars.clear();
+    otherCount = 0;
+  }
+
+  /** Binary search in otherChars, returning -(insertion point) - 1 if c is not there */
+  private int indexOf(char c) {
+    int low = 0, high = otherCount - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (otherChars[mid] < c)
+        low = mid + 1;
+      else if (otherChars[mid] > c)
+        high = mid - 1;
+      else
+        return mid;
+    }
+    return -low - 1;
   }
 
   public final boolean contains(char c) {
@@ -38,6 +66,17 @@ public final class SetOfCharacters {
     if (c < LIMIT)
       return set[c];
     //if (c>max_encountered) return false;
-    return otherChars.contains(c);
+    return otherCount > 0 && indexOf(c) >= 0;
+  }
+
+  /**
+   * Whether an alphabet symbol is in the set. Tags, which are negative, never are.
+   */
+  public final boolean contains(int symbol) {
+    if (symbol < 0)
+      return false;
+    if (symbol < LIMIT)
+      return set[symbol];
+    return symbol <= Character.MAX_VALUE && otherCount > 0 && indexOf((char) symbol) >= 0;
   }
 }
@@ -20,9 +20,9 @@ import org.apertium.lttoolbox.Alphabet;
 import java.util.List;
 import java.util.Set;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.LinkedList;
-import org.apertium.lttoolbox.process.Node.Transition;
 
 /**
  * Class to represent the set of alive states of a transducer
@@ -60,24 +60,27 @@ public class State {
     /**
      * Which transducer does this node belong to
      */
-    final TransducerExe transducer;
+    TransducerExe transducer;
     /**
      * Which node in the transducer we are currently visiting
      */
     /**
-     * The list of output symbols we produced while getting to this node
+     * The output symbols we produced while getting to this node, in the first sequence_length positions.
+     * The array is reused when the TNodeState is pooled, so stepping doesn't allocate
      */
-    ArrayList<Integer> sequence;
+    int[] sequence;
+    int sequence_length;
     /**
      * caseWasChanged means input was lowercased - thus we should consider uppercasing the output symbols before
      * outputting
      */
     boolean caseWasChanged;
 
-    public TNodeState(TransducerExe transducer, int where_node_id, ArrayList<Integer> sequence, boolean caseWasChanged) {
+    public TNodeState(TransducerExe transducer, int where_node_id, int[] sequence, int sequence_length, boolean caseWasChanged) {
       this.transducer = transducer;
       this.where_node_id = where_node_id;
       this.sequence = sequence;
+      this.sequence_length = sequence_length;
       this.caseWasChanged = caseWasChanged;
     }
 
@@ -89,15 +92,52 @@ public class State {
      * special constructor to signal that the sequence list must be initialized
      */
     TNodeState(TransducerExe transducer, boolean b) {
-      sequence = new ArrayList<Integer>();
+      sequence = new int[INITAL_SEQUENCE_ALLOCATION];
       this.transducer = transducer;
     }
 
     TNodeState(TransducerExe transducer, int sequence_size) {
-      sequence = new ArrayList<Integer>(sequence_size);
+      sequence = new int[sequence_size];
       this.transducer = transducer;
     }
 
+    /**
+     * Replaces the sequence with a copy of the one of other, leaving room for one more symbol
+     */
+    final void copySequence(TNodeState other) {
+      int length = other.sequence_length;
+      if (sequence.length <= length) {
+        sequence = new int[Math.max(length + 1, sequence.length * 2)];
+      }
+      System.arraycopy(other.sequence, 0, sequence, 0, length);
+      sequence_length = length;
+    }
+
+    final void addSymbol(int symbol) {
+      if (sequence_length == sequence.length) {
+        int[] grown = new int[Math.max(sequence_length * 2, 4)];
+        System.arraycopy(sequence, 0, grown, 0, sequence_length);
+        sequence = grown;
+      }
+      sequence[sequence_length++] = symbol;
+    }
+
+    final boolean sequenceContains(int symbol) {
+      for (int i = sequence_length - 1; i >= 0; i--) {
+        if (sequence[i] == symbol) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public String toString() {
+      int[] symbols = new int[sequence_length];
+      System.arraycopy(sequence, 0, symbols, 0, sequence_length);
+      return where_node_id + Arrays.toString(symbols);
+    }
+
     final void consistency_check() {
     }
 
@@ -105,26 +145,38 @@ public class State {
       // return transducer.getFinals().contains(where);
       return transducer.isFinal(where_node_id);
     }
+  }
 
-    void nodeStatePool_release() {
-      transducer.nodeStatePool_release(this);
-    }
-
-    TNodeState nodeStatePool_get() {
-      TNodeState nn = transducer.nodeStatePool_get();
-      //nn.transducer = transducer;
-      return nn;
+  ArrayList<TNodeState> state = new ArrayList<TNodeState>(50);
+  /**
+   * Pool of TNodeState (with their sequence arrays), for efficiency. It belongs to the State and not to the
+   * transducers, so that States used in different threads don't share anything mutable
+   */
+  private final ArrayList<TNodeState> nodeStatePool = REUSE_OBJECTS ? new ArrayList<TNodeState>(50) : null;
+
+  private TNodeState nodeStatePool_get(TransducerExe transducer) {
+    int size = nodeStatePool.size();
+    TNodeState tn;
+    if (size != 0) {
+      tn = nodeStatePool.remove(size - 1);
+      tn.transducer = transducer;
+      tn.sequence_length = 0;
+    } else {
+      tn = new TNodeState(transducer, INITAL_SEQUENCE_ALLOCATION);
     }
+    return tn;
   }
 
-  ArrayList<TNodeState> state = new ArrayList<TNodeState>(50);
+  private void nodeStatePool_release(TNodeState state_i) {
+    nodeStatePool.add(state_i);
+  }
 
   State copy(State other_state) {
 
     //System.err.println("this.state = " + this.state);
     if (REUSE_OBJECTS) {
       for (int i = state.size(); i > 0;) {
-        state.get(--i).nodeStatePool_release();
+        nodeStatePool_release(state.get(--i));
       }
     }
     state.clear();
@@ -133,17 +185,19 @@ public class State {
     for (int i = 0, limit = other_states.size(); i != limit; i++) {
       TNodeState tn = other_states.get(i);
       if (REUSE_OBJECTS) {
-        TNodeState copy = tn.nodeStatePool_get();
+        TNodeState copy = nodeStatePool_get(tn.transducer);
         //copy.transducer = tn.transducer;
         copy.caseWasChanged = tn.caseWasChanged;
-        copy.sequence.addAll(tn.sequence);
+        copy.copySequence(tn);
         copy.where_node_id = tn.where_node_id;
         copy.consistency_check();
         tn.consistency_check();
 
         this.state.add(copy);
       } else {
-        this.state.add(new TNodeState(tn.transducer, tn.where_node_id, new ArrayList<Integer>(tn.sequence), tn.caseWasChanged));
+        int[] sequence = new int[tn.sequence.length];
+        System.arraycopy(tn.sequence, 0, sequence, 0, tn.sequence_length);
+        this.state.add(new TNodeState(tn.transducer, tn.where_node_id, sequence, tn.sequence_length, tn.caseWasChanged));
       }
     }
     return this;
@@ -219,33 +273,20 @@ public class State {
 
     for (int i = 0, limit = state.size(); i != limit; i++) {
       TNodeState state_i = state.get(i);
-      /*
-       * Transition it = state_i.where.transitions_get(input);
-       * while (it != null) {
-       * TNodeState tn = REUSE_OBJECTS?nodeStatePool_get(): new TNodeState(state_i.sequence.size()+1);
-       * tn.where = it.node_dest;
-       * tn.caseWasChanged = state_i.caseWasChanged;
-       * tn.sequence.addAll(state_i.sequence);
-       * tn.sequence.add(it.output_symbol);
-       * new_state.add(tn);
-       * it = it.next;
-       * }
-       */
-      Transition ti = Node.transitions_getIterator(state_i.transducer, state_i.where_node_id, input);
-      while (ti != null) {
-        TNodeState tn = REUSE_OBJECTS ? state_i.nodeStatePool_get() : new TNodeState(state_i.transducer, state_i.sequence.size() + 1);
+      Node node = state_i.transducer.getNode(state_i.where_node_id);
+      for (int t = node.firstTransition(input); t < node.size && node.inputSymbol(t) == input; t++) {
+        TNodeState tn = REUSE_OBJECTS ? nodeStatePool_get(state_i.transducer) : new TNodeState(state_i.transducer, state_i.sequence_length + 1);
         //tn.transducer = state_i.transducer;
-        tn.where_node_id = ti.node_dest;
+        tn.where_node_id = node.nodeDest(t);
         tn.consistency_check();
         tn.caseWasChanged = state_i.caseWasChanged;
-        tn.sequence.addAll(state_i.sequence);
-        tn.sequence.add(ti.output_symbol);
+        tn.copySequence(state_i);
+        tn.addSymbol(node.outputSymbol(t));
         new_state.add(tn);
-        ti = ti.next;
       }
 
       if (REUSE_OBJECTS)
-        state_i.nodeStatePool_release();
+        nodeStatePool_release(state_i);
     }
     if (REUSE_OBJECTS)
       reusable_state = state;
@@ -271,35 +312,32 @@ public class State {
     for (int i = 0, limit = state.size(); i != limit; i++) {
       TNodeState state_i = state.get(i);
 
-      Transition ti = Node.transitions_getIterator(state_i.transducer, state_i.where_node_id, input);
-      while (ti != null) {
-        TNodeState tn = REUSE_OBJECTS ? state_i.nodeStatePool_get() : new TNodeState(state_i.transducer, state_i.sequence.size() + 1);
+      Node node = state_i.transducer.getNode(state_i.where_node_id);
+      for (int t = node.firstTransition(input); t < node.size && node.inputSymbol(t) == input; t++) {
+        TNodeState tn = REUSE_OBJECTS ? nodeStatePool_get(state_i.transducer) : new TNodeState(state_i.transducer, state_i.sequence_length + 1);
         //tn.transducer = state_i.transducer;
-        tn.where_node_id = ti.node_dest;
+        tn.where_node_id = node.nodeDest(t);
         tn.consistency_check();
         tn.caseWasChanged = state_i.caseWasChanged;
-        tn.sequence.addAll(state_i.sequence);
-        tn.sequence.add(ti.output_symbol);
+        tn.copySequence(state_i);
+        tn.addSymbol(node.outputSymbol(t));
         new_state.add(tn);
-        ti = ti.next;
       } //XXX no pool now: pool.release(state.get(i).sequence);
 
       // try also apply lowerCasedInput
-      ti = Node.transitions_getIterator(state_i.transducer, state_i.where_node_id, lowerCasedInput);
-      while (ti != null) {
-        TNodeState tn = REUSE_OBJECTS ? state_i.nodeStatePool_get() : new TNodeState(state_i.transducer, state_i.sequence.size() + 1);
+      for (int t = node.firstTransition(lowerCasedInput); t < node.size && node.inputSymbol(t) == lowerCasedInput; t++) {
+        TNodeState tn = REUSE_OBJECTS ? nodeStatePool_get(state_i.transducer) : new TNodeState(state_i.transducer, state_i.sequence_length + 1);
         //tn.transducer = state_i.transducer;
-        tn.where_node_id = ti.node_dest;
+        tn.where_node_id = node.nodeDest(t);
         tn.consistency_check();
         tn.caseWasChanged = true; // lowercased version of input
-        tn.sequence.addAll(state_i.sequence);
-        tn.sequence.add(ti.output_symbol);
+        tn.copySequence(state_i);
+        tn.addSymbol(node.outputSymbol(t));
         new_state.add(tn);
-        ti = ti.next;
       }
 
       if (REUSE_OBJECTS)
-        state_i.nodeStatePool_release();
+        nodeStatePool_release(state_i);
     }
 
     if (REUSE_OBJECTS)
@@ -317,20 +355,19 @@ public class State {
     for (int i = 0; i != state.size(); i++) {
       TNodeState state_i = state.get(i);
       // get the transitions consuming θ (the empty input symbol)
-      Transition ti = Node.transitions_getIterator(state_i.transducer, state_i.where_node_id, 0);
-      while (ti != null) {
-        TNodeState tn = REUSE_OBJECTS ? state_i.nodeStatePool_get() : new TNodeState(state_i.transducer, state_i.sequence.size() + 1);
+      Node node = state_i.transducer.getNode(state_i.where_node_id);
+      for (int t = node.firstTransition(0); t < node.size && node.inputSymbol(t) == 0; t++) {
+        TNodeState tn = REUSE_OBJECTS ? nodeStatePool_get(state_i.transducer) : new TNodeState(state_i.transducer, state_i.sequence_length + 1);
         //tn.transducer = state_i.transducer;
-        tn.where_node_id = ti.node_dest;
+        tn.where_node_id = node.nodeDest(t);
         tn.consistency_check();
         tn.caseWasChanged = state_i.caseWasChanged;
-        tn.sequence.addAll(state_i.sequence);
-        int output_symbol = ti.output_symbol;
+        tn.copySequence(state_i);
+        int output_symbol = node.outputSymbol(t);
         if (output_symbol != 0) {
-          tn.sequence.add(output_symbol);
+          tn.addSymbol(output_symbol);
         }
         state.add(tn);
-        ti = ti.next;
       }
     }
     if (CONSISTENCY_CHECKS)
@@ -446,9 +483,9 @@ public class State {
         // make all uppercase if original word was uppercase && case was changed to lowercase during match
         boolean upc = uppercase && state_i.caseWasChanged;
 
-        for (int j = 0, limit2 = state_i.sequence.size(); j != limit2; j++) {
-          int symbol = ((state_i.sequence).get(j)).intValue();
-          if (escaped_chars.contains((char) symbol)) {
+        for (int j = 0, limit2 = state_i.sequence_length; j != limit2; j++) {
+          int symbol = state_i.sequence[j];
+          if (escaped_chars.contains(symbol)) {
             result.append('\\');
           }
           result.append(alphabet.getSymbol(symbol, upc));
@@ -480,9 +517,9 @@ public class State {
         //if (finals.contains(state_i.where)) {
         result.append('/');
 
-        for (int j = 0, limit2 = state_i.sequence.size(); j != limit2; j++) {
-          int symbol = ((state_i.sequence).get(j)).intValue();
-          if (escaped_chars.contains((char) symbol)) {
+        for (int j = 0, limit2 = state_i.sequence_length; j != limit2; j++) {
+          int symbol = state_i.sequence[j];
+          if (escaped_chars.contains(symbol)) {
             result.append('\\');
           }
           result.append(alphabet.getSymbol(symbol));
@@ -512,19 +549,19 @@ public class State {
 
       //if (finals.contains(state_i.where)) {
       if (state_i.isFinal()) {
-        boolean restart = lastPartHasRequiredSymbol(state_i.sequence, requiredSymbol, separationSymbol);
+        boolean restart = lastPartHasRequiredSymbol(state_i, requiredSymbol, separationSymbol);
         if (restart) {
           if (restart_state != null) {
             if (DEBUG) {
               System.err.println("restart state " + i + "= " + state_i);
             }
             for (TNodeState initst : restart_state.state) {
-              TNodeState tn = REUSE_OBJECTS ? initst.nodeStatePool_get() : new TNodeState(initst.transducer, state_i.sequence.size() + 1);
+              TNodeState tn = REUSE_OBJECTS ? nodeStatePool_get(initst.transducer) : new TNodeState(initst.transducer, state_i.sequence_length + 1);
               //tn.transducer = initst.transducer;
               tn.where_node_id = initst.where_node_id;
               tn.caseWasChanged = state_i.caseWasChanged;
-              tn.sequence.addAll(state_i.sequence);
-              tn.sequence.add(separationSymbol);
+              tn.copySequence(state_i);
+              tn.addSymbol(separationSymbol);
               added_states.add(tn);
             }
           }
@@ -534,11 +571,12 @@ public class State {
     state.addAll(added_states);
   }
 
-  private boolean lastPartHasRequiredSymbol(List<Integer> seq, int requiredSymbol, int separationSymbol) {
+  private boolean lastPartHasRequiredSymbol(TNodeState state_i, int requiredSymbol, int separationSymbol) {
     // state is final - it should be restarted it with all elements in stateset restart_state, with old symbols conserved
     boolean restart = false;
-    for (int n = seq.size() - 1; n >= 0; n--) {
-      int symbol = seq.get(n);
+    int[] seq = state_i.sequence;
+    for (int n = state_i.sequence_length - 1; n >= 0; n--) {
+      int symbol = seq[n];
       if (symbol == requiredSymbol) {
         restart = true;
         break;
@@ -552,16 +590,13 @@ public class State {
 
   void pruneStatesWithForbiddenSymbol(int forbiddenSymbol) {
 
-    Integer forbiddenSymbolInteger = forbiddenSymbol;
-
     // remove states containing a forbidden symbol
     for (int i = state.size() - 1; i >= 0; i--) {
       TNodeState state_i = state.get(i);
-      // TODO optimize: search from end,
-      if (state_i.sequence.contains(forbiddenSymbolInteger)) {
+      if (state_i.sequenceContains(forbiddenSymbol)) {
         state.remove(i);
         if (REUSE_OBJECTS) {
-          state_i.nodeStatePool_release();
+          nodeStatePool_release(state_i);
         }
       }
     }
@@ -571,15 +606,16 @@ public class State {
     int minNoOfCompoundElements = compound_max_elements; //Integer.MAX_VALUE-1;
     int[] noOfCompoundElements = new int[state.size()];
     for (int i = 0; i < state.size(); i++) {
-      List<Integer> seq = state.get(i).sequence;
-      if (!lastPartHasRequiredSymbol(seq, requiredSymbol, separationSymbol)) {
+      TNodeState state_i = state.get(i);
+      int[] seq = state_i.sequence;
+      if (!lastPartHasRequiredSymbol(state_i, requiredSymbol, separationSymbol)) {
         //
         noOfCompoundElements[i] = Integer.MAX_VALUE;
         continue;
       }
       int this_noOfCompoundElements = 0;
-      for (int j = seq.size() - 2; j > 0; j--) {
-        if (seq.get(j) == separationSymbol) {
+      for (int j = state_i.sequence_length - 2; j > 0; j--) {
+        if (seq[j] == separationSymbol) {
           this_noOfCompoundElements++;
         }
       }
@@ -591,7 +627,7 @@ public class State {
     for (int i = state.size() - 1; i >= 0; i--) {
       if (noOfCompoundElements[i] > minNoOfCompoundElements) {
         if (REUSE_OBJECTS) {
-          state.remove(i).nodeStatePool_release();
+          nodeStatePool_release(state.remove(i));
         } else {
           state.remove(i);
         }
@@ -618,16 +654,17 @@ public class State {
       if (state_i.isFinal()) {
         result.append('/');
         int first_char = result.length() + firstchar;
-        for (int j = 0, limit2 = state_i.sequence.size(); j != limit2; j++) {
-          if (escaped_chars.contains((char) (state_i.sequence).get(j).intValue())) {
+        for (int j = 0, limit2 = state_i.sequence_length; j != limit2; j++) {
+          int symbol = state_i.sequence[j];
+          if (escaped_chars.contains(symbol)) {
             result.append('\\');
           }
-          if (alphabet.isTag(((state_i.sequence)).get(j))) {
+          if (alphabet.isTag(symbol)) {
             result.append('&');
-            result.append(alphabet.getSymbol(state_i.sequence.get(j)));
+            result.append(alphabet.getSymbol(symbol));
             result.setCharAt(result.length() - 1, ';');
           } else {
-            result.append(alphabet.getSymbol(((state_i.sequence)).get(j), uppercase));
+            result.append(alphabet.getSymbol(symbol, uppercase));
           }
         }
         if (firstupper) {
@@ -662,11 +699,12 @@ public class State {
       //if (finals.contains(state_i.where)) {
       if (state_i.isFinal()) {
         result += '/';
-        for (int j = 0, limit2 = state_i.sequence.size(); j < limit2; j++) {
-          if (escaped_chars.contains((char) state_i.sequence.get(j).intValue())) {
+        for (int j = 0, limit2 = state_i.sequence_length; j < limit2; j++) {
+          int symbol = state_i.sequence[j];
+          if (escaped_chars.contains(symbol)) {
             result += '\\';
           }
-          result += alphabet.getSymbol(state_i.sequence.get(j));
+          result += alphabet.getSymbol(symbol);
         }
       }
     }
@@ -16,13 +16,17 @@ package org.apertium.lttoolbox.process;
  * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
  * 02111-1307, USA.
  */
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import org.apertium.lttoolbox.*;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
 import org.apertium.lttoolbox.Alphabet.IntegerPair;
 import org.apertium.utils.IOUtils;
 
@@ -34,6 +38,23 @@ import org.apertium.utils.IOUtils;
  */
 public class TransducerExe {
   public static boolean DELAYED_NODE_LOADING = false;
+  /**
+   * Whether to keep, next to the index cache, a fixed-width copy of each transducer that is memory mapped and
+   * walked in place (see MappedNode) instead of decoded into the heap. Loading is then almost free, and processes
+   * using the same dictionary share its pages. The copy is written the first time a dictionary is loaded, and it
+   * is ignored if the dictionary has changed since.
+   */
+  public static boolean MAPPED_FORMAT = false;
+  /*
+   * Layout of the mapped file, all big-endian ints:
+   * MAPPED_MAGIC, MAPPED_VERSION, source length (2 ints), source last modified (2 ints),
+   * start and end position of the transducer in the source, initial node, number of states, number of finals,
+   * the finals, the index of the first transition of each node (plus one for the end),
+   * and the transitions as (input symbol, output symbol, destination)
+   */
+  private static final int MAPPED_MAGIC = 0x4c54584d; // "LTXM"
+  private static final int MAPPED_VERSION = 1;
+  private static final int MAPPED_HEADER_SIZE = 11;
 
   /*
    * nodes 46191
@@ -56,16 +77,16 @@ public class TransducerExe {
    */
   private int initial_id;
   /**
-   * Node list
+   * Node list, indexed by node number. With delayed loading, nodes are null until they are used
    */
-  //private Node[] node_list;
-  private HashMap<Integer, Node> node_list2;
+  private Node[] node_list;
   /**
    * Node positions in the byteBuffer
    */
   private ByteBuffer byteBufferPositions;
   /**
-   * Used for delayed loading
+   * Used for delayed loading. A duplicate of the buffer the transducer was read from, as all the sections of a
+   * file share that one, so that loading nodes doesn't move the position of the others
    */
   private ByteBuffer byteBuffer;
   /**
@@ -76,90 +97,83 @@ public class TransducerExe {
    * Used for delayed loading
    */
   private Alphabet alphabet;
+  /**
+   * The mapped file, if the transducer was read from it
+   */
+  private IntBuffer mapped;
+  /**
+   * Where the node index and the transitions start in the mapped file
+   */
+  private int mappedIndex, mappedTransitions;
   /**
    * Set of final node indexes
    */
-  private HashSet<Integer> final_ids = new HashSet<Integer>();
+  private BitSet final_ids = new BitSet();
 
   int getInitialId() {
     return initial_id;
   }
 
-  public HashSet<Integer> getFinals() {
+  public BitSet getFinals() {
     return final_ids;
   }
   /**
-   * Pool of TNodeState (with their sequence list), for efficiency
-   */
-  private final ArrayList<State.TNodeState> nodeStatePool = State.REUSE_OBJECTS ? new ArrayList<State.TNodeState>(50) : null;
-
-  final State.TNodeState nodeStatePool_get() {
-    int size = nodeStatePool.size();
-    if (size != 0) {
-      State.TNodeState tn = nodeStatePool.remove(size - 1);
-      tn.sequence.clear();
-      //genbrugt++;
-      return tn;
-    } else {
-      State.TNodeState tn = new State.TNodeState(this);
-      //oprettet++;
-      tn.sequence = new ArrayList<Integer>(State.INITAL_SEQUENCE_ALLOCATION);
-      return tn;
-    }
-  }
-
-  final void nodeStatePool_release(State.TNodeState state_i) {
-    nodeStatePool.add(state_i);
-    //state_i.transducer = null; // permit GC
-  }
-
-  /**
-   * Note that this method is neccesarily very slow as the number of nodes increases, as the nodes don't (and for memory
-   * usage reasont shouldnt) know their own node number
+   * Prints all transitions (loading all nodes) as: destination, source, input symbol, output symbol
    */
   public void show_DEBUG(Alphabet a) {
     for (int i = 0; i < number_of_states; i++) {
       Node n = getNode(i);
-      //n.show_DEBUG(i, a, node_list);
+      n.show_DEBUG(i, a);
     }
   }
 
-  Node getNode(int node_no) {
-    //Node node = node_list[node_no];
-    Node node = node_list2.get(node_no);
+  final Node getNode(int node_no) {
+    Node node = node_list[node_no];
     if (node == null) {
-      node = loadNode(node_no);
+      if (mapped != null) {
+        int first = mapped.get(mappedIndex + node_no);
+        node = new MappedNode(mapped, mappedTransitions + 3 * first, mapped.get(mappedIndex + node_no + 1) - first);
+        node_list[node_no] = node;
+      } else {
+        node = loadNode(node_no);
+      }
     }
     return node;
   }
 
-  boolean isFinal(int where_node_id) {
-    return final_ids.contains(where_node_id);
+  final boolean isFinal(int where_node_id) {
+    return final_ids.get(where_node_id);
   }
 
-  Node loadNode(int node_no) {
-    //assert check: if (node_list[nodeNo__current_state] != sourceNode) throw new InternalError();
-    Node node = new Node();
-    //node_list[node_no] = node;
-    node_list2.put(node_no, node);
+  /**
+   * Synchronized, as delayed loading can happen in several threads at a time and they all move the
+   * position of the byteBuffer, which is only used by this transducer. A Node is immutable, so other threads
+   * can safely use it once it's in node_list.
+   */
+  synchronized Node loadNode(int node_no) {
+    Node node = node_list[node_no];
+    if (node != null) {
+      return node; // another thread loaded it meanwhile
+    }
 
     int byteBufferPosition = byteBufferPositions.getInt(node_no * 4);
     byteBuffer.position(byteBufferPosition); // seek to correct place in file
     int number_of_local_transitions = Compression.multibyte_read(byteBuffer); // typically 20-40, max seen is 694
 
-    node.initTransitions(number_of_local_transitions);
+    int[] i_symbols = new int[number_of_local_transitions];
+    int[] o_symbols = new int[number_of_local_transitions];
+    int[] targets = new int[number_of_local_transitions];
     int tagbase = 0;
-    while (number_of_local_transitions > 0) {
-      number_of_local_transitions--;
+    for (int i = 0; i < number_of_local_transitions; i++) {
       tagbase += Compression.multibyte_read(byteBuffer);
-      int target_nodeNo = (node_no + Compression.multibyte_read(byteBuffer)) % number_of_states;
+      targets[i] = (node_no + Compression.multibyte_read(byteBuffer)) % number_of_states;
       IntegerPair pair = alphabet.decode(tagbase);
-      int i_symbol = pair.first;
-      int o_symbol = pair.second;
-      //Node targetNode = node_list[target_nodeNo];
-      node.addTransition(i_symbol, o_symbol, target_nodeNo);
+      i_symbols[i] = pair.first;
+      o_symbols[i] = pair.second;
     }
 
+    node = new Node(i_symbols, o_symbols, targets);
+    node_list[node_no] = node;
     return node;
   }
 
@@ -168,6 +182,23 @@ public class TransducerExe {
   }
 
   public void read(ByteBuffer input, Alphabet alphabet, File cachedFile) throws IOException {
+    read(input, alphabet, cachedFile, null);
+  }
+
+  /**
+   * @param cachedFile where to cache the index of the nodes, or null
+   * @param sourceFile the file being read, used to know if the mapped copy is up to date. If it or cachedFile is
+   * null, the mapped format isn't used.
+   */
+  public void read(ByteBuffer input, Alphabet alphabet, File cachedFile, File sourceFile) throws IOException {
+    File mappedFile = null;
+    int start = input.position();
+    if (MAPPED_FORMAT && cachedFile != null && sourceFile != null) {
+      mappedFile = new File(cachedFile.getPath() + ".fst");
+      if (readMapped(input, alphabet, mappedFile, sourceFile)) {
+        return;
+      }
+    }
 
     initial_id = Compression.multibyte_read(input);  // 0 for eo-en.dix)
     final int finals_size = Compression.multibyte_read(input); // xx  (5 for eo-en.dix)
@@ -185,17 +216,16 @@ public class TransducerExe {
     //System.err.println(ant1 + " ettere ud af  " + number_of_states);
     for (int i = 0; i < finals_size; i++) {
       int final_index = myfinals[i];
-      final_ids.add(final_index);
+      final_ids.set(final_index);
     }
 
     number_of_states = Compression.multibyte_read(input); // xx  (46191 for eo-en.dix)
 
-    //node_list = new Node[number_of_states];
-    node_list2 = new HashMap<Integer, Node>(1000);
+    node_list = new Node[number_of_states];
 
 
-    // Keep reference to bytebuffer for delayed node loading
-    byteBuffer = input;
+    // Keep our own view of the bytebuffer for delayed node loading
+    byteBuffer = input.duplicate();
 
 
     int cacheFileSize = number_of_states * 4 + 4; // one extra int to hold index of end of transducer
@@ -209,6 +239,9 @@ public class TransducerExe {
     if (byteBufferPositions.isReadOnly()) {
       int lastPos = byteBufferPositions.getInt(number_of_states * 4);
       input.position(lastPos); // Skip to end position
+      if (mappedFile != null) {
+        writeMapped(mappedFile, sourceFile, start, lastPos);
+      }
       return;
     }
 
@@ -223,10 +256,120 @@ public class TransducerExe {
       if (DELAYED_NODE_LOADING) {
         Compression.multibyte_skip(input, 2 * number_of_local_transitions);
       } else {
-        loadNode(nodeNo__current_state); // skips the correct number of positions
+        loadNode(nodeNo__current_state);
+        input.position(byteBuffer.position()); // skips the correct number of positions
       }
     }
     byteBufferPositions.putInt(input.position()); // Remember end position
 
+    if (mappedFile != null) {
+      writeMapped(mappedFile, sourceFile, start, input.position());
+    }
+  }
+
+  /**
+   * Reads the transducer from its mapped copy, if it is there and up to date.
+   *
+   * @return false if it can't be used
+   */
+  private boolean readMapped(ByteBuffer input, Alphabet alphabet, File mappedFile, File sourceFile) {
+    if (!mappedFile.canRead()) {
+      return false;
+    }
+    try {
+      IntBuffer ints;
+      RandomAccessFile raf = new RandomAccessFile(mappedFile, "r");
+      try {
+        ints = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()).asIntBuffer();
+      } finally {
+        raf.close();
+      }
+      if (ints.limit() < MAPPED_HEADER_SIZE || ints.get(0) != MAPPED_MAGIC || ints.get(1) != MAPPED_VERSION
+          || getLong(ints, 2) != sourceFile.length() || getLong(ints, 4) != sourceFile.lastModified()
+          || ints.get(6) != input.position()) {
+        return false; // stale or from another version
+      }
+      int states = ints.get(9);
+      int index = MAPPED_HEADER_SIZE + ints.get(10);
+      int transitions = index + states + 1;
+      if (ints.limit() < transitions || ints.limit() != transitions + 3 * ints.get(transitions - 1)) {
+        return false; // truncated
+      }
+
+      this.alphabet = alphabet;
+      initial_id = ints.get(8);
+      number_of_states = states;
+      for (int i = MAPPED_HEADER_SIZE; i < index; i++) {
+        final_ids.set(ints.get(i));
+      }
+      node_list = new Node[number_of_states];
+      mapped = ints;
+      mappedIndex = index;
+      mappedTransitions = transitions;
+      input.position(ints.get(7)); // Skip to end position
+      if (FSTProcessor.DEBUG) {
+        System.err.println("TransducerExe read mapped states:" + number_of_states + "  mappedFile=" + mappedFile);
+      }
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static long getLong(IntBuffer ints, int pos) {
+    return ((long) ints.get(pos) << 32) | (ints.get(pos + 1) & 0xffffffffL);
+  }
+
+  /**
+   * Writes the mapped copy of the transducer, loading all its nodes. The copy is written to a temporary
+   * file first, so other processes never map a half written one.
+   */
+  private void writeMapped(File mappedFile, File sourceFile, int start, int end) {
+    File tmp = new File(mappedFile.getPath() + "." + System.nanoTime() + ".tmp");
+    try {
+      mappedFile.getParentFile().mkdirs();
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+      try {
+        out.writeInt(MAPPED_MAGIC);
+        out.writeInt(MAPPED_VERSION);
+        out.writeLong(sourceFile.length());
+        out.writeLong(sourceFile.lastModified());
+        out.writeInt(start);
+        out.writeInt(end);
+        out.writeInt(initial_id);
+        out.writeInt(number_of_states);
+        out.writeInt(final_ids.cardinality());
+        for (int i = final_ids.nextSetBit(0); i >= 0; i = final_ids.nextSetBit(i + 1)) {
+          out.writeInt(i);
+        }
+        int first = 0;
+        for (int i = 0; i < number_of_states; i++) {
+          out.writeInt(first);
+          first += getNode(i).size;
+        }
+        out.writeInt(first);
+        for (int i = 0; i < number_of_states; i++) {
+          Node node = getNode(i);
+          for (int t = 0; t < node.size; t++) {
+            out.writeInt(node.inputSymbol(t));
+            out.writeInt(node.outputSymbol(t));
+            out.writeInt(node.nodeDest(t));
+          }
+        }
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(mappedFile)) {
+        mappedFile.delete();
+        if (!tmp.renameTo(mappedFile)) {
+          tmp.delete();
+        }
+      }
+    } catch (IOException e) {
+      tmp.delete();
+      if (FSTProcessor.DEBUG) {
+        System.err.println("TransducerExe couldn't write " + mappedFile + ": " + e);
+      }
+    }
   }
 }
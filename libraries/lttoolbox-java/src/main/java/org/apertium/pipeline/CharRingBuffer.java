@@ -0,0 +1,361 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ * 02111-1307, USA.
+ */
+package org.apertium.pipeline;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded buffer of characters connecting two stages of a pipeline that run in
+ * different threads. Exactly one thread writes (through getWriter()) and exactly one
+ * thread reads (through getReader()), so characters are copied without locks: the
+ * writer only moves the head and the reader only moves the tail. waitLock is only taken
+ * by a side that has to wait, and by the other side to wake it up.
+ *
+ * When the buffer is full the writer waits for the reader, so a fast stage can't get
+ * more than the buffer size ahead of the next one. If any of the two stages fails it
+ * should call abort(), and the other side will get an IOException instead of waiting
+ * forever. If the reader stops before the end of the stream it should close its end, and
+ * whatever is written after that will be discarded.
+ */
+public class CharRingBuffer {
+  private final char[] buffer;
+  private final int mask;
+  /** Index of the next character to write. Only modified by the writer */
+  private final AtomicLong head = new AtomicLong();
+  /** Index of the next character that can't be overwritten. Only modified by the reader */
+  private final AtomicLong tail = new AtomicLong();
+  private volatile boolean closed = false;
+  private volatile boolean readerClosed = false;
+  private volatile Throwable failure = null;
+  private final ReentrantLock waitLock = new ReentrantLock();
+  private final Condition notEmpty = waitLock.newCondition();
+  private final Condition notFull = waitLock.newCondition();
+  /** Set while the reader waits on notEmpty, so that the writer knows it must signal it */
+  private volatile boolean readerWaiting = false;
+  /** Set while the writer waits on notFull, so that the reader knows it must signal it */
+  private volatile boolean writerWaiting = false;
+  private final Input reader = new Input();
+  private final Output writer = new Output();
+
+  /**
+   * @param capacity the size of the buffer, rounded up to a power of two
+   */
+  public CharRingBuffer(int capacity) {
+    int size = 16;
+    while (size < capacity)
+      size <<= 1;
+    buffer = new char[size];
+    mask = size - 1;
+  }
+
+  public Reader getReader() {
+    return reader;
+  }
+
+  public Writer getWriter() {
+    return writer;
+  }
+
+  /**
+   * Makes any pending or future operation on both ends of the buffer fail with the given cause.
+   */
+  public void abort(Throwable cause) {
+    if (failure == null)
+      failure = cause;
+    signalAll();
+  }
+
+  private void checkFailure() throws IOException {
+    Throwable t = failure;
+    if (t != null)
+      throw new AbortedException(t);
+  }
+
+  /**
+   * Thrown by both ends of an aborted buffer, with the reason of the abort as its cause.
+   */
+  public static class AbortedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    AbortedException(Throwable cause) {
+      super("Pipeline aborted", cause);
+    }
+  }
+
+  private void signal(Condition condition) {
+    waitLock.lock();
+    try {
+      condition.signal();
+    } finally {
+      waitLock.unlock();
+    }
+  }
+
+  private void signalAll() {
+    waitLock.lock();
+    try {
+      notEmpty.signal();
+      notFull.signal();
+    } finally {
+      waitLock.unlock();
+    }
+  }
+
+  private class Input extends Reader {
+    /** Index of the next character to read. Equal to tail unless there is a mark */
+    private long position;
+    private long markPosition = -1;
+    private long markLimit;
+
+    /**
+     * Waits until there is something to read.
+     *
+     * @return the number of characters available, or 0 at the end of the stream
+     */
+    private int available() throws IOException {
+      while (true) {
+        checkFailure();
+        long available = head.get() - position;
+        if (available > 0)
+          return (int) available;
+        if (closed) {
+          // The writer could have written something before closing
+          available = head.get() - position;
+          return (int) available;
+        }
+        await();
+      }
+    }
+
+    /**
+     * Waits until the writer writes, closes or aborts. As readerWaiting is set before
+     * checking the head, and the writer moves the head before checking readerWaiting, one
+     * of the two always sees what the other did.
+     */
+    private void await() throws InterruptedIOException {
+      waitLock.lock();
+      try {
+        readerWaiting = true;
+        while (head.get() == position && !closed && failure == null)
+          notEmpty.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      } finally {
+        readerWaiting = false;
+        waitLock.unlock();
+      }
+    }
+
+    private void release() {
+      if (markPosition >= 0 && position - markPosition > markLimit)
+        markPosition = -1;
+      tail.set(markPosition >= 0 ? markPosition : position);
+      if (writerWaiting)
+        signal(notFull);
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (available() == 0)
+        return -1;
+      char c = buffer[(int) position & mask];
+      position++;
+      release();
+      return c;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+      if (len == 0)
+        return 0;
+      int available = available();
+      if (available == 0)
+        return -1;
+      int n = Math.min(len, available);
+      int start = (int) position & mask;
+      int first = Math.min(n, buffer.length - start);
+      System.arraycopy(buffer, start, cbuf, off, first);
+      System.arraycopy(buffer, 0, cbuf, off + first, n - first);
+      position += n;
+      release();
+      return n;
+    }
+
+    /**
+     * Waits until there is something to read or the writer is done, so that loops
+     * like while (input.ready()) process the whole stream.
+     */
+    @Override
+    public boolean ready() throws IOException {
+      return available() > 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return true;
+    }
+
+    @Override
+    public void mark(int readAheadLimit) throws IOException {
+      if (readAheadLimit >= buffer.length)
+        throw new IOException("Read-ahead limit too big for the buffer");
+      markPosition = position;
+      markLimit = readAheadLimit;
+    }
+
+    @Override
+    public void reset() throws IOException {
+      if (markPosition < 0)
+        throw new IOException("Stream not marked");
+      position = markPosition;
+    }
+
+    @Override
+    public void close() {
+      readerClosed = true;
+      signal(notFull);
+    }
+  }
+
+  private class Output extends Writer {
+    /**
+     * Waits until there is room to write.
+     *
+     * @return the number of characters that can be written, or -1 if nobody will read them
+     */
+    private int room() throws IOException {
+      while (true) {
+        checkFailure();
+        if (closed)
+          throw new IOException("Stream closed");
+        if (readerClosed)
+          return -1;
+        long room = buffer.length - (head.get() - tail.get());
+        if (room > 0)
+          return (int) room;
+        await();
+      }
+    }
+
+    /**
+     * Waits until the reader reads, closes or aborts (see Input.await())
+     */
+    private void await() throws InterruptedIOException {
+      waitLock.lock();
+      try {
+        writerWaiting = true;
+        while (head.get() - tail.get() == buffer.length && !readerClosed && failure == null)
+          notFull.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      } finally {
+        writerWaiting = false;
+        waitLock.unlock();
+      }
+    }
+
+    private void publish(long h) {
+      head.set(h);
+      if (readerWaiting)
+        signal(notEmpty);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+      if (room() < 0)
+        return;
+      long h = head.get();
+      buffer[(int) h & mask] = (char) c;
+      publish(h + 1);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      while (len > 0) {
+        int room = room();
+        if (room < 0)
+          return;
+        int n = Math.min(len, room);
+        long h = head.get();
+        int start = (int) h & mask;
+        int first = Math.min(n, buffer.length - start);
+        System.arraycopy(cbuf, off, buffer, start, first);
+        System.arraycopy(cbuf, off + first, buffer, 0, n - first);
+        publish(h + n);
+        off += n;
+        len -= n;
+      }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+      while (len > 0) {
+        int room = room();
+        if (room < 0)
+          return;
+        int n = Math.min(len, room);
+        long h = head.get();
+        int start = (int) h & mask;
+        int first = Math.min(n, buffer.length - start);
+        str.getChars(off, off + first, buffer, start);
+        str.getChars(off + first, off + n, buffer, 0);
+        publish(h + n);
+        off += n;
+        len -= n;
+      }
+    }
+
+    @Override
+    public Writer append(char c) throws IOException {
+      write(c);
+      return this;
+    }
+
+    @Override
+    public Writer append(CharSequence csq) throws IOException {
+      String s = String.valueOf(csq);
+      write(s, 0, s.length());
+      return this;
+    }
+
+    @Override
+    public Writer append(CharSequence csq, int start, int end) throws IOException {
+      String s = String.valueOf(csq);
+      write(s, start, end - start);
+      return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      checkFailure();
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+      signal(notEmpty);
+    }
+  }
+}
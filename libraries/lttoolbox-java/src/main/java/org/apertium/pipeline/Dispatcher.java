@@ -27,15 +27,19 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
 import org.apertium.formatter.OmegatFormatter;
 import org.apertium.formatter.TextFormatter;
 import org.apertium.interchunk.ApertiumInterchunk;
 import org.apertium.interchunk.Interchunk;
+import org.apertium.lttoolbox.Getopt;
 import org.apertium.lttoolbox.LTProc;
 import org.apertium.postchunk.ApertiumPostchunk;
 import org.apertium.postchunk.Postchunk;
 import org.apertium.pretransfer.PreTransfer;
+import org.apertium.pretransfer.PreTransferReader;
 import org.apertium.tagger.Tagger;
 import org.apertium.transfer.ApertiumTransfer;
 import org.apertium.utils.IOUtils;
@@ -47,7 +51,45 @@ import org.apertium.utils.IOUtils;
 public class Dispatcher {
   private static final String splitPattern = "[ ]+";
 
-  private static void doInterchunk(Program prog, Reader input, Appendable output) throws Exception {
+  /**
+   * Runs each pre-transfer followed by a transfer as a single stage, where transfer reads the
+   * output of pre-transfer as it is produced (see PreTransferReader), instead of it being written
+   * out in full or passed through a buffer to another thread. The translation is the same.
+   *
+   * @return the given programs, with each pre-transfer followed by a transfer merged into the
+   * latter (unless they use null flush)
+   */
+  public static List<Program> fusePreTransfer(List<Program> programs) {
+    List<Program> res = new ArrayList<Program>(programs.size());
+    for (int i = 0; i < programs.size(); i++) {
+      Program prog = programs.get(i);
+      Program next = i + 1 < programs.size() ? programs.get(i + 1) : null;
+      if (prog.getProgram() == Program.ProgEnum.PRETRANSFER && next != null
+          && next.getProgram() == Program.ProgEnum.TRANSFER && next.getPreTransfer() == null
+          && !hasNullFlush(prog, "zh") && !hasNullFlush(next, "cvbnzhD")) {
+        res.add(new Program(prog, next));
+        i++;
+      } else {
+        res.add(prog);
+      }
+    }
+    return res;
+  }
+
+  /**
+   * @param options the options of the program, as it parses them
+   */
+  private static boolean hasNullFlush(Program prog, String options) {
+    Getopt getopt = new Getopt(prog.getCommandName(), prog.getParameters().trim().split(splitPattern), options);
+    getopt.setOpterr(false);
+    int c;
+    while ((c = getopt.getopt()) != -1)
+      if (c == 'z')
+        return true;
+    return false;
+  }
+
+  private static void doInterchunk(Program prog, Reader input, Appendable output, ProcessorCache cache) throws Exception {
     ApertiumInterchunk.CommandLineParams par = new ApertiumInterchunk.CommandLineParams();
     /* Parse the command line. The passed-in CommandLineParams object
      * will be modified by this method.
@@ -62,11 +104,14 @@ public class Dispatcher {
     par.input = input;
     par.output = output;
 
-    ApertiumInterchunk.doMain(par, new Interchunk());
+    if (cache == null)
+      ApertiumInterchunk.doMain(par, new Interchunk());
+    else
+      ApertiumInterchunk.doMain(par, new Interchunk(), cache.interchunks);
   }
 
-  private static void doPostchunk(Program prog, Reader input, Appendable output)
-      throws Exception {
+  private static void doPostchunk(Program prog, Reader input, Appendable output,
+      ProcessorCache cache) throws Exception {
     /* Yes, there's duplicate code here with the method above, but
      * there's only a few lines of actual code here, and I ran into issues
      * trying to reduce the duplication further than this.
@@ -90,7 +135,10 @@ public class Dispatcher {
     par.input = input;
     par.output = output;
 
-    ApertiumPostchunk.doMain(par, new Postchunk());
+    if (cache == null)
+      ApertiumPostchunk.doMain(par, new Postchunk());
+    else
+      ApertiumPostchunk.doMain(par, new Postchunk(), cache.interchunks);
   }
 
   private static void doPretransfer(Program prog, Reader input, Appendable output)
@@ -109,13 +157,16 @@ public class Dispatcher {
   }
 
   private static void doTagger(Program prog, Reader input, Appendable output,
-      boolean dispAmb) {
+      boolean dispAmb, ProcessorCache cache) {
     String paramString = prog.getParameters();
     String replacement = (dispAmb ? "-m" : "");
     paramString = paramString.replaceAll("\\$2", replacement);
 
     String[] args = paramString.split(splitPattern);
-    Tagger.taggerDispatch(args, input, output);
+    if (cache == null)
+      Tagger.taggerDispatch(args, input, output);
+    else
+      Tagger.taggerDispatch(args, input, output, cache.taggerData);
   }
 
   private static void doTextFormat(Program prog, Reader input, Appendable output,
@@ -164,20 +215,28 @@ public class Dispatcher {
     formatter.doMain(args, input, output);
   }
 
-  private static void doTransfer(Program prog, Reader input, Appendable output)
-      throws Exception {
+  private static void doTransfer(Program prog, Reader input, Appendable output,
+      ProcessorCache cache) throws Exception {
     String[] args = prog.getParameters().split("[ ]+");
-    ApertiumTransfer.doMain(args, input, output);
+    if (prog.getPreTransfer() != null)
+      input = new PreTransferReader(input);
+    if (cache == null)
+      ApertiumTransfer.doMain(args, input, output);
+    else
+      ApertiumTransfer.doMain(args, input, output, cache.transfers);
   }
 
   private static void doLTProc(Program prog, Reader input, Appendable output,
-      boolean dispMarks) throws IOException {
+      boolean dispMarks, ProcessorCache cache) throws IOException {
     String paramString = prog.getParameters();
     String replacement = (dispMarks ? "-g" : "-n");
     paramString = paramString.replaceAll("\\$1", replacement);
 
     String[] args = paramString.split(splitPattern);
-    LTProc.doMain(args, input, output);
+    if (cache == null)
+      LTProc.doMain(args, input, output);
+    else
+      LTProc.doMain(args, input, output, cache.fstProcessors);
   }
 
   private static void doUnknown(Program prog, final Reader input, Appendable output, boolean dispAmb, boolean dispMarks) throws Exception {
@@ -252,24 +311,35 @@ public class Dispatcher {
 
   public static void dispatch(Program prog, Reader input, Appendable output,
       boolean dispAmb, boolean dispMarks) throws Exception {
+    dispatch(prog, input, output, dispAmb, dispMarks, null);
+  }
+
+  /**
+   * Runs a program of the pipeline.
+   *
+   * @param cache where loaded dictionaries and rules are kept between calls, or null to
+   * use the static caches of each program
+   */
+  public static void dispatch(Program prog, Reader input, Appendable output,
+      boolean dispAmb, boolean dispMarks, ProcessorCache cache) throws Exception {
     switch (prog.getProgram()) {
       case INTERCHUNK:
-        doInterchunk(prog, input, output);
+        doInterchunk(prog, input, output, cache);
         break;
       case LT_PROC:
-        doLTProc(prog, input, output, dispMarks);
+        doLTProc(prog, input, output, dispMarks, cache);
         break;
       case POSTCHUNK:
-        doPostchunk(prog, input, output);
+        doPostchunk(prog, input, output, cache);
         break;
       case PRETRANSFER:
         doPretransfer(prog, input, output);
         break;
       case TAGGER:
-        doTagger(prog, input, output, dispAmb);
+        doTagger(prog, input, output, dispAmb, cache);
         break;
       case TRANSFER:
-        doTransfer(prog, input, output);
+        doTransfer(prog, input, output, cache);
         break;
       case TXT_DEFORMAT:
         doTextFormat(prog, input, output, true);
@@ -0,0 +1,189 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ * 02111-1307, USA.
+ */
+package org.apertium.pipeline;
+
+import java.io.Reader;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apertium.Translator.TranslationProgressListener;
+import org.apertium.utils.IOContext;
+import org.apertium.utils.IOUtils;
+
+/**
+ * Runs all the programs of a pipeline at the same time, each one in its own thread,
+ * connected by CharRingBuffers. Long texts then use several cores, and there is no
+ * need to keep a full copy of the text for each stage in memory.
+ *
+ * The threads come from a pool shared by all the pipelines in the JVM. Stages wait
+ * for each other, so the pool isn't bounded: a bounded one could deadlock when
+ * several pipelines are running.
+ */
+public class PipelineExecutor {
+  public static final int DEFAULT_BUFFER_SIZE = 16384;
+  private static final ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
+    private int count = 0;
+
+    @Override
+    public synchronized Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "apertium-pipeline-" + (++count));
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  private PipelineExecutor() {
+  }
+
+  /**
+   * Runs the given programs, the first one reading from input and the last one writing
+   * to output. The last program runs in the calling thread, and this method returns
+   * once all of them have finished.
+   *
+   * @param cache where loaded dictionaries and rules are kept, or null to use the static caches
+   * @param context where the files of the programs are
+   * @param progressListener notified, from the thread of each stage, when the stage starts (can be null)
+   * @throws Exception the first error of any stage, with the failing program as its message
+   */
+  public static void execute(List<Program> programs, Reader input, Appendable output,
+      boolean dispAmb, boolean dispMarks, ProcessorCache cache, IOContext context,
+      TranslationProgressListener progressListener) throws Exception {
+    execute(programs, input, output, dispAmb, dispMarks, cache, context, progressListener, DEFAULT_BUFFER_SIZE);
+  }
+
+  public static void execute(List<Program> programs, Reader input, Appendable output,
+      boolean dispAmb, boolean dispMarks, ProcessorCache cache, IOContext context,
+      TranslationProgressListener progressListener, int bufferSize) throws Exception {
+    final int n = programs.size();
+    final CharRingBuffer[] buffers = new CharRingBuffer[n - 1];
+    for (int i = 0; i < n - 1; i++)
+      buffers[i] = new CharRingBuffer(bufferSize);
+
+    // The error that made the pipeline stop, as opposed to the ones of the stages that were aborted
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+    final Future<?>[] stages = new Future<?>[n - 1];
+    for (int i = 0; i < n - 1; i++) {
+      Reader stageInput = i == 0 ? input : buffers[i - 1].getReader();
+      stages[i] = pool.submit(new Stage(i, n, programs.get(i), stageInput, buffers[i].getWriter(),
+          i == 0 ? null : buffers[i - 1], buffers[i], dispAmb, dispMarks, cache, context, progressListener, failure));
+    }
+
+    Exception other = null;
+    try {
+      new Stage(n - 1, n, programs.get(n - 1), n == 1 ? input : buffers[n - 2].getReader(), output,
+          n == 1 ? null : buffers[n - 2], null, dispAmb, dispMarks, cache, context, progressListener, failure).call();
+    } catch (Exception e) {
+      other = e;
+    }
+
+    // Wait for everybody, even if something failed, so that no stage is left running
+    boolean interrupted = false;
+    for (int i = 0; i < n - 1; i++)
+      try {
+        stages[i].get();
+      } catch (ExecutionException e) {
+        if (other == null)
+          other = (Exception) e.getCause();
+      } catch (InterruptedException e) {
+        for (CharRingBuffer b : buffers)
+          b.abort(e);
+        if (other == null)
+          other = e;
+        interrupted = true;
+        i--; // The stages will stop soon, as their buffers have been aborted
+      }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+
+    if (failure.get() != null)
+      throw failure.get();
+    if (other != null)
+      throw other;
+  }
+
+  private static boolean isAbort(Throwable t) {
+    for (; t != null; t = t.getCause())
+      if (t instanceof CharRingBuffer.AbortedException)
+        return true;
+    return false;
+  }
+
+  private static class Stage implements java.util.concurrent.Callable<Void> {
+    private final int index, progressMax;
+    private final Program program;
+    private final Reader input;
+    private final Appendable output;
+    private final CharRingBuffer inputBuffer, outputBuffer;
+    private final boolean dispAmb, dispMarks;
+    private final ProcessorCache cache;
+    private final IOContext context;
+    private final TranslationProgressListener progressListener;
+    private final AtomicReference<Exception> failure;
+
+    Stage(int index, int progressMax, Program program, Reader input, Appendable output,
+        CharRingBuffer inputBuffer, CharRingBuffer outputBuffer, boolean dispAmb, boolean dispMarks,
+        ProcessorCache cache, IOContext context, TranslationProgressListener progressListener,
+        AtomicReference<Exception> failure) {
+      this.index = index;
+      this.progressMax = progressMax;
+      this.program = program;
+      this.input = input;
+      this.output = output;
+      this.inputBuffer = inputBuffer;
+      this.outputBuffer = outputBuffer;
+      this.dispAmb = dispAmb;
+      this.dispMarks = dispMarks;
+      this.cache = cache;
+      this.context = context;
+      this.progressListener = progressListener;
+      this.failure = failure;
+    }
+
+    @Override
+    public Void call() throws Exception {
+      IOContext previous = IOUtils.setThreadContext(context);
+      try {
+        if (progressListener != null)
+          progressListener.onTranslationProgress(program.getCommandName(), index, progressMax);
+        Dispatcher.dispatch(program, input, output, dispAmb, dispMarks, cache);
+        if (outputBuffer != null)
+          outputBuffer.getWriter().close();
+        if (inputBuffer != null)
+          inputBuffer.getReader().close();
+        return null;
+      } catch (Throwable t) {
+        // Make the stages before and after this one stop instead of waiting for us
+        if (inputBuffer != null)
+          inputBuffer.abort(t);
+        if (outputBuffer != null)
+          outputBuffer.abort(t);
+        Exception e = new Exception(program.toString(), t);
+        if (!isAbort(t))
+          failure.compareAndSet(null, e);
+        throw e;
+      } finally {
+        IOUtils.setThreadContext(previous);
+      }
+    }
+  }
+}
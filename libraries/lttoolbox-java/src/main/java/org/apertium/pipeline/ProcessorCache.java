@@ -0,0 +1,51 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ * 02111-1307, USA.
+ */
+package org.apertium.pipeline;
+
+import java.util.concurrent.ConcurrentHashMap;
+import org.apertium.interchunk.Interchunk;
+import org.apertium.lttoolbox.process.FSTProcessor;
+import org.apertium.tagger.TaggerData;
+import org.apertium.transfer.Transfer;
+
+/**
+ * The loaded transducers, tagger data and transfer rules of a pipeline, so that
+ * they don't need to be read again for every text. This replaces the static
+ * caches in LTProc, Tagger, ApertiumTransfer and ApertiumInterchunk for
+ * users that need several pipelines at the same time.
+ *
+ * The cached objects keep state while processing, so a ProcessorCache must
+ * only be used by one pipeline at a time. The stages of that pipeline can
+ * run in different threads, though (see PipelineExecutor).
+ */
+public class ProcessorCache {
+  final ConcurrentHashMap<String, FSTProcessor> fstProcessors = new ConcurrentHashMap<String, FSTProcessor>();
+  final ConcurrentHashMap<String, TaggerData> taggerData = new ConcurrentHashMap<String, TaggerData>();
+  final ConcurrentHashMap<String, Transfer> transfers = new ConcurrentHashMap<String, Transfer>();
+  final ConcurrentHashMap<String, Interchunk> interchunks = new ConcurrentHashMap<String, Interchunk>();
+
+  public void clear() {
+    fstProcessors.clear();
+    taggerData.clear();
+    transfers.clear();
+    interchunks.clear();
+  }
+
+  public boolean isEmpty() {
+    return fstProcessors.isEmpty() && taggerData.isEmpty() && transfers.isEmpty() && interchunks.isEmpty();
+  }
+}
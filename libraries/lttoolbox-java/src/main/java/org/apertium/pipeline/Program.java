@@ -34,6 +34,8 @@ public class Program {
   private final ProgEnum _program;
   //Each program also has a list of files, which are used, in order.
   private String _parameters;
+  //The pre-transfer run on the input of this (transfer) program, if any (see Dispatcher.fusePreTransfer)
+  private Program _preTransfer;
 
   public Program(String commandLine) {
     /* Splits on spaces, assumes path won't have internal spaces.
@@ -87,6 +89,17 @@ public class Program {
     }
   }
 
+  /**
+   * A copy of the given transfer program that runs the given pre-transfer program on its input.
+   */
+  Program(Program preTransfer, Program transfer) {
+    _commandName = transfer._commandName;
+    _fullPath = transfer._fullPath;
+    _program = transfer._program;
+    _parameters = transfer._parameters;
+    _preTransfer = preTransfer;
+  }
+
   public String getCommandName() {
     return _commandName;
   }
@@ -108,6 +121,13 @@ public class Program {
     return _parameters;
   }
 
+  /**
+   * @return the pre-transfer program run on the input of this program, or null
+   */
+  public Program getPreTransfer() {
+    return _preTransfer;
+  }
+
   @Override
   public String toString() {
     /* StringBuilder tempString = new StringBuilder();
@@ -115,7 +135,7 @@ public class Program {
      * _program.toString() + "): \n");
      * tempString.append("Parameters: " + _parameters + " }");
      * return tempString.toString(); */
-    return _commandName + " " + _parameters;
+    return (_preTransfer == null ? "" : _preTransfer + " | ") + _commandName + " " + _parameters;
   }
 
   @Override
@@ -123,6 +143,7 @@ public class Program {
     int hash = 3;
     hash = 23 * hash + (this._program != null ? this._program.hashCode() : 0);
     hash = 23 * hash + (this._parameters != null ? this._parameters.hashCode() : 0);
+    hash = 23 * hash + (this._preTransfer != null ? this._preTransfer.hashCode() : 0);
     return hash;
   }
 
@@ -141,6 +162,9 @@ public class Program {
     if ((this._parameters == null) ? (other._parameters != null) : !this._parameters.equals(other._parameters)) {
       return false;
     }
+    if ((this._preTransfer == null) ? (other._preTransfer != null) : !this._preTransfer.equals(other._preTransfer)) {
+      return false;
+    }
     return true;
   }
 }
@@ -344,7 +344,7 @@ public class Postchunk extends Interchunk {
    * Modified to be in-line with the differences between transfer.cc and interchunk.cc
    */
   @Override
-  protected void applyRule(Appendable output, Method rule, ArrayList<String> words, ArrayList<String> blanks) throws IOException {
+  protected void applyRule(Appendable output, int ruleNo, ArrayList<String> words, ArrayList<String> blanks) throws IOException {
     if (words.size() != 1) {
       System.err.println("WARNING: applyRule(words.size() = " + words.size() + ". This should be 1 in postchunk. \nFor " + words);
     }
@@ -361,6 +361,12 @@ public class Postchunk extends Interchunk {
     String[] blankarr = new String[blanks.size() + 1];
     for (int i = 0; i < blanks.size(); i++)
       blankarr[i + 1] = blanks.get(i);
+
+    if (transferObject.applyRule(ruleNo, output, wordarr, blankarr))
+      return;
+
+    // class generated before applyRule() existed, so we need Java Method Invocation
+    Method rule = rule_map[ruleNo];
     // signature here is a la public void rule0__nom(Appendable out, InterchunkWord[] words, String[] blanks)
     Object[] args = new Object[3];
     args[0] = output;
@@ -368,7 +374,6 @@ public class Postchunk extends Interchunk {
     args[2] = blankarr;
 
 
-    //here was in C++: processRule(lastrule) to interpret XML, but we use Java bytecode via Java Method Invocation
     if (DEBUG)
       System.err.println("#args = " + args.length);
     if (DEBUG)
@@ -147,58 +147,70 @@ public class PreTransfer {
     output.append(buffer);
   }
 
-  public static void processStream(Reader input, Appendable output,
-      boolean null_flush) throws IOException {
-    if (IOUtils.timing != null)
-      IOUtils.timing.log("");
+  /**
+   * Processes the next character of the input, or the whole word or superblank it starts.
+   *
+   * @return false if the end of the input was reached
+   */
+  static boolean processNext(Reader input, Appendable output) throws IOException {
+    int myChar = input.read();
+    if (myChar == -1) {
+      return false;
+    }
+    switch (myChar) {
+      case '[':
+        output.append('[');
+        readAndWriteUntil(input, output, ']');
+        output.append(']');
+        break;
+
+      case '\\':
+        output.append((char) myChar);
+        int tempChar = input.read();
+        /* C++ code doesn't seem to handle a backslash at the end of the file
+         * with nothing after it. That's what this code is supposed to handle.
+         * Only write out the char after the backslash if there's actually a
+         * char to output.
+         */
+        if (tempChar != -1) {
+          output.append((char) tempChar);
+        }
+        break;
 
-    int myChar;
-    while ((myChar = input.read()) != -1) {
-      /* The above while statement is equivalent to the C++ code:
-       *
-       * while(true)
-       * {
-       * int mychar = fgetwc_unlocked(input);
-       * if(feof(input))
-       * {
-       * break;
-       * }
-       */
+      case '^':
+        output.append((char) myChar);
+        procWord(input, output);
+        output.append('$');
+        break;
 
-      switch (myChar) {
-        case '[':
-          output.append('[');
-          readAndWriteUntil(input, output, ']');
-          output.append(']');
-          break;
+      case '\0':
+        output.append((char) myChar);
+        break;
 
-        case '\\':
-          output.append((char) myChar);
-          int tempChar = input.read();
-          /* C++ code doesn't seem to handle a backslash at the end of the file
-           * with nothing after it. That's what this code is supposed to handle.
-           * Only write out the char after the backslash if there's actually a
-           * char to output.
-           */
-          if (tempChar != -1) {
-            output.append((char) tempChar);
-          }
-          break;
-
-        case '^':
-          output.append((char) myChar);
-          procWord(input, output);
-          output.append('$');
-          break;
+      default:
+        output.append((char) myChar);
+        break;
+    }
+    return true;
+  }
 
-        case '\0':
-          output.append((char) myChar);
-          break;
+  public static void processStream(Reader input, Appendable output,
+      boolean null_flush) throws IOException {
+    if (IOUtils.timing != null)
+      IOUtils.timing.log("");
 
-        default:
-          output.append((char) myChar);
-          break;
-      }
+    /* Equivalent to the C++ code:
+     *
+     * while(true)
+     * {
+     * int mychar = fgetwc_unlocked(input);
+     * if(feof(input))
+     * {
+     * break;
+     * }
+     * ...
+     */
+    while (processNext(input, output)) {
     }
     if (IOUtils.timing != null)
       IOUtils.timing.log("Process pretransfer");
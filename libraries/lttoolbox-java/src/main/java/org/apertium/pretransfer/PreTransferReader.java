@@ -0,0 +1,69 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ * 02111-1307, USA.
+ */
+package org.apertium.pretransfer;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * The output of pre-transfer for the given input, produced as it is read. Transfer reads it
+ * like any other input (see Dispatcher.fusePreTransfer), so the text goes through the same
+ * TransferTokenReader either way, but it is neither written out in full nor passed to another
+ * thread. Null flush is not supported.
+ */
+public class PreTransferReader extends Reader {
+  private final Reader input;
+  private boolean ended;
+  /** Output of pre-transfer not read yet */
+  private final StringBuilder text = new StringBuilder();
+  private int textPos;
+
+  public PreTransferReader(Reader input) {
+    this.input = input;
+  }
+
+  @Override
+  public int read(char[] cbuf, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (textPos == text.length()) {
+      text.setLength(0);
+      textPos = 0;
+      while (!ended && text.length() < len) {
+        ended = !PreTransfer.processNext(input, text);
+      }
+      if (text.length() == 0) {
+        return -1;
+      }
+    }
+    int n = Math.min(len, text.length() - textPos);
+    text.getChars(textPos, textPos + n, cbuf, off);
+    textPos += n;
+    return n;
+  }
+
+  @Override
+  public boolean ready() throws IOException {
+    return textPos < text.length() || input.ready();
+  }
+
+  @Override
+  public void close() throws IOException {
+    input.close();
+  }
+}
@@ -0,0 +1,451 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ * 02111-1307, USA.
+ */
+package org.apertium.tagger;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Unsupervised training of the HMM tagger with the Baum-Welch (forward-backward) algorithm,
+ * as in HMM::train() of apertium-tagger, but in several threads.
+ *
+ * The corpus is read once and kept as the ambiguity class of each word. Forward and backward
+ * probabilities only need to be computed between unambiguous words, so the corpus is split there
+ * into SHARDS parts of about the same size, whose expected counts are computed in parallel and
+ * then added in the order of the parts. The number of parts doesn't depend on the number of
+ * threads, so the trained model is the same whatever the number of threads.
+ */
+public class BaumWelch {
+  /**
+   * The number of parts the corpus is split in. Each one has its own accumulators (about N*N doubles)
+   */
+  static final int SHARDS = 16;
+  private static final double ZERO = 1e-10;
+  private static final double DBL_MIN = HMM.DBL_MIN;
+  private final TaggerData td;
+  private final int eos;
+  private final int N;
+  private final int M;
+  /** Tags of each ambiguity class, sorted */
+  private final int[][] classTags;
+  /** Where the emission counts of each ambiguity class start in Accumulator.phi */
+  private final int[] phiOffset;
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private PrintStream progress = System.err;
+  /** Ambiguity class of each word of the corpus */
+  private int[] words = new int[1024];
+  private int numberOfWords;
+  /** Number of words in segments ending with an unambiguous word; the rest can't be used */
+  private int usableWords;
+  /** shardStart[s] is the first word of part s, and shardStart[SHARDS] the end of the last one */
+  private int[] shardStart;
+
+  /**
+   * @param td the tagger data to train. Its ambiguity classes and its open class are used
+   * as they are, while its probabilities are replaced on each iteration.
+   * @param eos the end-of-sentence tag
+   */
+  BaumWelch(TaggerData td, int eos) {
+    this.td = td;
+    this.eos = eos;
+    N = td.getN();
+    M = td.getM();
+    Collection output = td.getOutput();
+    classTags = new int[M][];
+    phiOffset = new int[M + 1];
+    for (int k = 0; k < M; k++) {
+      Set<Integer> tags = output.get(k);
+      int[] t = new int[tags.size()];
+      int n = 0;
+      for (int tag : tags) {
+        t[n++] = tag;
+      }
+      Arrays.sort(t);
+      classTags[k] = t;
+      phiOffset[k + 1] = phiOffset[k] + t.length;
+    }
+  }
+
+  /**
+   * Sets the number of threads to use. Defaults to the number of processors.
+   */
+  void setThreads(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * Sets where to report progress, or null to be quiet. Defaults to System.err.
+   */
+  void setProgressStream(PrintStream progress) {
+    this.progress = progress;
+  }
+
+  /**
+   * Reads the training corpus (the output of the morphological analyser) and splits it in parts.
+   */
+  void readCorpus(Reader ftxt) throws IOException {
+    MorphoStream morpho_stream = new MorphoStream(ftxt, true, td);
+    Collection output = td.getOutput();
+    BitSet openClassBits = Collection.toBitSet(td.getOpenClass());
+    int unknownWords = 0;
+    int lastTag = eos;
+    long start = System.currentTimeMillis();
+
+    numberOfWords = 0;
+    usableWords = 0;
+    TaggerWord word = morpho_stream.get_next_word();
+    while (word != null) {
+      BitSet tagBits = word.get_tag_bits();
+      if (word.get_tags().size() == 0) {
+        tagBits = openClassBits;
+        unknownWords++;
+      }
+      int k = output.indexOf(tagBits);
+      if (k == -1) {
+        String errors;
+        errors = "A new ambiguity class was found. I cannot continue.\n";
+        errors += "Word '" + word.get_superficial_form() + "' not found in the dictionary.\n";
+        errors += "New ambiguity class: " + word.get_string_tags() + "\n";
+        errors += "Take a look at the dictionary, then retrain.";
+        throw new IllegalArgumentException(errors);
+      }
+
+      addWord(k);
+      if (classTags[k].length == 1) {
+        lastTag = classTags[k][0];
+      }
+      if (progress != null && numberOfWords % 10000 == 0) {
+        progress.print('.');
+        progress.flush();
+      }
+      word = morpho_stream.get_next_word();
+    }
+
+    if (usableWords < numberOfWords || (lastTag != eos && lastTag != td.getTagIndex().get("TAG_kEOF"))) {
+      System.err.println("Warning: The last tag is not the end-of-sentence tag.");
+    }
+
+    split();
+
+    if (progress != null) {
+      long time = Math.max(1, System.currentTimeMillis() - start);
+      progress.println();
+      progress.println("Read " + numberOfWords + " words (" + unknownWords + " unknown) in " + time + " ms, "
+          + (numberOfWords * 1000L / time) + " words/s");
+    }
+  }
+
+  private void addWord(int k) {
+    if (numberOfWords == words.length) {
+      int[] grown = new int[words.length * 2];
+      System.arraycopy(words, 0, grown, 0, numberOfWords);
+      words = grown;
+    }
+    words[numberOfWords++] = k;
+    if (classTags[k].length == 1) {
+      usableWords = numberOfWords;
+    }
+  }
+
+  /**
+   * Splits the corpus at unambiguous words into parts of about the same number of words
+   */
+  private void split() {
+    shardStart = new int[SHARDS + 1];
+    int shard = 1;
+    for (int w = 0; w < usableWords && shard < SHARDS; w++) {
+      if (classTags[words[w]].length == 1 && w + 1 >= (long) usableWords * shard / SHARDS) {
+        shardStart[shard++] = w + 1;
+      }
+    }
+    for (; shard <= SHARDS; shard++) {
+      shardStart[shard] = usableWords;
+    }
+  }
+
+  /**
+   * Does one iteration of Baum-Welch over the corpus read, replacing the probabilities in the tagger data.
+   *
+   * @return the log-likelihood of the corpus with the previous probabilities
+   */
+  double iterate() throws IOException {
+    if (shardStart == null) {
+      throw new IllegalStateException("readCorpus() must be called first");
+    }
+    long start = System.currentTimeMillis();
+    final double[][] a = td.getA();
+    final double[][] b = td.getB();
+
+    List<Accumulator> results = new ArrayList<Accumulator>(SHARDS);
+    int nthreads = Math.min(threads, SHARDS);
+    if (nthreads == 1) {
+      for (int s = 0; s < SHARDS; s++) {
+        results.add(count(s, a, b));
+      }
+    } else {
+      ExecutorService executor = Executors.newFixedThreadPool(nthreads);
+      try {
+        List<Future<Accumulator>> futures = new ArrayList<Future<Accumulator>>(SHARDS);
+        for (int s = 0; s < SHARDS; s++) {
+          final int shard = s;
+          futures.add(executor.submit(new Callable<Accumulator>() {
+            public Accumulator call() {
+              return count(shard, a, b);
+            }
+          }));
+        }
+        for (Future<Accumulator> f : futures) {
+          results.add(f.get());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        // Not JDK 1.5 compliant: throw new IOException("Training interrupted", e);
+        IOException ioe = new IOException("Training interrupted");
+        ioe.initCause(e);
+        throw ioe;
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        IOException ioe = new IOException(String.valueOf(e.getCause()));
+        ioe.initCause(e.getCause());
+        throw ioe;
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+
+    // add the counts in a fixed order, so the result doesn't depend on the threads
+    Accumulator total = results.get(0);
+    for (int s = 1; s < SHARDS; s++) {
+      total.add(results.get(s));
+    }
+    reestimate(total, a, b);
+
+    if (progress != null) {
+      long time = Math.max(1, System.currentTimeMillis() - start);
+      progress.println("Log=" + total.loli + "  (" + usableWords + " words in " + time + " ms, "
+          + (usableWords * 1000L / time) + " words/s, " + nthreads + " threads)");
+    }
+    return total.loli;
+  }
+
+  /**
+   * Expected counts of a part of the corpus
+   */
+  private class Accumulator {
+    final double[] xsi = new double[N * N];
+    final double[] gamma = new double[N];
+    final double[] phi = new double[phiOffset[M]];
+    double loli;
+
+    void add(Accumulator o) {
+      for (int i = 0; i < xsi.length; i++) {
+        xsi[i] += o.xsi[i];
+      }
+      for (int i = 0; i < gamma.length; i++) {
+        gamma[i] += o.gamma[i];
+      }
+      for (int i = 0; i < phi.length; i++) {
+        phi[i] += o.phi[i];
+      }
+      loli += o.loli;
+    }
+  }
+
+  /**
+   * Runs forward-backward on a part of the corpus.
+   */
+  private Accumulator count(int shard, double[][] a, double[][] b) {
+    Accumulator acc = new Accumulator();
+    int from = shardStart[shard];
+    int to = shardStart[shard + 1];
+    int[] first = {from == 0 ? eos : classTags[words[from - 1]][0]};
+
+    // forward probabilities of the words between two unambiguous ones, all in one array
+    double[] alpha = new double[256];
+    int[] alphaOffset = new int[64];
+    double[] beta = new double[N];
+    double[] betaPrev = new double[N];
+
+    int segmentStart = from;
+    for (int w = from; w < to; w++) {
+      if (classTags[words[w]].length != 1) {
+        continue;
+      }
+      // the words from segmentStart to w, w being unambiguous. Position 0 is the previous unambiguous word
+      int len = w - segmentStart + 1;
+      if (alphaOffset.length < len + 2) {
+        alphaOffset = new int[Math.max(len + 2, alphaOffset.length * 2)];
+      }
+      int size = 1;
+      for (int p = 1; p <= len; p++) {
+        size += classTags[words[segmentStart + p - 1]].length;
+      }
+      if (alpha.length < size) {
+        alpha = new double[Math.max(size, alpha.length * 2)];
+      }
+
+      //Forward probabilities
+      alpha[0] = 1;
+      alphaOffset[0] = 0;
+      alphaOffset[1] = 1;
+      int[] pretags = first;
+      for (int p = 1; p <= len; p++) {
+        int k = words[segmentStart + p - 1];
+        int[] tags = classTags[k];
+        int cur = alphaOffset[p];
+        int pre = alphaOffset[p - 1];
+        for (int x = 0; x < tags.length; x++) {
+          int i = tags[x];
+          double sum = 0;
+          for (int y = 0; y < pretags.length; y++) {
+            int j = pretags[y];
+            sum += alpha[pre + y] * a[j][i] * b[i][k];
+          }
+          alpha[cur + x] = sum == 0 ? DBL_MIN : sum;
+        }
+        alphaOffset[p + 1] = cur + tags.length;
+        pretags = tags;
+      }
+
+      double prob = alpha[alphaOffset[len]];
+      acc.loli -= Math.log(prob);
+
+      //Backward probabilities, and the expected counts
+      beta[0] = 1;
+      for (int q = len; q > 0; q--) {
+        int k = words[segmentStart + q - 1];
+        int[] tags = classTags[k];
+        pretags = q == 1 ? first : classTags[words[segmentStart + q - 2]];
+        int cur = alphaOffset[q];
+        int pre = alphaOffset[q - 1];
+        Arrays.fill(betaPrev, 0, pretags.length, 0);
+        for (int x = 0; x < tags.length; x++) {
+          int i = tags[x];
+          for (int y = 0; y < pretags.length; y++) {
+            int j = pretags[y];
+            betaPrev[y] += a[j][i] * b[i][k] * beta[x];
+            acc.xsi[j * N + i] += alpha[pre + y] * a[j][i] * b[i][k] * beta[x] / prob;
+          }
+          double previous_value = acc.gamma[i];
+          double g = alpha[cur + x] * beta[x] / prob;
+          acc.gamma[i] += g;
+          if (Double.isNaN(acc.gamma[i]) || Double.isInfinite(acc.gamma[i])) {
+            throw new IllegalStateException((Double.isNaN(acc.gamma[i]) ? "NAN(3)" : "INF(3)")
+                + " gamma[" + i + "] = " + acc.gamma[i] + " alpha[" + q + "][" + i + "]= " + alpha[cur + x]
+                + " beta[" + i + "] = " + beta[x] + " prob = " + prob + " previous gamma = " + previous_value);
+          }
+          if (acc.gamma[i] == 0) {
+            acc.gamma[i] = DBL_MIN;
+          }
+          acc.phi[phiOffset[k] + x] += g;
+        }
+        double[] swap = beta;
+        beta = betaPrev;
+        betaPrev = swap;
+      }
+
+      first = classTags[words[w]];
+      segmentStart = w + 1;
+    }
+    return acc;
+  }
+
+  /**
+   * Computes the new probabilities from the expected counts
+   */
+  private void reestimate(Accumulator total, double[][] a, double[][] b) {
+    double[] gamma = total.gamma;
+
+    //Clean previous values
+    for (int i = 0; i < N; i++) {
+      Arrays.fill(a[i], ZERO);
+      Arrays.fill(b[i], ZERO);
+    }
+
+    //new parameters
+    for (int i = 0; i < N; i++) {
+      for (int j = 0; j < N; j++) {
+        double xsi = total.xsi[i * N + j];
+        if (xsi > 0) {
+          if (gamma[i] == 0) {
+            System.err.println("Warning: gamma[" + i + "]=0");
+            gamma[i] = DBL_MIN;
+          }
+          a[i][j] = xsi / gamma[i];
+          if (Double.isNaN(a[i][j]) || Double.isInfinite(a[i][j])) {
+            throw new IllegalStateException("Error: BW - " + (Double.isNaN(a[i][j]) ? "NAN(1)" : "INF(1)")
+                + " a[" + i + "][" + j + "]=" + a[i][j] + "\txsi[" + i + "][" + j + "]=" + xsi
+                + "\tgamma[" + i + "]=" + gamma[i]);
+          }
+        }
+      }
+    }
+
+    for (int k = 0; k < M; k++) {
+      int[] tags = classTags[k];
+      for (int x = 0; x < tags.length; x++) {
+        int i = tags[x];
+        double phi = total.phi[phiOffset[k] + x];
+        if (phi > 0) {
+          b[i][k] = phi / gamma[i];
+          if (Double.isNaN(b[i][k]) || Double.isInfinite(b[i][k])) {
+            throw new IllegalStateException("Error: BW - " + (Double.isNaN(b[i][k]) ? "NAN(2)" : "INF(2)")
+                + " b[" + i + "][" + k + "]=" + b[i][k] + "\tphi[" + i + "][" + k + "]=" + phi
+                + "\tgamma[" + i + "]=" + gamma[i]);
+          }
+        }
+      }
+    }
+
+    //It can be possible that a probability is not updated
+    //We normalize the probabilitites
+    for (int i = 0; i < N; i++) {
+      double sum = 0;
+      for (int j = 0; j < N; j++) {
+        sum += a[i][j];
+      }
+      for (int j = 0; j < N; j++) {
+        a[i][j] = a[i][j] / sum;
+      }
+    }
+
+    double[] sum = new double[N];
+    for (int k = 0; k < M; k++) {
+      for (int i : classTags[k]) {
+        sum[i] += b[i][k];
+      }
+    }
+    for (int k = 0; k < M; k++) {
+      for (int i : classTags[k]) {
+        b[i][k] = b[i][k] / sum[i];
+      }
+    }
+  }
+}
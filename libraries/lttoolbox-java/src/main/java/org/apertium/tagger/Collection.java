@@ -18,6 +18,8 @@
  */
 package org.apertium.tagger;
 
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Set;
@@ -39,10 +41,24 @@ import org.apertium.lttoolbox.Compression;
 public class Collection {
   Map<Set<Integer>, Integer> index;
   ArrayList<Set<Integer>> element;
+  /**
+   * The same index, keyed by the elements as bit sets, as words have their tags as a bit set too
+   * (see TaggerWord.get_tag_bits()) and hashing a BitSet is much cheaper than hashing a Set
+   */
+  private Map<BitSet, Integer> bitIndex;
 
   Collection() {
     index = new LinkedHashMap<Set<Integer>, Integer>();
     element = new ArrayList<Set<Integer>>();
+    bitIndex = new HashMap<BitSet, Integer>();
+  }
+
+  static BitSet toBitSet(Set<Integer> t) {
+    BitSet bits = new BitSet();
+    for (int i : t) {
+      bits.set(i);
+    }
+    return bits;
   }
 
   int size() {
@@ -63,6 +79,15 @@ public class Collection {
     return !index.containsKey(t);
   }
 
+  /**
+   * @param t element, as a bit set
+   * @return its position in the collection, or -1 if it isn't there
+   */
+  int indexOf(BitSet t) {
+    Integer n = bitIndex.get(t);
+    return n == null ? -1 : n;
+  }
+
   /**
    * @param n position in the collection
    * @return the element at the n-th position
@@ -79,6 +104,7 @@ public class Collection {
     if (has_not(t)) {
       index.put(t, index.size() - 1);
       element.add(t);
+      bitIndex.put(toBitSet(t), index.get(t));
     }
     return index.get(t);
   }
@@ -96,6 +122,9 @@ public class Collection {
       if (element == null) {
         element = new ArrayList<Set<Integer>>();
       }
+      if (bitIndex == null) {
+        bitIndex = new HashMap<BitSet, Integer>();
+      }
 
       /* So here's the original line:
        * index.put(t, Integer.valueOf((index.size() > 0) ? index.size()-1 : 0));
@@ -105,6 +134,7 @@ public class Collection {
        */
       index.put(t, Integer.valueOf(index.size()));
       element.add(t);
+      bitIndex.put(toBitSet(t), index.get(t));
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -143,7 +173,7 @@ public class Collection {
 
     for (int i = 0; i != element.size(); i++) {
       Compression.multibyte_write(element.get(i).size(), output);
-      for (Integer it : element.toArray(new Integer[element.size()])) {
+      for (Integer it : element.get(i)) {
         Compression.multibyte_write(it, output);
       }
     }
@@ -26,11 +26,12 @@ import java.io.Writer;
 
 import org.apertium.lttoolbox.Compression;
 
-import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Set;
 import java.util.Map;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
 import org.apertium.utils.IOUtils;
 
@@ -41,15 +42,12 @@ import org.apertium.utils.IOUtils;
 public class HMM {
   private boolean DEBUG = false;
 
-  class IntVector {
-    ArrayList<Integer> nodes = new ArrayList<Integer>();
-  }
-
   private double ZERO = 1e-10;
   private TaggerData td;
   private int eos;
   private boolean debug;
   private boolean show_sf;
+  private boolean generate_marks;
   private boolean null_flush;
   static final double DBL_MIN = 2.2250738585072014E-308;
 
@@ -58,6 +56,7 @@ public class HMM {
 
     this.debug = false;
     this.show_sf = false;
+    this.generate_marks = false;
     this.null_flush = false;
     this.eos = td.getTagIndex().get("TAG_SENT");
   }
@@ -85,6 +84,13 @@ public class HMM {
     show_sf = sf;
   }
 
+  /**
+   * Used to set the generate marks flag
+   */
+  void set_generate_marks(boolean gm) {
+    generate_marks = gm;
+  }
+
   /**
    * Reads the ambiguity classes from the stream received as input
    *
@@ -539,251 +545,42 @@ public class HMM {
     }
   }
 
-  void train(Reader ftxt) throws IOException, UnsupportedOperationException {
-    if (true) {
-      throw new UnsupportedOperationException("HMM training doesn't work, "
-          + "it hasn't been fully ported, yet!");
-    }
-    int k, t, len, nw = 0;
-    TaggerWord word = new TaggerWord();
-    Integer tag;
-    Set<Integer> tags = new LinkedHashSet<Integer>();
-    Set<Integer> pretags = new LinkedHashSet<Integer>();
-    Map<Integer, Double> gamma = new LinkedHashMap<Integer, Double>();
-    Map<Integer, Map<Integer, Double>> alpha = new LinkedHashMap<Integer, Map<Integer, Double>>();
-    Map<Integer, Map<Integer, Double>> beta = new LinkedHashMap<Integer, Map<Integer, Double>>();
-    Map<Integer, Map<Integer, Double>> xsi = new LinkedHashMap<Integer, Map<Integer, Double>>();
-    Map<Integer, Map<Integer, Double>> phi = new LinkedHashMap<Integer, Map<Integer, Double>>();
-    double prob, loli;
-    ArrayList<Set<Integer>> pending = new ArrayList<Set<Integer>>();
-    Collection output = td.getOutput();
-
-    int ndesconocidas = 0;
-    // alpha => forward probabilities
-    // beta => backward probabilities
-
-    MorphoStream morpho_stream = new MorphoStream(ftxt, true, td);
-
-    loli = 0;
-    tag = eos;
-    tags.add(tag);
-    pending.add(tags);
-
-    // alpha[0].clear();
-    // alpha[0][tag] = 1;
-    Map<Integer, Double> tempNewMap = new LinkedHashMap<Integer, Double>();
-    tempNewMap.put(tag, 1.0);
-    alpha.put(0, tempNewMap);
-    /* tempNewMap is just a temporary scratch variable used to store a reference
-     * to the new map so that value can be added to it, and then the new map
-     * stored in alpha. It will be used again below. Set it to null to prevent
-     * re-using it w/o setting it again. This should actually cause a null pointer
-     * exception if tempNewMap is re-used incorrectly, which is the desired behavior.
-     */
-    tempNewMap = null;
-
-    word = morpho_stream.get_next_word();
-
-    // XXX: word is never set in this cycle; this probably leads to an infinite loop
-    while (word != null) {
-      if (++nw % 10000 == 0) {
-        System.err.print(".");
-        System.err.flush();
-      }
-
-      pretags = pending.get(pending.size() - 1);
-
-      tags = word.get_tags();
-
-      if (tags.size() == 0) {
-        tags = td.getOpenClass();
-        ndesconocidas++;
-      }
-
-      if (output.has_not(tags)) {
-        String errors;
-        errors = "A new ambiguity class was found. I cannot continue.\n";
-        errors += "Word '" + word.get_superficial_form() + "' not found in the dictionary.\n";
-        errors += "New ambiguity class: " + word.get_string_tags() + "\n";
-        errors += "Take a look at the dictionary, then retrain.";
-        fatal_error(errors);
-      }
-
-      k = output.get(tags);
-      len = pending.size();
-      // alpha[len].clear()
-      alpha.put(len, new LinkedHashMap<Integer, Double>());
-
-      //Forward probabilities
-      for (Integer i : tags) {
-        for (Integer j : pretags) {
-          // FIXME
-          //alpha[len][i] += alpha[len-1][j]*(td->getA())[j][i]*(td->getB())[i][k];
-          Double ret = alpha.get(len).get(i) + alpha.get(len - 1).get(j) * (td.getA()[j][i]) * (td.getB()[i][k]);
-          alpha.get(len).put(i, ret);
-
-        }
-        if (alpha.get(len).get(i) == 0) {
-          // FIXME
-          //alpha[len][i]=DBL_MIN;
-          alpha.get(len).put(new Integer(i), new Double(DBL_MIN));
-        }
-
-      }
-
-      if (tags.size() > 1) {
-        pending.add(tags);
-      } else { //word is unambiguous
-        tag = tags.iterator().next();
-        tempNewMap = new LinkedHashMap<Integer, Double>();
-        tempNewMap.put(tag, 1.0);
-        beta.put(0, tempNewMap);
-        //clear temp variable for next use
-        tempNewMap = null;
-
-        prob = alpha.get(len).get(tag);
-
-        loli -= Math.log(prob);
-
-        for (t = 0; t < len; t++) {
-          Integer pendingSize = pending.size();
-          pretags = pending.get(pendingSize - 1); //Get the last element
-          pending.remove(pendingSize - 1); //Remove the last element
-          k = output.get(tags);
-          //beta[1 - t % 2].clear()
-          beta.put(1 - t % 2, new LinkedHashMap<Integer, Double>());
-          for (Integer i : tags) {
-            Double tmpDbl;
-            for (Integer j : pretags) {
-              tmpDbl = beta.get(1 - t % 2).get(j) + td.getA()[j][i]
-                  * td.getB()[i][k] * beta.get(t % 2).get(i);
-              beta.get(1 - t % 2).put(j, tmpDbl);
-              if (xsi.get(j) == null) {
-                xsi.put(j, new LinkedHashMap<Integer, Double>());
-              }
-              tmpDbl = xsi.get(j).get(i) + alpha.get(len - t - 1).get(j)
-                  * td.getA()[j][i] * td.getB()[i][k]
-                  * beta.get(t % 2).get(i) / prob;
-              xsi.get(j).put(i, tmpDbl);
-            }
-            double previous_value = gamma.get(i);
-
-            tmpDbl = gamma.get(i) + alpha.get(len - t).get(i)
-                * beta.get(t % 2).get(i) / prob;
-            gamma.put(i, tmpDbl);
-            /* tmp is used here in place of multiple, repeated calls to
-             * gamma.get(i), since the value in tmp is the value that was
-             * just stored at i in gamma.
-             */
-            if (Double.isNaN(tmpDbl)) {
-              throw new IllegalStateException("NAN(3) gamma[" + i + "] = " + tmpDbl
-                  + " alpha[" + (len - t) + "][" + i + "]= "
-                  + alpha.get(len - t).get(i) + " beta[" + (t % 2) + "]["
-                  + i + "] = " + beta.get(t % 2).get(i) + " prob = "
-                  + prob + " previous gamma = " + previous_value);
-            }
-            if (Double.isInfinite(tmpDbl)) {
-              throw new IllegalStateException("INF(3) gamma[" + i + "] = " + tmpDbl
-                  + " alpha[" + (len - t) + "][" + i + "]= "
-                  + alpha.get(len - t).get(i) + " beta[" + (t % 2) + "]["
-                  + i + "] = " + beta.get(t % 2).get(i) + " prob = "
-                  + prob + " previous gamma = " + previous_value);
-            }
-            if (tmpDbl == 0) {
-              gamma.put(i, DBL_MIN);
-            }
-            if (phi.get(i) == null) {
-              phi.put(i, new LinkedHashMap<Integer, Double>());
-            }
-            Double tmpPhiDbl = phi.get(i).get(i) + alpha.get(len - t).get(i)
-                * beta.get(t % 2).get(i) / prob;
-            phi.get(i).put(k, tmpPhiDbl);
-          }
-          tags = pretags;
-        }
-        tags.clear();
-        tags.add(tag);
-        pending.add(tags); //Adds to the end of the list
-        tempNewMap = new LinkedHashMap<Integer, Double>();
-        tempNewMap.put(tag, 1.0);
-        alpha.put(0, tempNewMap);
-        tempNewMap = null;
-      }
-
-      word = morpho_stream.get_next_word();
-    }
-    if ((pending.size() > 1) || ((tag != eos) && (tag != td.getTagIndex().get("TAG_kEOF")))) {
-      System.err.println("Warning: The last tag is not the end-of-sentence tag.");
-    }
-
-    int N = td.getN();
-    int M = td.getM();
-
-    //Clean previous values
-    double[][] tmpA = td.getA();
-    double[][] tmpB = td.getB();
-    for (int i = 0; i < N; i++) {
-      for (int j = 0; j < N; j++) {
-        tmpA[i][j] = ZERO;
-      }
-      for (k = 0; k < M; k++) {
-        tmpB[i][k] = ZERO;
-      }
-    }
-
-    //new parameters
-    for (Integer i : xsi.keySet()) {
-      for (Integer j : xsi.get(i).keySet()) {
-        if (xsi.get(i).get(j) > 0) {
-          if (gamma.get(i) == 0) {
-            System.err.println("Warning: gamma[" + i + "]=0");
-            gamma.put(i, DBL_MIN);
-          }
-
-          //Reuse td.A reference grabbed before previous loop
-          tmpA[i][j] = xsi.get(i).get(j) / gamma.get(i);
-
-          if (Double.isNaN(tmpA[i][j])) {
-            throw new IllegalStateException("Error: BW - NAN(1) a[" + i + "][" + j
-                + "]=" + tmpA[i][j] + "\txsi[" + i + "][" + j + "]="
-                + xsi.get(i).get(j) + "\tgamma[" + i + "]=" + gamma.get(i));
-          }
-          if (Double.isInfinite(tmpA[i][j])) {
-            throw new IllegalStateException("Error: BW - INF(1) a[" + i + "][" + j
-                + "]=" + tmpA[i][j] + "\txsi[" + i + "][" + j + "]="
-                + xsi.get(i).get(j) + "\tgamma[" + i + "]=" + gamma.get(i));
-          }
-          if (tmpA[i][j] == 0) {
-            /* Do nothing for now, the code in the C++ version for this
-             * conditional is all commented out.
-             */
-          }
-        }
-      }
+  /**
+   * Unsupervised training of the probabilities with the Baum-Welch algorithm (see BaumWelch)
+   *
+   * @param ftxt the untagged training corpus, as given by the morphological analyser
+   * @param iterations the number of iterations
+   */
+  void train(Reader ftxt, int iterations) throws IOException {
+    BaumWelch bw = new BaumWelch(td, eos);
+    bw.readCorpus(ftxt);
+    for (int i = 0; i < iterations; i++) {
+      System.err.print("Iteration " + (i + 1) + ": ");
+      bw.iterate();
     }
-    /* TODO This should be finished sometime if we decide we actually need the training
-     * functionality for the HMM tagger.
-     */
   }
 
   void tagger(Reader in, Appendable out, boolean show_all_good_first) throws IOException {
     int i, j, k;
     TaggerWord word = null;// new TaggerWord();  // word =null;
-    Integer tag;
+    int tag;
 
     Set<Integer> tags = new LinkedHashSet<Integer>();
-    Set<Integer> pretags = new LinkedHashSet<Integer>();
 
     double prob, x;
 
     int N = td.getN();
     double[][] alpha = new double[2][N];
-    IntVector[][] best = new IntVector[2][N];
-    for (int myi = 0; myi != 2; myi++) {
-      for (int myj = 0; myj != N; myj++) {
-        best[myi][myj] = new IntVector();
-      }
-    }
+    /* Instead of the best path to each tag of the last word, only the previous tag on it is kept
+     * for each pending word (a backpointer), and the paths are followed back when a word is not
+     * ambiguous. pendingTags[t] has the tags of pending word t, in the order of its ambiguity class,
+     * and backpointers[t][n] the tag of word t-1 on the best path to pendingTags[t][n].
+     */
+    int[][] pendingTags = new int[16][];
+    int[] pendingTagCount = new int[16];
+    int[][] backpointers = new int[16][];
+    int[] path = new int[16];
+    int[] lastTag = {eos}; // the tag of the last word that wasn't pending
 
     ArrayList<TaggerWord> wpend = new ArrayList<TaggerWord>();
 
@@ -791,6 +588,9 @@ public class HMM {
     morpho_stream.setNullFlush(null_flush);
 
     Collection output = td.getOutput();
+    BitSet openClassBits = Collection.toBitSet(td.getOpenClass());
+    // ambiguity classes that weren't in the tagger data, and the known ones used instead
+    Map<BitSet, Set<Integer>> similarClasses = new HashMap<BitSet, Set<Integer>>();
 
     double loli = 0;
 
@@ -807,17 +607,19 @@ public class HMM {
       wpend.add(word);
       final int nwpend = wpend.size();
       final int nwpend2 = nwpend % 2;
-
-      pretags = tags; // Tags from the previous word
+      final int w = nwpend - 1; // index of this word among the pending ones
 
       tags = word.get_tags();
+      BitSet tagBits = word.get_tag_bits();
 
       if (tags.size() == 0) // This is an unknown word
       {
         tags = td.getOpenClass();
+        tagBits = openClassBits;
       }
 
-      if (output.has_not(tags)) {
+      k = output.indexOf(tagBits);  //Ambiguity class the word belongs to
+      if (k == -1) {
         if (debug) {
           String errors;
           errors = "A new ambiguity class was found. \n";
@@ -826,51 +628,84 @@ public class HMM {
           errors += "New ambiguity class: " + word.get_string_tags() + "\n";
           System.err.print(errors);
         }
-        tags = find_similar_ambiguity_class(tags);
+        Set<Integer> similar = similarClasses.get(tagBits);
+        if (similar == null) {
+          similar = find_similar_ambiguity_class(tags);
+          similarClasses.put((BitSet) tagBits.clone(), similar);
+        }
+        tags = similar;
+        k = output.get(tags);
       }
 
-      k = output.get(tags);  //Ambiguity class the word belongs to
       if (DEBUG)
         System.out.println("k: " + k);
 
-      clear_array_double(alpha[nwpend2]);
-      clear_array_vector(best[nwpend2]);
+      if (w == pendingTags.length) {
+        int newLength = w * 2;
+        int[][] newPendingTags = new int[newLength][];
+        System.arraycopy(pendingTags, 0, newPendingTags, 0, w);
+        pendingTags = newPendingTags;
+        int[] newPendingTagCount = new int[newLength];
+        System.arraycopy(pendingTagCount, 0, newPendingTagCount, 0, w);
+        pendingTagCount = newPendingTagCount;
+        int[][] newBackpointers = new int[newLength][];
+        System.arraycopy(backpointers, 0, newBackpointers, 0, w);
+        backpointers = newBackpointers;
+        path = new int[newLength];
+      }
+      int ntags = tags.size();
+      if (pendingTags[w] == null || pendingTags[w].length < ntags) {
+        pendingTags[w] = new int[ntags];
+        backpointers[w] = new int[ntags];
+      }
+      int[] cur = pendingTags[w];
+      int[] back = backpointers[w];
+      int n = 0;
+      for (Integer itag : tags) {
+        cur[n++] = itag;
+      }
+      pendingTagCount[w] = ntags;
+
+      int[] pre;
+      int npre;
+      if (w == 0) {
+        pre = lastTag;
+        npre = 1;
+      } else {
+        pre = pendingTags[w - 1];
+        npre = pendingTagCount[w - 1];
+      }
+
+      double[] alphaCur = alpha[nwpend2];
+      double[] alphaPre = alpha[1 - nwpend2];
+      double[][] A = td.getA();
+      double[][] B = td.getB();
+      clear_array_double(alphaCur);
 
       //Induction
-      for (Integer itag : tags) {
-        i = itag;
+      for (n = 0; n < ntags; n++) {
+        i = cur[n];
         if (DEBUG)
-          System.out.println("i: " + itag);
-        for (Integer jtag : pretags) {
-          j = jtag;
-          x = alpha[1 - nwpend2][j] * td.getA()[j][i] * td.getB()[i][k];
+          System.out.println("i: " + i);
+        for (int m = 0; m < npre; m++) {
+          j = pre[m];
+          x = alphaPre[j] * A[j][i] * B[i][k];
           if (DEBUG)
-            System.out.println("j: " + jtag + " nwpend: " + nwpend + " A[j][i]: " + td.getA()[j][i] + " B[i][k]: " + td.getB()[i][k] + "  x: " + x);
-          if (alpha[nwpend2][i] <= x) {
-            if (nwpend > 1) {
-              /* This should be *replacing* nodes, not just adding them.
-               * However, if we're replacing the nodes with themselves,
-               * no need to do anything, and in fact the clear() call
-               * would be detrimental.
-               */
-              if (((nwpend2) != (1 - nwpend2)) || (i != j)) {
-                best[nwpend2][i].nodes.clear();
-                best[nwpend2][i].nodes.addAll(best[1 - nwpend2][j].nodes);
-              }
-            }
+            System.out.println("j: " + j + " nwpend: " + nwpend + " A[j][i]: " + A[j][i] + " B[i][k]: " + B[i][k] + "  x: " + x);
+          if (alphaCur[i] <= x) {
             if (DEBUG)
               System.out.println("best: " + (nwpend2) + " " + i);
-            best[nwpend2][i].nodes.add(i);
-            alpha[nwpend2][i] = x;
+            back[n] = j;
+            alphaCur[i] = x;
           }
         }
       }
 
       //Backtracking
-      if (tags.size() == 1) {
-        tag = tags.iterator().next();
+      if (ntags == 1) {
+        tag = cur[0];
 
-        prob = alpha[nwpend2][tag];
+        prob = alphaCur[tag];
 
         if (prob > 0) {
           loli -= Math.log(prob);
@@ -880,23 +715,34 @@ public class HMM {
           }
         }
 
-        for (int t = 0; t < best[nwpend2][tag].nodes.size(); t++) {
+        path[w] = tag;
+        for (int t = w; t > 0; t--) {
+          int[] ptags = pendingTags[t];
+          int m = 0;
+          while (ptags[m] != path[t]) {
+            m++;
+          }
+          path[t - 1] = backpointers[t][m];
+        }
+
+        int tagkeof = td.getTagIndex().get("TAG_kEOF");
+        for (int t = 0; t < nwpend; t++) {
+          wpend.get(t).set_generate_marks(generate_marks);
           if (show_all_good_first) {
-            String micad = wpend.get(t).get_all_chosen_tag_first(best[nwpend2][tag].nodes.get(t), td.getTagIndex().get("TAG_kEOF"));
+            String micad = wpend.get(t).get_all_chosen_tag_first(path[t], tagkeof);
             out.append(micad);
           } else {
             //Split out the following line for debugging.
-            //String micad = wpend.get(t).get_lexical_form(best[nwpend2][tag].nodes.get(t), td.getTagIndex().get("TAG_kEOF"));
-            int tagkeof = td.getTagIndex().get("TAG_kEOF");
-            int tagT = best[nwpend2][tag].nodes.get(t);
+            //String micad = wpend.get(t).get_lexical_form(path[t], tagkeof);
             TaggerWord tempWord = wpend.get(t);
             tempWord.set_show_sf(show_sf); //Was missing, show superficial forms option won't work w/o this line
-            String micad = tempWord.get_lexical_form(tagT, tagkeof);
+            String micad = tempWord.get_lexical_form(path[t], tagkeof);
             out.append(micad);
           }
         }
         wpend.clear();
         alpha[0][tag] = 1;
+        lastTag[0] = tag;
       }
 
       if (morpho_stream.getEndOfFile()) {
@@ -1023,10 +869,4 @@ public class HMM {
       a[i] = 0.0;
     }
   }
-
-  void clear_array_vector(IntVector a[]) {
-    for (int i = 0; i < a.length; i++) {
-      a[i].nodes.clear();
-    }
-  }
 }
@@ -322,8 +322,8 @@ class PatternList {
     Compression.multibyte_write(final_type.size(), output);
 
     for (Map.Entry<Integer, Integer> it : final_type.entrySet()) {
-      output.write(it.getKey());
-      output.write(it.getValue());
+      Compression.multibyte_write(it.getKey(), output);
+      Compression.multibyte_write(it.getValue(), output);
     }
   }
 
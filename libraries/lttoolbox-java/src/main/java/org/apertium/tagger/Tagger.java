@@ -22,12 +22,14 @@ import static org.apertium.utils.IOUtils.getStdinReader;
 import static org.apertium.utils.IOUtils.getStdoutWriter;
 import static org.apertium.utils.IOUtils.openInFileReader;
 import static org.apertium.utils.IOUtils.openInFileStream;
+import static org.apertium.utils.IOUtils.openOutFileStream;
 import static org.apertium.utils.IOUtils.openOutFileWriter;
 
 import java.util.List;
 import java.util.ArrayList;
 import java.io.*;
 import java.util.HashMap;
+import java.util.Map;
 
 import org.apertium.lttoolbox.Getopt;
 import org.apertium.utils.IOUtils;
@@ -49,6 +51,7 @@ class MyGetOpt extends Getopt {
  */
 public class Tagger {
   boolean showSF;
+  boolean generateMarks;
   boolean null_flush;
   private static final int UNKNOWN_MODE = 0;
   private static final int TRAIN_MODE = 1;
@@ -59,9 +62,11 @@ public class Tagger {
   private static final int RETRAIN_SUPERVISED_MODE = 6;
   private static final int TAGGER_EVAL_MODE = 7;
   private static final int TAGGER_FIRST_MODE = 8;
-  static boolean debug;
+  boolean debug;
+  int nit;
   List<String> filenames;
-  private static String name;
+  Map<String, TaggerData> tdCache;
+  private static final String name = new ClassName().getName();
   //Low-level dev debugging
   private static boolean DEBUG = false;
   private static HashMap<String, TaggerData> cache = new HashMap<String, TaggerData>();
@@ -80,9 +85,9 @@ public class Tagger {
   Tagger() {
     debug = false;
     showSF = false;
+    generateMarks = false;
     null_flush = false;
     filenames = new ArrayList<String>();
-    name = new ClassName().getName();
   }
 
   void setShowSF(boolean val) {
@@ -96,14 +101,7 @@ public class Tagger {
   int getMode(String[] argv) {
     int mode = UNKNOWN_MODE;
 
-    MyGetOpt getopt = new MyGetOpt(argv, "mdtsrgpefhz");
-
-    /* Reset TaggerWord.generate_marks to false in case a previous invocation set it
-     * to true. This shows up when doing tests, as the static variables retain their
-     * states between tests. This also may show up when in pipeline mode, if tagger
-     * is called more than once for some reason.
-     */
-    TaggerWord.setGenerateMarks(false);
+    MyGetOpt getopt = new MyGetOpt(argv, "mdtsr:gpefhz");
 
     while (true) {
       try {
@@ -145,7 +143,7 @@ public class Tagger {
             break;
 
           case 'm':
-            TaggerWord.setGenerateMarks(true);
+            generateMarks = true;
             break;
 
           case 'p':
@@ -153,6 +151,18 @@ public class Tagger {
             break;
 
           case 'r':
+            try {
+              nit = Integer.parseInt(getopt.getOptarg());
+            } catch (NumberFormatException e) {
+              nit = 0;
+            }
+            if (nit <= 0) {
+              System.err.println("Error: Number of iterations must be a positive integer");
+              return UNKNOWN_MODE; // rather than retrain with no iterations, overwriting the tagger data
+            }
+            mode = RETRAIN_MODE;
+            break;
+
           case 's':
           case 't':
             throw new IllegalArgumentException("Training not supported");
@@ -277,7 +287,16 @@ public class Tagger {
   }
 
   public static void taggerDispatch(String[] args, Reader input, Appendable output) {
+    taggerDispatch(args, input, output, cacheEnabled ? cache : null);
+  }
+
+  /**
+   * Same as taggerDispatch(args, input, output), but loaded tagger data is looked up in
+   * and stored into the given cache (which can be null) instead of the static one.
+   */
+  public static void taggerDispatch(String[] args, Reader input, Appendable output, Map<String, TaggerData> tdCache) {
     Tagger t = new Tagger();
+    t.tdCache = tdCache;
     int mode = t.getMode(args);
     switch (mode) {
       case TRAIN_MODE:
@@ -289,7 +308,11 @@ public class Tagger {
         break;
 
       case RETRAIN_MODE:
-        //retrain();
+        try {
+          t.retrain();
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
         break;
 
       case TAGGER_MODE:
@@ -333,14 +356,14 @@ public class Tagger {
     if (IOUtils.timing != null)
       IOUtils.timing.log("");
 
-    TaggerData td = cache.get(filenames.get(0));
+    TaggerData td = tdCache != null ? tdCache.get(filenames.get(0)) : null;
     if (td == null) {
       InputStream ftdata = openInFileStream(filenames.get(0));
       td = new TaggerData();
       td.read(ftdata);
       ftdata.close();
-      if (cacheEnabled)
-        cache.put(filenames.get(0), td);
+      if (tdCache != null)
+        tdCache.put(filenames.get(0), td);
       if (IOUtils.timing != null)
         IOUtils.timing.log("Load tagger " + filenames.get(0));
     }
@@ -348,6 +371,7 @@ public class Tagger {
     HMM hmm = new HMM(td);
 
     hmm.set_show_sf(showSF);
+    hmm.set_generate_marks(generateMarks);
     hmm.setNullFlush(null_flush);
 
     Reader sysInReader = getStdinReader();
@@ -387,6 +411,30 @@ public class Tagger {
     tagger(false);
   }
 
+  /**
+   * Does nit more iterations of Baum-Welch on the corpus filenames[0], updating the tagger data in filenames[1]
+   */
+  void retrain() throws IOException {
+    InputStream ftdata = openInFileStream(filenames.get(1));
+    TaggerData td = new TaggerData();
+    td.read(ftdata);
+    ftdata.close();
+
+    HMM hmm = new HMM(td);
+    hmm.set_debug(debug);
+
+    Reader fcrp = openInFileReader(filenames.get(0));
+    hmm.train(fcrp, nit);
+    fcrp.close();
+    hmm.apply_rules();
+
+    OutputStream fout = openOutFileStream(filenames.get(1));
+    td.write(fout);
+    fout.close();
+    if (tdCache != null)
+      tdCache.remove(filenames.get(1));
+  }
+
   void tagger(boolean mode_first) throws IOException {
     tagger(mode_first, null, null);
   }
@@ -316,10 +316,11 @@ public class TaggerData {
       }
     }
 
+    // only b[i][k] with the tag i in the ambiguity class k are meaningful
     int nval = 0;
     for (int i = 0; i != N; i++) {
       for (int j = 0; j != M; j++) {
-        if (!output.get(j).contains(i)) {
+        if (output.get(j).contains(i)) {
           nval++;
         }
       }
@@ -327,10 +328,12 @@ public class TaggerData {
 
     Compression.multibyte_write(nval, out);
     for (int i = 0; i != N; i++) {
-      for (int j = 0; j != N; j++) {
-        Compression.multibyte_write(i, out);
-        Compression.multibyte_write(j, out);
-        Compression.writeDouble(out, b[i][j]);
+      for (int j = 0; j != M; j++) {
+        if (output.get(j).contains(i)) {
+          Compression.multibyte_write(i, out);
+          Compression.multibyte_write(j, out);
+          Compression.writeDouble(out, b[i][j]);
+        }
       }
     }
 
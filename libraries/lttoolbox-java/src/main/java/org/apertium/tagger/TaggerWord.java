@@ -18,6 +18,7 @@
  */
 package org.apertium.tagger;
 
+import java.util.BitSet;
 import java.util.Set;
 import java.util.Map;
 import java.util.List;
@@ -28,6 +29,7 @@ import java.io.IOException;
 import java.io.Writer;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Class TaggerWord.
@@ -40,6 +42,8 @@ import java.util.LinkedHashSet;
 public class TaggerWord {
   private String superficial_form;
   private Set<Integer> tags;
+  /** The same tags, to find the ambiguity class quickly */
+  private BitSet tagBits;
   private Map<Integer, String> lexical_forms;
   private String ignored_string;
   /**
@@ -58,15 +62,19 @@ public class TaggerWord {
    * Show the superficial form in the output
    */
   private boolean show_sf;
-  //TODO: check and make sure these really need to be static variables
   /**
    * Will be set to true if the -m (mark disambiguated words) option was used
    * on the command-line.
    */
-  private static boolean generate_marks = false;
-  public static ArrayList<String> array_tags;
-  public static boolean show_ignored_string = true;
-  private static Map<String, ApertiumRE> patterns = new LinkedHashMap<String, ApertiumRE>();
+  private boolean generate_marks = false;
+  /**
+   * Marks the ambiguous words of every tagger, as set by the deprecated setGenerateMarks()
+   */
+  private static volatile boolean generate_marks_always = false;
+  private ArrayList<String> array_tags;
+  public static final boolean show_ignored_string = true;
+  // Shared by every tagger in the JVM, so it must be safe to use from several threads
+  private static Map<String, ApertiumRE> patterns = new ConcurrentHashMap<String, ApertiumRE>();
   private static boolean DEBUG = false;
 
   public TaggerWord(boolean prev_plus_cut) {
@@ -74,6 +82,7 @@ public class TaggerWord {
     plus_cut = false;
     previous_plus_cut = prev_plus_cut;
     tags = new LinkedHashSet<Integer>();
+    tagBits = new BitSet();
     lexical_forms = new LinkedHashMap<Integer, String>();
   }
 
@@ -82,14 +91,25 @@ public class TaggerWord {
   }
 
   /**
-   * Sets the static generate_marks flag.
-   * Keep in mind when doing testing that the state of this flag may be retained
-   * across tests.
+   * Sets the flag that determines if ambiguous words will be marked
+   * with '=' in the output.
+   *
+   * @param genMarks
+   */
+  public void set_generate_marks(boolean genMarks) {
+    this.generate_marks = genMarks;
+  }
+
+  /**
+   * Sets whether the ambiguous words of every tagger in the JVM are marked, besides those of the
+   * taggers they were set for with set_generate_marks().
    *
    * @param genMarks
+   * @deprecated the flag is shared by all taggers. Use Tagger's -m option or set_generate_marks()
    */
+  @Deprecated
   public static void setGenerateMarks(boolean genMarks) {
-    generate_marks = genMarks;
+    generate_marks_always = genMarks;
   }
 
   /**
@@ -172,6 +192,7 @@ public class TaggerWord {
     try {
       if (!tags.contains(t)) {
         tags.add(t);
+        tagBits.set(t);
         lexical_forms.put(t, lf);
       } else {
         for (int i = 0; i < prefer_rules.size(); i++) {
@@ -198,6 +219,13 @@ public class TaggerWord {
     return tags;
   }
 
+  /**
+   * Get the set of tags of this word as a bit set. Must not be modified.
+   */
+  BitSet get_tag_bits() {
+    return tagBits;
+  }
+
   public boolean isAmbiguous() {
     return tags.size() > 1;
   }
@@ -238,7 +266,7 @@ public class TaggerWord {
     }
 
     if (!this.previous_plus_cut) {
-      if (generate_marks && isAmbiguous()) {
+      if ((generate_marks || generate_marks_always) && isAmbiguous()) {
         ret += "^=";
       } else {
         ret += "^";
@@ -284,7 +312,7 @@ public class TaggerWord {
       return ret;
 
     if (!previous_plus_cut) {
-      if (generate_marks && isAmbiguous()) {
+      if ((generate_marks || generate_marks_always) && isAmbiguous()) {
         ret += "^=";
       } else {
         ret += "^";
@@ -412,6 +440,7 @@ public class TaggerWord {
 
       if (tags.length() != newsettag.size()) {
         this.tags = newsettag;
+        this.tagBits = Collection.toBitSet(newsettag);
       }
     }
   }
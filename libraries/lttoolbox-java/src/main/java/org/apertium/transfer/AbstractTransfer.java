@@ -45,6 +45,7 @@ public abstract class AbstractTransfer {
    */
   protected boolean null_flush;
   protected boolean internal_null_flush;
+  private TransferTokenReader token_reader;
 
   public boolean getNullFlush() {
     return null_flush;
@@ -68,10 +69,10 @@ public abstract class AbstractTransfer {
     any_tag = alphabet.cast(TRXReader__ANY_TAG);
     File cacheFile = null;
     //System.out.println("reading : "+name);
-    if (IOUtils.cacheDir != null && filename != null) {
+    if (IOUtils.getCacheDir() != null && filename != null) {
       // Try to load make cached a memmapped transducer cache file
       String fileid = new File(filename).getAbsolutePath().replace(File.separatorChar, '_').replace('.', '_');
-      cacheFile = new File(IOUtils.cacheDir, fileid);
+      cacheFile = new File(IOUtils.getCacheDir(), fileid);
       //System.out.println("cachedFile = " + cacheFile);
     }
     // faster - let it read itself, thus no need to make a big hashmap
@@ -130,6 +131,22 @@ public abstract class AbstractTransfer {
       IOUtils.timing.log("Init transfer object for " + datafile);
   }
 
+  /**
+   * Reads the next token of in, with the same token reader as last time if it was for the same
+   * input, so that nothing it read ahead is lost. The reader is dropped at the end of the input,
+   * so that a cached transfer doesn't keep the input alive
+   */
+  protected TransferToken readTokenFrom(Reader in, boolean chunks) throws IOException {
+    if (token_reader == null || !token_reader.isReading(in)) {
+      token_reader = new TransferTokenReader(in, chunks);
+    }
+    TransferToken token = token_reader.readToken(internal_null_flush);
+    if (token.type == TransferToken.TransferTokenType.tt_eof) {
+      token_reader = null;
+    }
+    return token;
+  }
+
   protected void process_wrapper_null_flush(Reader input, Appendable output) throws Exception {
     null_flush = false;
     internal_null_flush = true;
@@ -4,20 +4,33 @@
  */
 package org.apertium.transfer;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
+ * A regular expression as used in transfer rules, matched case insensitively.
+ *
+ * The attribute regexps transfer rules are made of, like <(?:n|adj)><(?:sg|pl)> and the fixed
+ * ones for lem, lemh, whole and tags, are found without java.util.regex (see Finder), which
+ * remains for any other regexp.
  *
  * @author Jacob Nordfalk
  */
 public class ApertiumRE {
   Pattern re;
+  /** Finds the regexp without java.util.regex, or null if it can't */
+  private final Finder finder;
 
   // Consider using http://jakarta.apache.org/regexp/apidocs/org/apache/regexp/RE.html
   public ApertiumRE(String regex) {
     re = Pattern.compile(regex, Pattern.DOTALL | Pattern.CASE_INSENSITIVE); // |Pattern.UNICODE_CASE
     // PCRE_DOTALL|PCRE_CASELESS|PCRE_EXTENDED|PCRE_UTF8,
+    finder = Finder.forRegex(regex);
   }
 
   public String toString() {
@@ -26,20 +39,294 @@ public class ApertiumRE {
   public static final String EMPTY_STRING = "";
 
   public String match(String source) {
-    Matcher m = re.matcher(source);
-    if (!m.find())
-      return ""; // Note: This string is used for checking for object equality in transfer
+    return match(source, source.length());
+  }
 
-    //System.err.println("m = " + m);
-    //System.err.println("m = " + m.groupCount());
+  /**
+   * Like match(source.substring(0, end)), without the substring
+   */
+  public String match(String source, int end) {
+    long found = find(source, end);
+    if (found < 0)
+      return ""; // Note: This string is used for checking for object equality in transfer
 
-    return m.group();
+    return source.substring((int) (found >>> 32), (int) found);
   }
 
   public String replace(String source, String value) {
+    return replace(source, source.length(), value);
+  }
+
+  /**
+   * Like replace(source.substring(0, end), value) + source.substring(end), without the substrings
+   */
+  public String replace(String source, int end, String value) {
+    long found = find(source, end);
+    if (found < 0)
+      return source;
+    int start = (int) (found >>> 32);
+    int stop = (int) found;
+    return new StringBuilder(source.length() - (stop - start) + value.length())
+        .append(source, 0, start).append(value).append(source, stop, source.length()).toString();
+  }
+
+  /**
+   * @return the first match in source[0..end) as start << 32 | end, or -1 if there is none
+   */
+  private long find(String source, int end) {
+    if (finder != null)
+      return finder.find(source, end);
     Matcher m = re.matcher(source);
+    if (end < source.length())
+      m.region(0, end);
     if (!m.find())
-      return source;
-    return source.substring(0, m.start()) + value + source.substring(m.end());
+      return -1;
+    return (long) m.start() << 32 | m.end();
+  }
+
+  /**
+   * Finds a regexp the same way as java.util.regex with DOTALL and CASE_INSENSITIVE
+   * (which only ignores the case of US-ASCII letters).
+   */
+  abstract static class Finder {
+    // The fixed attributes of TransferBytecode. In lem and lemh, the alternatives after the
+    // character class can never match, as they start with a character the class takes.
+    private static final String LEM = "(([^<]|\"\\<\")+)";
+    private static final String LEMH = "(([^<#]|\"\\<\"|\"\\#\")+)";
+    private static final String WHOLE = "(.+)";
+    private static final String TAGS = "((<[^>]+>)+)";
+
+    /**
+     * @return the first match in s[0..end) as start << 32 | end, or -1 if there is none
+     */
+    abstract long find(CharSequence s, int end);
+
+    /**
+     * @return a Finder for the regexp, or null if it must be matched with java.util.regex
+     */
+    static Finder forRegex(String regex) {
+      if (regex.equals(LEM))
+        return new RunFinder("<");
+      if (regex.equals(LEMH))
+        return new RunFinder("<#");
+      if (regex.equals(WHOLE))
+        return new WholeFinder();
+      if (regex.equals(TAGS))
+        return new TagsFinder();
+      List<String> literals = parseAlternation(regex);
+      return literals == null ? null : new LiteralsFinder(literals);
+    }
+
+    /**
+     * Parses a regexp made of literal characters with at most one group of alternatives
+     * (?:a|b|...), as TransferBytecode.attrItemRegexp() makes them
+     *
+     * @return the strings it matches, in the order they are tried, or null if it isn't like that
+     */
+    static List<String> parseAlternation(String regex) {
+      StringBuilder prefix = new StringBuilder();
+      StringBuilder suffix = new StringBuilder();
+      List<StringBuilder> alternatives = null;
+      StringBuilder current = prefix;
+      for (int i = 0; i < regex.length(); i++) {
+        char c = regex.charAt(i);
+        if (c == '\\') {
+          if (++i == regex.length() || Character.isLetterOrDigit(regex.charAt(i)))
+            return null; // a character class or the like
+          current.append(regex.charAt(i));
+        } else if (c == '(' && alternatives == null && regex.startsWith("(?:", i)) {
+          alternatives = new ArrayList<StringBuilder>();
+          alternatives.add(current = new StringBuilder());
+          i += 2;
+        } else if (c == '|' && current != prefix && current != suffix) {
+          alternatives.add(current = new StringBuilder());
+        } else if (c == ')' && current != prefix && current != suffix) {
+          current = suffix;
+        } else if ("^$.|?*+()[]{}".indexOf(c) >= 0) {
+          return null;
+        } else {
+          current.append(c);
+        }
+      }
+      if (current != prefix && current != suffix)
+        return null; // unclosed group
+      List<String> literals = new ArrayList<String>();
+      if (alternatives == null) {
+        literals.add(prefix.toString());
+      } else {
+        for (StringBuilder alternative : alternatives)
+          literals.add(prefix.toString() + alternative + suffix);
+      }
+      for (String literal : literals) {
+        if (literal.length() == 0)
+          return null;
+      }
+      return literals;
+    }
+
+    static char toLower(char c) {
+      return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+  }
+
+  /**
+   * Finds the first of a list of strings, in a trie. At each position, the string that comes
+   * first in the list is taken among those found there, like an alternation does.
+   */
+  static class LiteralsFinder extends Finder {
+    /** Characters (lower case) and target nodes of the edges from each node, sorted by character */
+    private final char[][] edgeChars;
+    private final int[][] edgeTargets;
+    /** The lowest index of the strings ending at each node, or Integer.MAX_VALUE */
+    private final int[] ending;
+
+    LiteralsFinder(List<String> literals) {
+      List<Map<Character, Integer>> edges = new ArrayList<Map<Character, Integer>>();
+      List<Integer> ends = new ArrayList<Integer>();
+      edges.add(new HashMap<Character, Integer>());
+      ends.add(Integer.MAX_VALUE);
+      for (int i = 0; i < literals.size(); i++) {
+        String literal = literals.get(i);
+        int node = 0;
+        for (int j = 0; j < literal.length(); j++) {
+          Character c = toLower(literal.charAt(j));
+          Integer next = edges.get(node).get(c);
+          if (next == null) {
+            next = edges.size();
+            edges.add(new HashMap<Character, Integer>());
+            ends.add(Integer.MAX_VALUE);
+            edges.get(node).put(c, next);
+          }
+          node = next;
+        }
+        ends.set(node, Math.min(ends.get(node), i));
+      }
+      int n = edges.size();
+      edgeChars = new char[n][];
+      edgeTargets = new int[n][];
+      ending = new int[n];
+      for (int node = 0; node < n; node++) {
+        Map<Character, Integer> e = edges.get(node);
+        char[] chars = new char[e.size()];
+        int k = 0;
+        for (Character c : e.keySet())
+          chars[k++] = c;
+        Arrays.sort(chars);
+        int[] targets = new int[chars.length];
+        for (k = 0; k < chars.length; k++)
+          targets[k] = e.get(chars[k]);
+        edgeChars[node] = chars;
+        edgeTargets[node] = targets;
+        ending[node] = ends.get(node);
+      }
+    }
+
+    @Override
+    long find(CharSequence s, int end) {
+      // usually all start with '<', so most positions are skipped right away
+      char first = edgeChars[0].length == 1 ? edgeChars[0][0] : 0;
+      boolean firstIsLetter = first >= 'a' && first <= 'z';
+      for (int start = 0; start < end; start++) {
+        if (first != 0 && !firstIsLetter && s.charAt(start) != first)
+          continue;
+        int node = 0;
+        int best = Integer.MAX_VALUE;
+        int bestEnd = -1;
+        for (int i = start; i < end; i++) {
+          int k = edge(edgeChars[node], toLower(s.charAt(i)));
+          if (k < 0)
+            break;
+          node = edgeTargets[node][k];
+          if (ending[node] < best) {
+            best = ending[node];
+            bestEnd = i + 1;
+          }
+        }
+        if (bestEnd >= 0)
+          return (long) start << 32 | bestEnd;
+      }
+      return -1;
+    }
+
+    private static int edge(char[] chars, char c) {
+      if (chars.length > 8)
+        return Arrays.binarySearch(chars, c);
+      for (int k = 0; k < chars.length; k++) {
+        if (chars[k] == c)
+          return k;
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * Finds the first run of characters not in stops, like [^stops]+
+   */
+  static class RunFinder extends Finder {
+    private final String stops;
+
+    RunFinder(String stops) {
+      this.stops = stops;
+    }
+
+    @Override
+    long find(CharSequence s, int end) {
+      int start = 0;
+      while (start < end && stops.indexOf(s.charAt(start)) >= 0)
+        start++;
+      if (start == end)
+        return -1;
+      int stop = start + 1;
+      while (stop < end && stops.indexOf(s.charAt(stop)) < 0)
+        stop++;
+      return (long) start << 32 | stop;
+    }
+  }
+
+  /**
+   * Finds everything, if it isn't empty, like (.+) with DOTALL
+   */
+  static class WholeFinder extends Finder {
+    @Override
+    long find(CharSequence s, int end) {
+      return end == 0 ? -1 : end;
+    }
+  }
+
+  /**
+   * Finds the first sequence of tags, like (<[^>]+>)+
+   */
+  static class TagsFinder extends Finder {
+    @Override
+    long find(CharSequence s, int end) {
+      for (int start = 0; start < end; start++) {
+        if (s.charAt(start) != '<')
+          continue;
+        int stop = tagEnd(s, start, end);
+        if (stop == NO_END)
+          break; // nor will any later tag
+        if (stop < 0)
+          continue;
+        int next;
+        while (stop < end && s.charAt(stop) == '<' && (next = tagEnd(s, stop, end)) >= 0)
+          stop = next;
+        return (long) start << 32 | stop;
+      }
+      return -1;
+    }
+
+    private static final int NO_END = -2;
+
+    /**
+     * @return the end of the tag (with at least one character inside) starting at start, -1 if
+     * it is empty, or NO_END if there is no '>' after start
+     */
+    private static int tagEnd(CharSequence s, int start, int end) {
+      for (int i = start + 1; i < end; i++) {
+        if (s.charAt(i) == '>')
+          return i > start + 1 ? i + 1 : -1;
+      }
+      return NO_END;
+    }
   }
 }
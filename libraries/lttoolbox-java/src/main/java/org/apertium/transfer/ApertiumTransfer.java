@@ -26,6 +26,7 @@ import org.apertium.lttoolbox.*;
 import org.apertium.lttoolbox.process.FSTProcessor;
 import java.io.*;
 import java.util.HashMap;
+import java.util.Map;
 
 import org.apertium.lttoolbox.process.State;
 import org.apertium.utils.IOUtils;
@@ -87,8 +88,16 @@ public class ApertiumTransfer {
     doMain(argv, null, null);
   }
 
-  @SuppressWarnings("unchecked")
   public static void doMain(String[] argv, Reader input, Appendable output) throws Exception {
+    doMain(argv, input, output, cacheEnabled ? cache : null);
+  }
+
+  /**
+   * Same as doMain(argv, input, output), but loaded transfers are looked up in and
+   * stored into the given cache (which can be null) instead of the static one.
+   */
+  @SuppressWarnings("unchecked")
+  public static void doMain(String[] argv, Reader input, Appendable output, Map<String, Transfer> transferCache) throws Exception {
 
     boolean useBD = true;
 
@@ -185,13 +194,14 @@ public class ApertiumTransfer {
     String preProc = argv[optind + 2];
     String bilTrans = useBD ? argv[optind + 3] : null;
     String key = tRulesOrClassString + "; " + preProc + "; " + bilTrans;
-    t = cache.get(key);
+    if (transferCache != null)
+      t = transferCache.get(key);
     if (t == null) {
       Class tRulesClass = TransferClassLoader.loadTxClass(tRulesOrClassString, preProc);
       t = new Transfer();
       t.read(tRulesClass, preProc, bilTrans);
-      if (cacheEnabled)
-        cache.put(key, t);
+      if (transferCache != null)
+        transferCache.put(key, t);
     }
     t.setNullFlush(nullFlush);
     t.setPreBilingual(preBilingual);
@@ -162,38 +162,7 @@ public class Transfer extends AbstractTransfer {
     if (!input_buffer.isEmpty()) {
       return input_buffer.next();
     }
-
-    String content = "";
-    while (true) {
-      int val = in.read();
-      if (val == -1 || (val == 0 && internal_null_flush)) {
-        return input_buffer.add(new TransferToken(content, TransferToken.TransferTokenType.tt_eof));
-      }
-      if (val == '\\') {
-        content += '\\';
-        content += (char) in.read();
-      } else if (val == '[') {
-        content += '[';
-        while (true) {
-          int val2 = in.read();
-          if (val2 == '\\') {
-            content += '\\';
-            content += (char) in.read();
-          } else if (val2 == ']') {
-            content += ']';
-            break;
-          } else {
-            content += (char) val2;
-          }
-        }
-      } else if (val == '$') {
-        return input_buffer.add(new TransferToken(content, TransferToken.TransferTokenType.tt_word));
-      } else if (val == '^') {
-        return input_buffer.add(new TransferToken(content, TransferToken.TransferTokenType.tt_blank));
-      } else {
-        content += (char) val;
-      }
-    }
+    return input_buffer.add(readTokenFrom(in, false));
   }
 
   @Override
@@ -206,7 +175,7 @@ public class Transfer extends AbstractTransfer {
 
     output = checkIfOutputMustBeWriterCompatible(output, rule_map);
 
-    Method lastMatchedRule = null;
+    int lastMatchedRule = -1;
     ArrayList<String> tmpword = new ArrayList<String>();
     ArrayList<String> tmpblank = new ArrayList<String>();
     ArrayList<String> matchedWords = new ArrayList<String>();
@@ -218,10 +187,10 @@ public class Transfer extends AbstractTransfer {
       timing = new Timing("Transfer");
     while (true) {
       if (ms.size() == 0) {
-        if (lastMatchedRule != null) {
+        if (lastMatchedRule != -1) {
           // there was a rule match
           applyRule(output, lastMatchedRule, matchedWords, matchedBlanks);
-          lastMatchedRule = null;
+          lastMatchedRule = -1;
           tmpword.clear();
           tmpblank.clear();
           ms.init(me.getInitial());
@@ -296,11 +265,11 @@ public class Transfer extends AbstractTransfer {
       if (val != -1) {
         // a rule match was found. This might not be the longest match, though.
         // so, we store the stuff to invoke applyRule() later
-        lastMatchedRule = rule_map[(val - 1)];
+        lastMatchedRule = val - 1;
         lastPos = input_buffer.getPos();
 
         if (DEBUG)
-          System.err.println("lastrule = " + (val - 1) + " " + lastMatchedRule.getName());
+          System.err.println("lastrule = " + (val - 1) + " " + rule_map[lastMatchedRule].getName());
         if (DEBUG)
           System.err.println("tmpword = " + tmpword.size() + "  tmpblank = " + tmpblank.size());
         if (DEBUG)
@@ -352,24 +321,22 @@ public class Transfer extends AbstractTransfer {
     }
   }
 
-  private void applyRule(Appendable output, Method rule, ArrayList<String> words, ArrayList<String> blanks)
+  private void applyRule(Appendable output, int ruleNo, ArrayList<String> words, ArrayList<String> blanks)
       throws Exception {
     if (DEBUG)
-      System.err.println("applyRule(" + rule + ", " + words + ", " + blanks);
+      System.err.println("applyRule(" + rule_map[ruleNo] + ", " + words + ", " + blanks);
     if (DO_TIMING)
       timing.log("other1");
 
 
     int limit = words.size(); // number of words
 
-    Object[] args = new Object[1 + limit + limit - 1]; // number of arguments out:1, words:limit, blanks:limit-1
-    int argn = 0;
-    args[argn++] = output;
-
+    TransferWord[] wordarr = new TransferWord[limit];
+    String[] blankarr = new String[limit - 1];
 
     for (int i = 0; i != limit; i++) {
       if (i > 0)
-        args[argn++] = blanks.get(i - 1);
+        blankarr[i - 1] = blanks.get(i - 1);
 
       Pair<String, Integer> tr;
       if (useBilingual && preBilingual == false) {
@@ -394,17 +361,34 @@ public class Transfer extends AbstractTransfer {
         tr = new Pair<String, Integer>(words.get(i), 0);
       }
 
-      args[argn++] = new TransferWord(words.get(i), tr.first, tr.second);
+      wordarr[i] = new TransferWord(words.get(i), tr.first, tr.second);
+    }
+
+    //here was in C++: processRule(lastrule) to interpret XML, but we use Java bytecode
+    if (DO_TIMING)
+      timing.log("applyRule 1");
+    if (transferObject.applyRule(ruleNo, output, wordarr, blankarr)) {
+      if (DO_TIMING)
+        timing.log("rule invoke");
+      return;
+    }
+
+    // class generated before applyRule() existed, so we need Java Method Invocation
+    Method rule = rule_map[ruleNo];
+    Object[] args = new Object[1 + limit + limit - 1]; // number of arguments out:1, words:limit, blanks:limit-1
+    int argn = 0;
+    args[argn++] = output;
+    for (int i = 0; i != limit; i++) {
+      if (i > 0)
+        args[argn++] = blankarr[i - 1];
+      args[argn++] = wordarr[i];
     }
 
-    //here was in C++: processRule(lastrule) to interpret XML, but we use Java bytecode via Java Method Invocation
     if (DEBUG)
       System.err.println("#args = " + args.length);
     if (DEBUG)
       System.err.println("processRule:" + rule.getName() + "(" + Arrays.toString(args));
     try {
-      if (DO_TIMING)
-        timing.log("applyRule 1");
       rule.invoke(transferObject, args);
       if (DO_TIMING)
         timing.log("rule invoke");
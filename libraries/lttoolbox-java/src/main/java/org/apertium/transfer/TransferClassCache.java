@@ -0,0 +1,263 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ * 02111-1307, USA.
+ */
+package org.apertium.transfer;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import org.apertium.transfer.generation.TransferBytecode;
+import org.apertium.utils.IOUtils;
+
+/**
+ * A cache of the classes TransferBytecode generates from transfer rule files (.t1x, .t2x, .t3x),
+ * in the transfer-classes subdirectory of the cache directory.
+ *
+ * Each class is stored under a SHA-1 of the rule file's name and content and of the generator
+ * (TransferBytecode.VERSION and, where the class files can be read, the bytes of
+ * TransferBytecode itself), so a changed rule file or a new generator gives a new entry instead
+ * of a stale class. Entries are written to a temporary file and renamed, and never changed
+ * afterwards, so several processes can share the directory. When it grows beyond MAX_SIZE, the
+ * least recently used entries are deleted.
+ */
+public class TransferClassCache {
+  /** The most bytes of classes kept in the cache directory. 0 disables the cache */
+  public static long MAX_SIZE = 32L << 20;
+  /** The subdirectory of the cache directory with the classes, also used for precompiled ones */
+  public static final String DIR = "transfer-classes";
+  private static final String SUFFIX = ".class";
+  /** Temporary files older than this were left by a process that died while writing them */
+  private static final long STALE_TEMP_AGE = 60 * 60 * 1000L;
+  private static byte[] generatorKey;
+  private static boolean generatorKeyHasBytecode;
+
+  public static File getDir() {
+    return new File(IOUtils.getCacheDir(), DIR);
+  }
+
+  /**
+   * @return the key of the class generated from the rule file
+   */
+  public static String key(File txFile) throws IOException {
+    MessageDigest md = newDigest();
+    md.update(getGeneratorKey());
+    md.update(bytes(txFile.getName()));
+    update(md, new FileInputStream(txFile));
+    return hex(md.digest());
+  }
+
+  /**
+   * @return the SHA-1 of the content of the file
+   */
+  public static String hash(File file) throws IOException {
+    MessageDigest md = newDigest();
+    update(md, new FileInputStream(file));
+    return hex(md.digest());
+  }
+
+  /**
+   * @return the class stored under key, or null if there is none
+   */
+  public static byte[] load(String key) {
+    if (MAX_SIZE <= 0) {
+      return null;
+    }
+    File file = new File(getDir(), key + SUFFIX);
+    try {
+      DataInputStream in = new DataInputStream(new FileInputStream(file));
+      byte[] data;
+      try {
+        data = new byte[(int) file.length()];
+        in.readFully(data);
+      } finally {
+        in.close();
+      }
+      file.setLastModified(System.currentTimeMillis()); // to evict the least recently used
+      return data;
+    } catch (IOException e) {
+      return null; // not there, or just evicted by another process
+    }
+  }
+
+  /**
+   * Removes an entry that could not be loaded
+   */
+  public static void remove(String key) {
+    new File(getDir(), key + SUFFIX).delete();
+  }
+
+  /**
+   * Stores the class under key, and evicts old entries if the cache is too big
+   */
+  public static void store(String key, byte[] data) throws IOException {
+    if (MAX_SIZE <= 0) {
+      return;
+    }
+    File dir = getDir();
+    dir.mkdirs();
+    File file = new File(dir, key + SUFFIX);
+    File tmp = File.createTempFile(key, ".tmp", dir);
+    try {
+      FileOutputStream out = new FileOutputStream(tmp);
+      try {
+        out.write(data);
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file)) {
+        // another process may have stored it meanwhile
+        file.delete();
+        if (!tmp.renameTo(file)) {
+          throw new IOException("Cannot rename " + tmp + " to " + file);
+        }
+      }
+    } finally {
+      tmp.delete();
+    }
+    evict(dir, file);
+  }
+
+  /**
+   * Deletes the least recently used entries until the cache is within MAX_SIZE, except keep
+   */
+  private static void evict(File dir, File keep) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    long size = 0;
+    int n = 0;
+    for (File f : files) {
+      if (f.getName().endsWith(SUFFIX)) {
+        size += f.length();
+        files[n++] = f;
+      } else if (now - f.lastModified() > STALE_TEMP_AGE) {
+        f.delete();
+      }
+    }
+    if (size <= MAX_SIZE) {
+      return;
+    }
+    // The times are read once, as other processes may touch the files while they are sorted
+    final long[] modified = new long[n];
+    Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      modified[i] = files[i].lastModified();
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        long x = modified[a], y = modified[b];
+        return x < y ? -1 : x > y ? 1 : 0;
+      }
+    });
+    for (int i : order) {
+      if (size <= MAX_SIZE) {
+        break;
+      }
+      File f = files[i];
+      if (!f.equals(keep)) {
+        long length = f.length();
+        if (f.delete()) {
+          size -= length;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the key of the generator, in hex, which is part of the key of every class
+   */
+  static String generatorKey() {
+    return hex(getGeneratorKey());
+  }
+
+  /**
+   * @return whether the generator key covers the bytes of TransferBytecode, or only its VERSION
+   */
+  static synchronized boolean generatorKeyHasBytecode() {
+    getGeneratorKey();
+    return generatorKeyHasBytecode;
+  }
+
+  private static synchronized byte[] getGeneratorKey() {
+    if (generatorKey == null) {
+      MessageDigest md = newDigest();
+      md.update(bytes("TransferBytecode " + TransferBytecode.VERSION));
+      // On Android the class files can't be read, and VERSION alone tells generators apart
+      InputStream in = TransferBytecode.class.getResourceAsStream("TransferBytecode.class");
+      if (in != null) {
+        try {
+          update(md, in);
+          generatorKeyHasBytecode = true;
+        } catch (IOException e) {
+          md.reset();
+          md.update(bytes("TransferBytecode " + TransferBytecode.VERSION));
+        }
+      }
+      generatorKey = md.digest();
+    }
+    return generatorKey;
+  }
+
+  /**
+   * Adds the rest of the stream to the digest, and closes it
+   */
+  private static void update(MessageDigest md, InputStream in) throws IOException {
+    try {
+      byte[] buf = new byte[8192];
+      int n;
+      while ((n = in.read(buf)) > 0) {
+        md.update(buf, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static byte[] bytes(String s) {
+    try {
+      return (s + '\0').getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String hex(byte[] b) {
+    StringBuilder sb = new StringBuilder(b.length * 2);
+    for (byte x : b) {
+      sb.append(Character.forDigit((x >> 4) & 15, 16)).append(Character.forDigit(x & 15, 16));
+    }
+    return sb.toString();
+  }
+}
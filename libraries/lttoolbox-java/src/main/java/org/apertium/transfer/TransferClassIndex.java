@@ -0,0 +1,201 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ * 02111-1307, USA.
+ */
+package org.apertium.transfer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apertium.transfer.generation.TransferBytecode;
+
+/**
+ * The transfer classes precompiled for the rule files of a directory (see TransferPrecompiler),
+ * kept in its transfer-classes subdirectory together with an index file. Each line of the index
+ * has the name, length and SHA-1 of a rule file and the name of its class file, so that the class
+ * of a rule file is found with one lookup, and a rule file changed afterwards isn't given an old
+ * class. Indexes are read again when their file changes, and a rule file is only hashed again
+ * when its length or time of modification change.
+ */
+public class TransferClassIndex {
+  public static final String DIR = TransferClassCache.DIR;
+  public static final String FILE = "index";
+  /** Start of the first line of the index, which is followed by the generator that made the classes */
+  private static final String HEADER = "transfer-classes ";
+  private static final ConcurrentHashMap<File, TransferClassIndex> indexes = new ConcurrentHashMap<File, TransferClassIndex>();
+  private static final ConcurrentHashMap<File, Hash> hashes = new ConcurrentHashMap<File, Hash>();
+  private final File dir;
+  private final Map<String, Entry> entries;
+  /** When the index file was modified as it was read, or 0 if there was none */
+  private final long modified;
+
+  private static class Entry {
+    final long length;
+    final String sha1;
+    final String classFile;
+
+    Entry(long length, String sha1, String classFile) {
+      this.length = length;
+      this.sha1 = sha1;
+      this.classFile = classFile;
+    }
+  }
+
+  private static class Hash {
+    final long length;
+    final long modified;
+    final String sha1;
+
+    Hash(long length, long modified, String sha1) {
+      this.length = length;
+      this.modified = modified;
+      this.sha1 = sha1;
+    }
+  }
+
+  private TransferClassIndex(File dir, Map<String, Entry> entries, long modified) {
+    this.dir = dir;
+    this.entries = entries;
+    this.modified = modified;
+  }
+
+  /**
+   * @return the precompiled class of the rule file, or null if there is none or it is out of date
+   */
+  public static File lookup(File txFile) throws IOException {
+    File dir = new File(txFile.getAbsoluteFile().getParentFile(), DIR);
+    TransferClassIndex index = indexes.get(dir);
+    if (index == null || index.modified != new File(dir, FILE).lastModified()) {
+      index = read(dir);
+      indexes.put(dir, index);
+    }
+    Entry e = index.entries.get(txFile.getName());
+    if (e == null || e.length != txFile.length() || !e.sha1.equals(hash(txFile))) {
+      return null;
+    }
+    return new File(dir, e.classFile);
+  }
+
+  /**
+   * @return the SHA-1 of the rule file, from the last time it was hashed if it hasn't changed since
+   */
+  private static String hash(File txFile) throws IOException {
+    File file = txFile.getAbsoluteFile();
+    long length = file.length();
+    long modified = file.lastModified();
+    Hash h = hashes.get(file);
+    if (h == null || h.length != length || h.modified != modified) {
+      h = new Hash(length, modified, TransferClassCache.hash(file));
+      hashes.put(file, h);
+    }
+    return h.sha1;
+  }
+
+  /**
+   * @return the index of the directory, empty if it has none
+   */
+  public static TransferClassIndex read(File dir) throws IOException {
+    Map<String, Entry> entries = new HashMap<String, Entry>();
+    File file = new File(dir, FILE);
+    long modified = file.lastModified();
+    if (file.exists()) {
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try {
+        if (isCurrentGenerator(in.readLine())) {
+          String line;
+          while ((line = in.readLine()) != null) {
+            String[] f = line.split("\t");
+            if (f.length == 4) {
+              entries.put(f[0], new Entry(Long.parseLong(f[1]), f[2], f[3]));
+            }
+          }
+        }
+      } catch (NumberFormatException e) {
+        throw new IOException("Bad transfer class index " + file);
+      } finally {
+        in.close();
+      }
+    }
+    return new TransferClassIndex(dir, entries, modified);
+  }
+
+  /**
+   * Classes made by another generator than this one are not used. It is told by the same key as
+   * in TransferClassCache, or by TransferBytecode.VERSION alone where the key can only cover that,
+   * as on Android, so that classes precompiled on a desktop are used there
+   */
+  private static boolean isCurrentGenerator(String header) {
+    if (header == null || !header.startsWith(HEADER)) {
+      return false;
+    }
+    String[] f = header.substring(HEADER.length()).split(" ");
+    return f.length == 2 && f[0].equals(String.valueOf(TransferBytecode.VERSION))
+        && (f[1].equals(TransferClassCache.generatorKey()) || !TransferClassCache.generatorKeyHasBytecode());
+  }
+
+  /**
+   * Writes the class of a rule file to the directory, and adds it to the index
+   */
+  public void put(File txFile, byte[] classBytes) throws IOException {
+    dir.mkdirs();
+    String classFile = TransferBytecode.javaIdentifier(txFile.getName()) + ".class";
+    FileOutputStream out = new FileOutputStream(new File(dir, classFile));
+    try {
+      out.write(classBytes);
+    } finally {
+      out.close();
+    }
+    entries.put(txFile.getName(), new Entry(txFile.length(), hash(txFile), classFile));
+  }
+
+  /**
+   * Writes the index file, replacing it atomically
+   */
+  public void write() throws IOException {
+    dir.mkdirs();
+    File file = new File(dir, FILE);
+    File tmp = File.createTempFile(FILE, ".tmp", dir);
+    try {
+      Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+      try {
+        out.write(HEADER + TransferBytecode.VERSION + " " + TransferClassCache.generatorKey() + "\n");
+        for (Map.Entry<String, Entry> e : new TreeMap<String, Entry>(entries).entrySet()) {
+          Entry v = e.getValue();
+          out.write(e.getKey() + "\t" + v.length + "\t" + v.sha1 + "\t" + v.classFile + "\n");
+        }
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file)) {
+        file.delete();
+        if (!tmp.renameTo(file)) {
+          throw new IOException("Cannot rename " + tmp + " to " + file);
+        }
+      }
+    } finally {
+      tmp.delete();
+    }
+    indexes.remove(dir);
+  }
+}
@@ -1,8 +1,6 @@
 package org.apertium.transfer;
 
 import static org.apertium.utils.IOUtils.openFile;
-import static org.apertium.utils.IOUtils.getFilenameMinusExtension;
-import static org.apertium.utils.IOUtils.addTrailingSlash;
 import static org.apertium.utils.IOUtils.loadByteArray;
 import static org.apertium.utils.IOUtils.getLoader;
 
@@ -20,14 +18,11 @@ public class TransferClassLoader extends ClassLoader {
     super(TransferClassLoader.class.getClassLoader());
   }
 
-  @SuppressWarnings("unchecked")
-  public Class loadClassFile(String filename) throws ClassNotFoundException, IOException {
-    byte data[] = loadByteArray(filename);
-    return defineClass(null, data, 0, data.length);
+  public Class<?> loadClassFile(String filename) throws ClassNotFoundException, IOException {
+    return loadClassBytes(loadByteArray(filename));
   }
 
-  @SuppressWarnings("unchecked")
-  public static Class loadTxClass(String txOrClassFile, String binFile)
+  public static Class<?> loadTxClass(String txOrClassFile, String binFile)
       throws ClassNotFoundException, IOException {
     if (IOUtils.timing != null)
       IOUtils.timing.log("");
@@ -48,8 +43,7 @@ public class TransferClassLoader extends ClassLoader {
     return loadTxClass(txOrClassFile, binFile, new TransferClassLoader());
   }
 
-  @SuppressWarnings("unchecked")
-  public static Class loadTxClass(String txOrClassFile, String binFile, TransferClassLoader tcl)
+  public static Class<?> loadTxClass(String txOrClassFile, String binFile, TransferClassLoader tcl)
       throws ClassNotFoundException, IOException {
 
 
@@ -78,61 +72,50 @@ public class TransferClassLoader extends ClassLoader {
 
     //OK, it seems that we will finally have to build the class...
     try {
-      return buildAndLoadClass(openFile(txOrClassFile), openFile(binFile), tcl);
+      return buildAndLoadClass(openFile(txOrClassFile), tcl);
     } finally {
       if (IOUtils.timing != null)
         IOUtils.timing.log("Build transfer class for " + binFile);
     }
   }
 
-  @SuppressWarnings("unchecked")
-  private static Class buildAndLoadClass(File txFile, File binFile,
-      TransferClassLoader tcl) throws ClassNotFoundException, IOException {
-
-    String baseBinFilename = getFilenameMinusExtension(binFile.getName());
-    String classFilename = baseBinFilename + ".class";
-
-    /* If I made this a File, it would lose the slash or backslash at the end
-     * and there's no reason to make this a File object, so keeping it just as
-     * a string.
-     */
-
-    String tempDir = IOUtils.cacheDir.getAbsolutePath();
-    tempDir = addTrailingSlash(tempDir);
+  public Class<?> loadClassBytes(byte[] data) {
+    return defineClass(null, data, 0, data.length);
+  }
 
-    File classFile = openFile(addTrailingSlash(binFile.getParent()) + classFilename);
-    // If it doesn't exist in the binFile directory, try the temp directory
-    if (!classFile.exists()) {
-      classFile = openFile(tempDir + classFilename);
-    }
-    // If it doesn't exist there either, switch back to the binFile
-    // directory
-    if (!classFile.exists()) {
-      classFile = openFile(addTrailingSlash(binFile.getParent()) + classFilename);
+  /**
+   * Generates the class from the rule file, or takes it from TransferClassIndex if it was
+   * precompiled, or from TransferClassCache if it was generated before from the same rule file
+   * by the same generator
+   */
+  private static Class<?> buildAndLoadClass(File txFile, TransferClassLoader tcl)
+      throws ClassNotFoundException, IOException {
+    File precompiled = TransferClassIndex.lookup(txFile);
+    if (precompiled != null && precompiled.exists()) {
+      return tcl.loadClassFile(precompiled.getPath());
     }
 
-    // If the class file exists already, try and load it.
-    if (classFile.exists()) {
-      return tcl.loadClassFile(classFile.getPath());
+    String key = TransferClassCache.key(txFile);
+    byte[] data = TransferClassCache.load(key);
+    if (data != null) {
+      try {
+        return tcl.loadClassBytes(data);
+      } catch (ClassFormatError e) {
+        TransferClassCache.remove(key); // damaged; generate it again
+      }
     }
 
-    // Generate and return the class file
     try {
-      TransferBytecode tb = new TransferBytecode(txFile.getPath());
-      try { //Try to dump the class to avoid having to create it again next time
-        tb.dump(addTrailingSlash(txFile.getParent()) + classFilename);
-      } catch (Exception e1) {
-        try { //Try in the temporary directory
-          tb.dump(tempDir + classFilename);
-        } catch (Exception e2) {
-        } //Do nothing (the class will be generated again next time)
-      }
-      return tb.getJavaClass();
+      data = new TransferBytecode(txFile.getPath()).getBytes();
     } catch (ParserConfigurationException e) {
       throw new IOException("TX File (" + txFile + ") parsing failed -- " + e.getLocalizedMessage());
     } catch (SAXException e) {
       throw new IOException("TX File (" + txFile + ") parsing failed -- " + e.getLocalizedMessage());
     }
-
+    try {
+      TransferClassCache.store(key, data);
+    } catch (IOException e) {
+    } //Do nothing (the class will be generated again next time)
+    return tcl.loadClassBytes(data);
   }
 }
@@ -0,0 +1,166 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ * 02111-1307, USA.
+ */
+package org.apertium.transfer;
+
+import java.io.IOException;
+import java.io.Reader;
+import org.apertium.transfer.TransferToken.TransferTokenType;
+
+/**
+ * Reads the tokens of the transfer stages (transfer, interchunk and postchunk) from a Reader.
+ * The input is read in blocks, and runs of ordinary characters are copied to the token in one go,
+ * so reading a token takes time linear in its length, however long a superblank or chunk is.
+ */
+public class TransferTokenReader {
+  private static final int BUFFER_SIZE = 8192;
+  private static final boolean[] TOP_STOPS = stops("\\[{$^\0");
+  private static final boolean[] SUPERBLANK_STOPS = stops("\\]");
+  private static final boolean[] CHUNK_STOPS = stops("\\}");
+  private final Reader in;
+  /** If true, words can contain chunks {...}, as in interchunk and postchunk */
+  private final boolean chunks;
+  private final char[] buf = new char[BUFFER_SIZE];
+  private int pos, limit;
+  private final StringBuilder content = new StringBuilder();
+  /** If a word was started with '^' and not ended yet. Only kept track of with chunks */
+  private boolean inword;
+
+  public TransferTokenReader(Reader in, boolean chunks) {
+    this.in = in;
+    this.chunks = chunks;
+  }
+
+  public boolean isReading(Reader r) {
+    return in == r;
+  }
+
+  /**
+   * @param nullFlush if true, a '\0' ends the input. The input is then read a character at a
+   * time, so that nothing after the '\0' is taken from the Reader
+   * @return the next token, or a tt_eof token with what was left at the end of the input
+   */
+  public TransferToken readToken(boolean nullFlush) throws IOException {
+    content.setLength(0);
+    while (true) {
+      int val = next(TOP_STOPS, nullFlush);
+      if (val == -1 || (val == 0 && nullFlush)) {
+        return token(TransferTokenType.tt_eof);
+      }
+      if (val == '\\') {
+        content.append('\\');
+        content.append((char) read(nullFlush));
+      } else if (val == '[') {
+        content.append('[');
+        if (!copyUntil(SUPERBLANK_STOPS, ']', nullFlush)) {
+          return token(TransferTokenType.tt_eof);
+        }
+      } else if (chunks && inword && val == '{') {
+        content.append('{');
+        if (!copyUntil(CHUNK_STOPS, '}', nullFlush)) {
+          return token(TransferTokenType.tt_eof);
+        }
+      } else if (val == '$' && (inword || !chunks)) {
+        inword = false;
+        return token(TransferTokenType.tt_word);
+      } else if (val == '^') {
+        inword = true;
+        return token(TransferTokenType.tt_blank);
+      } else {
+        content.append((char) val);
+      }
+    }
+  }
+
+  /**
+   * Copies a superblank or chunk up to and including its unescaped end character.
+   * A chunk only ends at a '}' followed by the '$' ending the word.
+   *
+   * @return false if the input ended first
+   */
+  private boolean copyUntil(boolean[] stops, char end, boolean nullFlush) throws IOException {
+    while (true) {
+      int val = next(stops, nullFlush);
+      if (val == -1) {
+        return false;
+      }
+      if (val == '\\') {
+        content.append('\\');
+        content.append((char) read(nullFlush));
+      } else {
+        content.append(end);
+        if (end != '}' || peek(nullFlush) == '$') {
+          return true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Copies characters to the token up to the next one in stops
+   *
+   * @return that character, which is consumed but not copied, or -1 at the end of the input
+   */
+  private int next(boolean[] stops, boolean nullFlush) throws IOException {
+    while (true) {
+      if (pos == limit && !fill(nullFlush)) {
+        return -1;
+      }
+      int start = pos;
+      while (pos < limit) {
+        char c = buf[pos++];
+        if (c < stops.length && stops[c]) {
+          content.append(buf, start, pos - 1 - start);
+          return c;
+        }
+      }
+      content.append(buf, start, pos - start);
+    }
+  }
+
+  private int read(boolean nullFlush) throws IOException {
+    if (pos == limit && !fill(nullFlush)) {
+      return -1;
+    }
+    return buf[pos++];
+  }
+
+  private int peek(boolean nullFlush) throws IOException {
+    if (pos == limit && !fill(nullFlush)) {
+      return -1;
+    }
+    return buf[pos];
+  }
+
+  private boolean fill(boolean nullFlush) throws IOException {
+    int n = in.read(buf, 0, nullFlush ? 1 : buf.length);
+    pos = 0;
+    limit = Math.max(n, 0);
+    return n > 0;
+  }
+
+  private TransferToken token(TransferTokenType type) {
+    return new TransferToken(content.toString(), type);
+  }
+
+  private static boolean[] stops(String chars) {
+    boolean[] stops = new boolean[128];
+    for (int i = 0; i < chars.length(); i++) {
+      stops[chars.charAt(i)] = true;
+    }
+    return stops;
+  }
+}
@@ -30,7 +30,7 @@ public class TransferWord {
 
   /** this is not used in any exitsting language pair (jan 2010) - might delete */
   public String slNoQueue(ApertiumRE part) {
-    return part.match(source.substring(0, source.length() - queue_length));
+    return part.match(source, source.length() - queue_length);
   }
 
   public String tl(ApertiumRE part) {
@@ -39,7 +39,7 @@ public class TransferWord {
 
   /** this is not used in any exitsting language pair (jan 2010) - might delete */
   public String tlNoQueue(ApertiumRE part) {
-    return part.match(target.substring(0, target.length() - queue_length));
+    return part.match(target, target.length() - queue_length);
   }
 
   public void slSet(ApertiumRE part, String value) {
@@ -48,9 +48,7 @@ public class TransferWord {
 
   /** this is not used in any exitsting language pair (jan 2010) - might delete */
   public void slSetNoQueue(ApertiumRE part, String value) {
-    String mystring = source.substring(0, source.length() - queue_length);
-    mystring = part.replace(mystring, value);
-    source = mystring + source.substring(source.length() - queue_length);
+    source = part.replace(source, source.length() - queue_length, value);
   }
 
   public void tlSet(ApertiumRE part, String value) {
@@ -59,9 +57,7 @@ public class TransferWord {
 
   /** this is not used in any exitsting language pair (jan 2010) - might delete */
   public void tlSetNoQueue(ApertiumRE part, String value) {
-    String mystring = target.substring(0, target.length() - queue_length);
-    mystring = part.replace(mystring, value);
-    target = mystring + target.substring(target.length() - queue_length);
+    target = part.replace(target, target.length() - queue_length, value);
   }
 
   /**
@@ -4,7 +4,10 @@
  */
 package org.apertium.transfer.generated;
 
+import java.io.IOException;
 import java.util.Arrays;
+import org.apertium.interchunk.InterchunkWord;
+import org.apertium.transfer.TransferWord;
 
 /**
  *
@@ -24,6 +27,31 @@ public abstract class GeneratedTransferBase {
   protected void logCall(String met, Object... args) {
     System.err.println("call:" + met + " " + Arrays.toString(args));
   }
+
+  /**
+   * Calls a transfer rule directly, instead of through reflection.
+   * Generated classes override this with a switch over their rules. Classes generated before that
+   * don't, and then the rule must be invoked by reflection.
+   *
+   * @param ruleNo the number of the rule, as in its method name (rule<number>__...)
+   * @param words the words matched by the rule
+   * @param blanks the blanks between the words
+   * @return false if the class can't call its rules directly
+   */
+  public boolean applyRule(int ruleNo, Appendable out, TransferWord[] words, String[] blanks) throws IOException {
+    return false;
+  }
+
+  /**
+   * Calls an interchunk or postchunk rule directly, instead of through reflection.
+   * See applyRule(int, Appendable, TransferWord[], String[]). In postchunk, words and blanks are
+   * passed on to the rule as they are.
+   *
+   * @return false if the class can't call its rules directly
+   */
+  public boolean applyRule(int ruleNo, Appendable out, InterchunkWord[] words, String[] blanks) throws IOException {
+    return false;
+  }
   /**
    * Is used by the runtime to detect obsoleted bytecode that needs to be regenerated
    * This superclass method should return 0, as this makes old code return 0.
@@ -35,6 +35,7 @@ import static com.sun.org.apache.bcel.internal.generic.InstructionFactory.*;
 import com.sun.org.apache.bcel.internal.generic.InstructionHandle;
 import com.sun.org.apache.bcel.internal.generic.InstructionList;
 import com.sun.org.apache.bcel.internal.generic.MethodGen;
+import com.sun.org.apache.bcel.internal.generic.TABLESWITCH;
 import com.sun.org.apache.bcel.internal.generic.TargetLostException;
 import com.sun.org.apache.bcel.internal.generic.Type;
 import static com.sun.org.apache.bcel.internal.generic.Type.*;
@@ -65,6 +66,8 @@ import org.xml.sax.SAXException;
  * @author Jacob Nordfalk, Mikel Artetxe
  */
 public class TransferBytecode {
+  /** Change when the generated classes change, so that TransferClassCache doesn't give old ones */
+  public static final int VERSION = 1;
   private static final Type APERTIUM_RE = getType(org.apertium.transfer.ApertiumRE.class);
   private static final Type WORD_LIST = getType(org.apertium.transfer.WordList.class);
   private static final Type TRANSFER_WORD = getType(org.apertium.transfer.TransferWord.class);
@@ -1136,6 +1139,8 @@ public class TransferBytecode {
 
       inMacro = false;
       int ruleNo = 0;
+      ArrayList<String> ruleMethodNames = new ArrayList<String>();
+      ArrayList<Type[]> ruleArgs = new ArrayList<Type[]>();
       for (Element c0 : getChildsChildrenElements(root, "section-rules")) {
         currentNode = c0;
         ArrayList<String> patternItems = new ArrayList<String>();
@@ -1172,6 +1177,8 @@ public class TransferBytecode {
           args.add(STRING_ARRAY);
         }
 
+        ruleMethodNames.add(methodName);
+        ruleArgs.add(args.toArray(new Type[args.size()]));
         mg = new MethodGen(ACC_PUBLIC, VOID, args.toArray(new Type[args.size()]), null, methodName, fullClassName, il, cp);
         mg.addException("java.io.IOException");
 
@@ -1210,6 +1217,9 @@ public class TransferBytecode {
         il.dispose();
       }
 
+      //MethodGen for applyRule, so the runtime can call the rules without reflection
+      writeApplyRule(ruleMethodNames, ruleArgs);
+
       // Error handling
       if (error_UNKNOWN_ATTR) {
         fg = new FieldGen(0, APERTIUM_RE, "error_UNKNOWN_ATTR", cp);
@@ -1280,6 +1290,61 @@ public class TransferBytecode {
     }
   }
 
+  /**
+   * Generates
+   * public boolean applyRule(int ruleNo, Appendable out, TransferWord[] words, String[] blanks)
+   * (InterchunkWord[] words in interchunk and postchunk) as a switch calling the rule methods,
+   * passing the words and blanks as separate parameters in transfer and interchunk, and the arrays
+   * as they are in postchunk. See GeneratedTransferBase.applyRule().
+   */
+  private void writeApplyRule(ArrayList<String> ruleMethodNames, ArrayList<Type[]> ruleArgs) {
+    Type wordArray = new ArrayType(WORD, 1);
+    mg = new MethodGen(ACC_PUBLIC, BOOLEAN, new Type[]{INT, APPENDABLE, wordArray, STRING_ARRAY}, null, "applyRule", fullClassName, il, cp);
+    mg.addException("java.io.IOException");
+
+    int numberOfRules = ruleMethodNames.size();
+    if (numberOfRules > 0) {
+      int[] match = new int[numberOfRules];
+      for (int i = 0; i < numberOfRules; i++)
+        match[i] = i;
+      TABLESWITCH tableswitch = new TABLESWITCH(match, new InstructionHandle[numberOfRules], null);
+      il.append(createLoad(INT, 1));
+      il.append(tableswitch);
+
+      for (int r = 0; r < numberOfRules; r++) {
+        tableswitch.setTarget(r, il.append(createThis()));
+        il.append(createLoad(APPENDABLE, 2));
+        if (parseMode == ParseMode.POSTCHUNK) {
+          il.append(createLoad(wordArray, 3));
+          il.append(createLoad(STRING_ARRAY, 4));
+        } else {
+          int numberOfWords = (ruleArgs.get(r).length) / 2;
+          for (int i = 0; i < numberOfWords; i++) {
+            if (i > 0) {
+              il.append(createLoad(STRING_ARRAY, 4));
+              il.append(factory.createConstant(i - 1));
+              il.append(createArrayLoad(STRING));
+            }
+            il.append(createLoad(wordArray, 3));
+            il.append(factory.createConstant(i));
+            il.append(createArrayLoad(WORD));
+          }
+        }
+        il.append(factory.createInvoke(fullClassName, ruleMethodNames.get(r), VOID, ruleArgs.get(r), INVOKEVIRTUAL));
+        il.append(ICONST_1);
+        il.append(IRETURN);
+      }
+      tableswitch.setTarget(il.append(ICONST_0));
+    } else {
+      il.append(ICONST_0);
+    }
+    il.append(IRETURN);
+    mg.setMaxStack();
+    mg.setMaxLocals();
+    cg.addMethod(mg.getMethod());
+    il.dispose();
+  }
+
   private class BytecodeLoader extends ClassLoader {
     public Class getClassFromBytes(byte[] bytes) {
       return defineClass(null, bytes, 0, bytes.length);
@@ -0,0 +1,200 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ * 02111-1307, USA.
+ */
+package org.apertium.transfer.generation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apertium.CommandLineInterface;
+import org.apertium.pipeline.Mode;
+import org.apertium.pipeline.Program;
+import org.apertium.transfer.TransferClassIndex;
+import org.apertium.transfer.TransferClassLoader;
+import org.apertium.transfer.generated.GeneratedTransferBase;
+
+/**
+ * Generates ahead of time the classes of all the transfer, interchunk and postchunk stages
+ * in the .mode files of a language pair, so that they aren't generated on the first translation.
+ * Each class is loaded and instantiated to verify it, and written with a TransferClassIndex next
+ * to its rule file, where TransferClassLoader.loadTxClass finds it.
+ */
+public class TransferPrecompiler {
+  /**
+   * @return the .mode files given, and those in the directories given and their modes subdirectories
+   */
+  static List<File> findModes(String[] args) {
+    List<File> modes = new ArrayList<File>();
+    for (String arg : args) {
+      File f = new File(arg);
+      if (f.isDirectory()) {
+        addModes(f, modes);
+        addModes(new File(f, "modes"), modes);
+      } else {
+        modes.add(f);
+      }
+    }
+    return modes;
+  }
+
+  private static void addModes(File dir, List<File> modes) {
+    File[] files = dir.listFiles();
+    if (files == null)
+      return;
+    for (File f : files) {
+      if (f.getName().endsWith(".mode"))
+        modes.add(f);
+    }
+  }
+
+  /**
+   * @return the rule files of the transfer, interchunk and postchunk stages of the mode
+   */
+  static Set<File> findRuleFiles(File modeFile) throws IOException {
+    Set<File> ruleFiles = new LinkedHashSet<File>();
+    Mode mode = new Mode(modeFile.getPath());
+    for (int i = 0; i < mode.getPipelineLength(); i++) {
+      Program prog = mode.getProgramByIndex(i);
+      switch (prog.getProgram()) {
+        case TRANSFER:
+        case INTERCHUNK:
+        case POSTCHUNK:
+          // the rule file is the first argument after the options, then comes the .bin file
+          for (String arg : prog.getParameters().trim().split("[ ]+")) {
+            if (!arg.startsWith("-")) {
+              if (!arg.endsWith(".class"))
+                ruleFiles.add(resolve(arg, modeFile));
+              break;
+            }
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    return ruleFiles;
+  }
+
+  /**
+   * Paths in mode files are absolute, or relative to the pair directory, where the mode file or
+   * its modes directory is
+   */
+  private static File resolve(String path, File modeFile) throws IOException {
+    File f = new File(path);
+    File dir = modeFile.getAbsoluteFile().getParentFile();
+    if (!f.isAbsolute() && !f.exists()) {
+      if (new File(dir, path).exists())
+        f = new File(dir, path);
+      else if (dir.getParentFile() != null)
+        f = new File(dir.getParentFile(), path);
+    }
+    if (!f.exists())
+      throw new IOException("Rule file " + path + " in " + modeFile + " not found");
+    return f.getCanonicalFile();
+  }
+
+  /**
+   * Generates the class of the rule file and checks that it can be loaded and instantiated
+   *
+   * @return the class file
+   */
+  public static byte[] compile(File ruleFile) throws Exception {
+    byte[] data = new TransferBytecode(ruleFile.getPath()).getBytes();
+    TransferClassLoader tcl = new TransferClassLoader();
+    Class<?> c = tcl.loadClassBytes(data);
+    if (!GeneratedTransferBase.class.isAssignableFrom(c))
+      throw new IllegalStateException(c + " is not a GeneratedTransferBase");
+    GeneratedTransferBase transferObject = (GeneratedTransferBase) c.newInstance();
+    transferObject.init();
+    return data;
+  }
+
+  /**
+   * Precompiles the rule files of the given modes
+   *
+   * @return the number of rule files that failed
+   */
+  public static int precompile(List<File> modes, boolean verbose) throws IOException {
+    Set<File> ruleFiles = new LinkedHashSet<File>();
+    int failed = 0;
+    for (File mode : modes) {
+      try {
+        ruleFiles.addAll(findRuleFiles(mode));
+      } catch (IOException e) {
+        System.err.println("Error: " + e.getMessage());
+        failed++;
+      }
+    }
+
+    Map<File, TransferClassIndex> indexes = new LinkedHashMap<File, TransferClassIndex>();
+    for (File ruleFile : ruleFiles) {
+      long t = System.currentTimeMillis();
+      try {
+        byte[] data = compile(ruleFile);
+        File dir = new File(ruleFile.getParentFile(), TransferClassIndex.DIR);
+        TransferClassIndex index = indexes.get(dir);
+        if (index == null) {
+          index = TransferClassIndex.read(dir);
+          indexes.put(dir, index);
+        }
+        index.put(ruleFile, data);
+        if (verbose)
+          System.err.println(ruleFile + ": " + data.length + " bytes in " + (System.currentTimeMillis() - t) + " ms");
+      } catch (Exception e) {
+        System.err.println("Error: " + ruleFile + ": " + e);
+        failed++;
+      }
+    }
+    for (TransferClassIndex index : indexes.values()) {
+      index.write();
+    }
+    return failed;
+  }
+
+  private static void showHelp(String name) {
+    System.out.print(name + " v" + CommandLineInterface.PACKAGE_VERSION + ": \n"
+        + "USAGE: " + name + " [-v] pair_directory | mode_file ...\n"
+        + "  Generates the transfer, interchunk and postchunk classes of all the .mode files\n"
+        + "  of a language pair (in the directory and its modes subdirectory), and indexes them\n"
+        + "  in a " + TransferClassIndex.DIR + " directory next to the rule files\n"
+        + "  -v     show each rule file compiled\n"
+        + "");
+  }
+
+  public static void main(String[] argv) throws Exception {
+    boolean verbose = argv.length > 0 && argv[0].equals("-v");
+    if (verbose) {
+      String[] rest = new String[argv.length - 1];
+      System.arraycopy(argv, 1, rest, 0, rest.length);
+      argv = rest;
+    }
+    if (argv.length == 0) {
+      showHelp("apertium-precompile-transfer");
+      return;
+    }
+    List<File> modes = findModes(argv);
+    if (modes.isEmpty())
+      throw new IOException("No .mode files found");
+    int failed = precompile(modes, verbose);
+    if (failed > 0)
+      throw new IOException("Precompilation failed for " + failed + " file(s)");
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ * 02111-1307, USA.
+ */
+package org.apertium.utils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.zip.ZipFile;
+
+/**
+ * Where IOUtils should look for resources (a zip, a class loader and/or a base directory).
+ * IOUtils has a global context, set by its setXxx() methods, but a thread can temporarily
+ * install its own one with IOUtils.setThreadContext(), so that several language pairs
+ * can be read at the same time.
+ *
+ * Instances are immutable.
+ */
+public class IOContext {
+  final ZipFile zip;
+  final ClassLoader loader;
+  final File parent;
+  /** Path to location of cached node indexes, or null to use IOUtils.cacheDir */
+  final File cacheDir;
+
+  IOContext(ZipFile zip, ClassLoader loader, File parent, File cacheDir) {
+    this.zip = zip;
+    this.loader = loader;
+    this.parent = parent;
+    this.cacheDir = cacheDir;
+  }
+
+  public static IOContext forResourceZip(String filename) throws IOException {
+    return new IOContext(filename != null ? new ZipFile(IOUtils.openFile(filename)) : null, null, null, null);
+  }
+
+  public static IOContext forClassLoader(ClassLoader classLoader) {
+    return new IOContext(null, classLoader, null, null);
+  }
+
+  public static IOContext forBasePathAndClassLoader(String basePath, ClassLoader classLoader) throws Exception {
+    File f = new File(basePath);
+    if (!f.exists())
+      throw new FileNotFoundException();
+    if (!f.isDirectory())
+      throw new Exception(basePath + " is not a directory");
+    return new IOContext(null, classLoader, f, null);
+  }
+
+  /**
+   * @return a copy of this context that stores its cached node indexes in the given directory
+   */
+  public IOContext withCacheDir(File cacheDir) {
+    return new IOContext(zip, loader, parent, cacheDir);
+  }
+
+  public ClassLoader getLoader() {
+    return loader;
+  }
+
+  public File getCacheDir() {
+    return cacheDir != null ? cacheDir : IOUtils.cacheDir;
+  }
+
+  @Override
+  public String toString() {
+    return zip != null ? zip.getName() : parent != null ? parent + "; " + loader : String.valueOf(loader);
+  }
+}
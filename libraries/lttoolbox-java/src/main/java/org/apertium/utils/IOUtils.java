@@ -33,9 +33,8 @@ import java.util.zip.*;
  */
 public class IOUtils {
   private static final boolean DEBUG = false;
-  private static ZipFile zip;
-  private static ClassLoader loader;
-  private static File parent;
+  private static IOContext globalContext = new IOContext(null, null, null, null);
+  private static final ThreadLocal<IOContext> threadContext = new ThreadLocal<IOContext>();
   /** Path to location of cached node indexes */
   public static File cacheDir = new File("/tmp/apertium-index-cache");
 
@@ -49,40 +48,60 @@ public class IOUtils {
   public static Timing timing;
 
   public static void setJarAsResourceZip() throws IOException {
-    zip = new ZipFile(new File(IOUtils.class.getProtectionDomain().getCodeSource().getLocation().getFile()));
-    parent = null;
-    loader = null;
+    globalContext = new IOContext(new ZipFile(new File(IOUtils.class.getProtectionDomain().getCodeSource().getLocation().getFile())), null, null, null);
   }
 
   public static void setResourceZip(String filename) throws IOException {
-    zip = filename != null ? new ZipFile(openFile(filename)) : null;
-    parent = null;
-    loader = null;
+    globalContext = IOContext.forResourceZip(filename);
   }
 
   public static void setClassLoader(ClassLoader classLoader) {
-    loader = classLoader;
-    parent = null;
-    zip = null;
+    globalContext = IOContext.forClassLoader(classLoader);
   }
 
   public static void setBasePathAndClassLoader(String basePath, ClassLoader classLoader) throws Exception {
-    File f = new File(basePath);
-    if (!f.exists())
-      throw new FileNotFoundException();
-    if (!f.isDirectory())
-      throw new Exception(basePath + " is not a directory");
-    parent = f;
-    loader = classLoader;
-    zip = null;
+    globalContext = IOContext.forBasePathAndClassLoader(basePath, classLoader);
+  }
+
+  /**
+   * Makes the calling thread resolve resources through the given context instead of
+   * the global one. Pass null to go back to the global context.
+   *
+   * @return the context the thread was using before, so that it can be restored
+   */
+  public static IOContext setThreadContext(IOContext context) {
+    IOContext previous = threadContext.get();
+    if (context == null)
+      threadContext.remove();
+    else
+      threadContext.set(context);
+    return previous;
+  }
+
+  /**
+   * @return the context used by the calling thread
+   */
+  public static IOContext getContext() {
+    IOContext context = threadContext.get();
+    return context != null ? context : globalContext;
   }
 
   public static ClassLoader getLoader() {
-    return loader;
+    return getContext().loader;
+  }
+
+  /**
+   * @return where cached node indexes should be stored for the calling thread
+   */
+  public static File getCacheDir() {
+    return getContext().getCacheDir();
   }
 
   public static String[] listFilesWithExtension(String extension) {
     final String ext = extension.startsWith(".") ? extension : "." + extension;
+    final IOContext ctx = getContext();
+    final ZipFile zip = ctx.zip;
+    final File parent = ctx.parent;
     if (zip != null) {
       ArrayList<String> list = new ArrayList();
       Enumeration entries = zip.entries();
@@ -120,7 +139,7 @@ public class IOUtils {
 
   public static byte[] loadByteArray(String filename) throws FileNotFoundException, IOException {
     byte byteArray[];
-    if (zip != null || (loader != null && parent == null)) {
+    if (!memMappingAvailable()) {
       InputStream is = openInFileStream(filename);
       byte buffer[] = new byte[1024];
       ByteArrayOutputStream bos = new ByteArrayOutputStream();
@@ -259,6 +278,9 @@ public class IOUtils {
       throws FileNotFoundException {
 
     BufferedInputStream bis = null;
+    final IOContext ctx = getContext();
+    final ZipFile zip = ctx.zip;
+    final ClassLoader loader = ctx.loader;
     if (zip != null) {
       try {
         if (filename.startsWith("/"))
@@ -284,7 +306,7 @@ public class IOUtils {
       } catch (IOException ex) {
         ex.printStackTrace();
       }
-    } else if (loader != null && parent == null) {
+    } else if (loader != null && ctx.parent == null) {
       if (filename.startsWith("/"))
         filename = filename.substring(1);
       InputStream is = loader.getResourceAsStream(filename);
@@ -409,7 +431,7 @@ public class IOUtils {
     filename = filename.trim();
     File file = new File(filename);
     if (!file.exists()) {
-      File aux = new File(parent, filename);
+      File aux = new File(getContext().parent, filename);
       if (aux.exists())
         file = aux;
     }
@@ -487,7 +509,8 @@ public class IOUtils {
   }
 
   public static boolean memMappingAvailable() {
-    return !(zip != null || (loader != null && parent == null));
+    IOContext ctx = getContext();
+    return !(ctx.zip != null || (ctx.loader != null && ctx.parent == null));
   }
 
   public static MappedByteBuffer memmap(String filename) throws IOException, FileNotFoundException {
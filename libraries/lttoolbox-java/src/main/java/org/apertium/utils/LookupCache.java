@@ -0,0 +1,139 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ * 02111-1307, USA.
+ */
+package org.apertium.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache for the results of lookups that are expensive and often repeated, like looking
+ * up words in a dictionary. It can be used by several threads at a time without locking.
+ *
+ * Entries are kept in two generations. New entries go to the current one, and when it is half
+ * the capacity full it becomes the previous one, dropping the old previous one. Entries found in
+ * the previous generation are moved back to the current one, so frequently used entries stay,
+ * much like in an LRU cache.
+ *
+ * Null values are not cached.
+ */
+public class LookupCache<K, V> {
+  private volatile int capacity;
+  private volatile ConcurrentHashMap<K, V> current = new ConcurrentHashMap<K, V>();
+  private volatile ConcurrentHashMap<K, V> previous = new ConcurrentHashMap<K, V>();
+  /** About the number of entries in current (entries put by several threads at a time can be counted twice) */
+  private final AtomicInteger currentSize = new AtomicInteger();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param capacity the maximum number of entries, or 0 to disable caching
+   */
+  public LookupCache(int capacity) {
+    setCapacity(capacity);
+  }
+
+  public void setCapacity(int capacity) {
+    if (capacity < 0)
+      throw new IllegalArgumentException("capacity must not be negative");
+    this.capacity = capacity;
+    clear();
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public boolean isEnabled() {
+    return capacity > 0;
+  }
+
+  /**
+   * @return the cached value, or null if there is none
+   */
+  public V get(K key) {
+    V value = current.get(key);
+    if (value == null) {
+      value = previous.get(key);
+      if (value == null) {
+        misses.incrementAndGet();
+        return null;
+      }
+      put(key, value); // still in use, so keep it
+    }
+    hits.incrementAndGet();
+    return value;
+  }
+
+  public void put(K key, V value) {
+    if (value == null || capacity <= 0)
+      return;
+    ConcurrentHashMap<K, V> c = current;
+    if (c.put(key, value) == null && currentSize.incrementAndGet() > capacity / 2)
+      rotate(c);
+  }
+
+  private synchronized void rotate(ConcurrentHashMap<K, V> full) {
+    if (current != full)
+      return; // another thread did it already
+    evictions.addAndGet(previous.size());
+    previous = full;
+    current = new ConcurrentHashMap<K, V>();
+    currentSize.set(0);
+  }
+
+  public synchronized void clear() {
+    current = new ConcurrentHashMap<K, V>();
+    previous = new ConcurrentHashMap<K, V>();
+    currentSize.set(0);
+  }
+
+  /**
+   * @return the number of entries, counting twice those in both generations
+   */
+  public int size() {
+    return current.size() + previous.size();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * @return the fraction of lookups that were found in the cache, or 0 if there were none
+   */
+  public double getHitRatio() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return total == 0 ? 0 : (double) h / total;
+  }
+
+  @Override
+  public String toString() {
+    return "LookupCache{size=" + size() + "/" + capacity + ", hits=" + hits + ", misses=" + misses
+        + ", evictions=" + evictions + "}";
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ * 02111-1307, USA.
+ */
+package org.apertium.lttoolbox.process;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the time and the bytes allocated per input word when analysing a text, which is
+ * mostly spent in State. The allocation rate is only reported on JVMs that can measure it.
+ * Usage: java -cp build/classes/main:build/classes/test org.apertium.lttoolbox.process.StateBenchmark dictionary.bin text.txt [repetitions]
+ */
+public class StateBenchmark {
+  private static final int ROUNDS = 5;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: StateBenchmark dictionary.bin text.txt [repetitions]");
+      System.exit(1);
+    }
+    int repetitions = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+    String line = read(args[1]);
+    StringBuilder sb = new StringBuilder(line.length() * repetitions);
+    for (int i = 0; i < repetitions; i++) {
+      sb.append(line).append('\n');
+    }
+    String text = sb.toString();
+    int words = text.trim().split("\\s+").length;
+
+    FSTProcessor fstp = new FSTProcessor();
+    fstp.load(args[0]);
+    fstp.initAnalysis();
+    Writer discard = new Writer() {
+      @Override
+      public void write(char[] cbuf, int off, int len) {
+      }
+
+      @Override
+      public void flush() {
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+
+    for (int round = 0; round < ROUNDS; round++) {
+      long allocated = allocatedBytes();
+      long start = System.nanoTime();
+      fstp.analysis(new StringReader(text), discard);
+      long time = System.nanoTime() - start;
+      String allocation = allocated < 0 ? "" : ", " + (allocatedBytes() - allocated) / words + " bytes/word";
+      System.out.println("round " + round + ": " + words + " words in " + time / 1000000 + " ms" + allocation);
+    }
+  }
+
+  private static String read(String file) throws IOException {
+    Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+    try {
+      StringBuilder sb = new StringBuilder();
+      char[] buffer = new char[8192];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        sb.append(buffer, 0, n);
+      }
+      return sb.toString();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Bytes allocated so far by this thread, or -1 if the JVM can't tell
+   */
+  private static long allocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+    try {
+      return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    } catch (UnsupportedOperationException e) {
+      return -1;
+    }
+  }
+}
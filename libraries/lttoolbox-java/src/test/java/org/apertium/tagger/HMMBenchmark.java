@@ -0,0 +1,215 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ * 02111-1307, USA.
+ */
+package org.apertium.tagger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.apertium.lttoolbox.Alphabet;
+import org.apertium.lttoolbox.Compression;
+import org.apertium.lttoolbox.collections.Transducer;
+
+/**
+ * Measures how the Viterbi tagger scales with the number of ambiguous words between two unambiguous
+ * ones, which are all kept pending until the best path through them is known. The tagger data is
+ * generated, with random probabilities, so that no data files are needed. The time per word should
+ * stay the same however long the windows are.
+ * Usage: java -cp build/classes/main:build/classes/test org.apertium.tagger.HMMBenchmark [words]
+ */
+public class HMMBenchmark {
+  private static final int CATEGORIES = 40;
+  private static final int CLASSES = 400;
+  private static final int ROUNDS = 3;
+
+  public static void main(String[] args) throws IOException {
+    int words = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    Random random = new Random(42);
+    TaggerData td = createTaggerData(random);
+    List<Set<Integer>> ambiguous = new ArrayList<Set<Integer>>();
+    for (int k = 0; k < td.getM(); k++) {
+      if (td.getOutput().get(k).size() > 1) {
+        ambiguous.add(td.getOutput().get(k));
+      }
+    }
+
+    Writer discard = new Writer() {
+      @Override
+      public void write(char[] cbuf, int off, int len) {
+      }
+
+      @Override
+      public void flush() {
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+
+    for (int window = 10; window <= words; window *= 10) {
+      String text = createText(random, ambiguous, words, window);
+      for (int round = 0; round < ROUNDS; round++) {
+        long start = System.nanoTime();
+        new HMM(td).tagger(new StringReader(text), discard, false);
+        long time = System.nanoTime() - start;
+        System.out.println("windows of " + window + " words: " + words + " words in " + time / 1000000 + " ms");
+      }
+    }
+  }
+
+  /**
+   * Words with the given ambiguity classes, followed by a sentence end every window words
+   */
+  private static String createText(Random random, List<Set<Integer>> ambiguous, int words, int window) {
+    StringBuilder sb = new StringBuilder();
+    for (int w = 1; w <= words; w++) {
+      if (w % window == 0) {
+        sb.append("^./.<sent>$\n");
+        continue;
+      }
+      sb.append("^w");
+      for (int tag : ambiguous.get(random.nextInt(ambiguous.size()))) {
+        sb.append("/w<c").append(tag).append('>');
+      }
+      sb.append("$ ");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Tagger data with a category for each of the tags <c3>, <c4>... besides the sentence end
+   */
+  private static TaggerData createTaggerData(Random random) throws IOException {
+    TaggerData td = new TaggerData();
+    Map<String, Integer> tagIndex = new LinkedHashMap<String, Integer>();
+    List<String> arrayTags = new ArrayList<String>();
+    for (String tag : new String[] {"TAG_SENT", "TAG_kEOF", "TAG_kUNDEF"}) {
+      tagIndex.put(tag, arrayTags.size());
+      arrayTags.add(tag);
+    }
+    int first = arrayTags.size();
+    for (int i = first; i < first + CATEGORIES; i++) {
+      tagIndex.put("TAG_C" + i, i);
+      arrayTags.add("TAG_C" + i);
+    }
+    int N = arrayTags.size();
+    td.setTagIndex(tagIndex);
+    td.setArrayTags(arrayTags);
+
+    ConstantManager constants = new ConstantManager();
+    String[] names = {"kMOT", "kDOLLAR", "kBARRA", "kMAS", "kIGNORAR", "kBEGIN", "kUNKNOWN"};
+    for (int i = 0; i < names.length; i++) {
+      constants.setConstant(names[i], i);
+    }
+    td.setConstants(constants);
+    td.setPatternList(createPatternList(first, N));
+
+    Set<Integer> openClass = new LinkedHashSet<Integer>();
+    for (int i = first; i < N; i++) {
+      openClass.add(i);
+    }
+    td.setOpenClass(openClass);
+    Collection output = td.getOutput();
+    for (int i = 0; i < N; i++) {
+      Set<Integer> single = new LinkedHashSet<Integer>();
+      single.add(i);
+      output.add(single);
+    }
+    output.add(openClass);
+    while (output.size() < CLASSES) {
+      Set<Integer> c = new LinkedHashSet<Integer>();
+      for (int size = 2 + random.nextInt(5); c.size() < size;) {
+        c.add(first + random.nextInt(CATEGORIES));
+      }
+      if (output.has_not(c)) {
+        output.add(c);
+      }
+    }
+
+    int M = output.size();
+    double[][] a = new double[N][N];
+    double[][] b = new double[N][M];
+    for (int i = 0; i < N; i++) {
+      double sum = 0;
+      for (int j = 0; j < N; j++) {
+        sum += a[i][j] = random.nextDouble();
+      }
+      for (int j = 0; j < N; j++) {
+        a[i][j] /= sum;
+      }
+      sum = 0;
+      for (int k = 0; k < M; k++) {
+        if (output.get(k).contains(i)) {
+          sum += b[i][k] = random.nextDouble();
+        }
+      }
+      for (int k = 0; k < M; k++) {
+        b[i][k] = output.get(k).contains(i) ? b[i][k] / sum : 1e-10;
+      }
+    }
+    td.setProbabilities(N, M, a, b);
+    return td;
+  }
+
+  /**
+   * Patterns matching any lemma followed by <sent> or <cX>, read as they are stored in tagger data files
+   */
+  private static PatternList createPatternList(int first, int N) throws IOException {
+    Alphabet alphabet = new Alphabet();
+    alphabet.includeSymbol(PatternList.ANY_TAG);
+    alphabet.includeSymbol(PatternList.ANY_CHAR);
+    alphabet.includeSymbol(PatternList.QUEUE);
+    int anyChar = alphabet.cast(PatternList.ANY_CHAR);
+    int anyTag = alphabet.cast(PatternList.ANY_TAG);
+
+    Transducer transducer = new Transducer();
+    int lemma = transducer.insertSingleTransduction(anyChar, transducer.getInitial());
+    transducer.linkStates(lemma, lemma, anyChar);
+    Map<Integer, Integer> finalType = new LinkedHashMap<Integer, Integer>();
+    for (int i = 0; i < N; i = i == 0 ? first : i + 1) {
+      String tag = i == 0 ? "<sent>" : "<c" + i + ">";
+      alphabet.includeSymbol(tag);
+      int state = transducer.insertSingleTransduction(alphabet.cast(tag), lemma);
+      transducer.linkStates(state, state, anyTag);
+      transducer.setFinal(state);
+      finalType.put(state, i);
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    alphabet.write(out);
+    Compression.multibyte_write(1, out);
+    Compression.String_write("tagger", out);
+    transducer.write(out, alphabet.size());
+    Compression.multibyte_write(finalType.size(), out);
+    for (Map.Entry<Integer, Integer> e : finalType.entrySet()) {
+      Compression.multibyte_write(e.getKey(), out);
+      Compression.multibyte_write(e.getValue(), out);
+    }
+    PatternList plist = new PatternList();
+    plist.read(new ByteArrayInputStream(out.toByteArray()));
+    return plist;
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA
+ * 02111-1307, USA.
+ */
+package org.apertium.transfer;
+
+import java.io.IOException;
+import java.io.StringReader;
+import org.apertium.transfer.TransferToken.TransferTokenType;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tokens of the transfer stages, including superblanks and chunks much longer than the read buffer
+ */
+public class TransferTokenReaderTest {
+  private static final int MEGABYTE = 1 << 20;
+
+  private static void assertToken(TransferTokenType type, String content, TransferToken token) {
+    assertEquals(type, token.type);
+    assertEquals(content, token.content);
+  }
+
+  /**
+   * A superblank of the given size, with escaped ']' every now and then
+   */
+  private static String superblank(int size) {
+    StringBuilder sb = new StringBuilder(size + 2);
+    sb.append('[');
+    while (sb.length() < size) {
+      sb.append(sb.length() % 1000 == 0 ? "\\]" : "x");
+    }
+    return sb.append(']').toString();
+  }
+
+  @Test
+  public void testWordsAndBlanks() throws IOException {
+    TransferTokenReader reader = new TransferTokenReader(new StringReader("^a<n>$ [<b>]^b\\$<vblex>$ \\^"), false);
+    assertToken(TransferTokenType.tt_blank, "", reader.readToken(false));
+    assertToken(TransferTokenType.tt_word, "a<n>", reader.readToken(false));
+    assertToken(TransferTokenType.tt_blank, " [<b>]", reader.readToken(false));
+    assertToken(TransferTokenType.tt_word, "b\\$<vblex>", reader.readToken(false));
+    assertToken(TransferTokenType.tt_eof, " \\^", reader.readToken(false));
+  }
+
+  @Test
+  public void testChunks() throws IOException {
+    TransferTokenReader reader = new TransferTokenReader(new StringReader("^det_nom<SN>{^el<det>$ ^gat<n>$}$ "), true);
+    assertToken(TransferTokenType.tt_blank, "", reader.readToken(false));
+    assertToken(TransferTokenType.tt_word, "det_nom<SN>{^el<det>$ ^gat<n>$}", reader.readToken(false));
+    assertToken(TransferTokenType.tt_eof, " ", reader.readToken(false));
+  }
+
+  @Test
+  public void testNullFlush() throws IOException {
+    StringReader in = new StringReader("^a<n>$ \0^b<n>$");
+    TransferTokenReader reader = new TransferTokenReader(in, false);
+    reader.readToken(true);
+    assertToken(TransferTokenType.tt_word, "a<n>", reader.readToken(true));
+    assertToken(TransferTokenType.tt_eof, " ", reader.readToken(true));
+    assertEquals('^', in.read()); // Nothing after the '\0' was read
+  }
+
+  @Test
+  public void testMegabyteSuperblank() throws IOException {
+    String blank = superblank(8 * MEGABYTE);
+    TransferTokenReader reader = new TransferTokenReader(new StringReader(blank + "^a<n>$" + blank), false);
+    long start = System.nanoTime();
+    assertToken(TransferTokenType.tt_blank, blank, reader.readToken(false));
+    assertToken(TransferTokenType.tt_word, "a<n>", reader.readToken(false));
+    assertToken(TransferTokenType.tt_eof, blank, reader.readToken(false));
+    long time = (System.nanoTime() - start) / 1000000;
+    // Reading a character at a time into an ever growing string took minutes
+    assertTrue("Reading 16 MB of superblanks took " + time + " ms", time < 5000);
+  }
+
+  @Test
+  public void testMegabyteChunk() throws IOException {
+    String blank = superblank(4 * MEGABYTE);
+    String chunk = "sn<SN>{^el<det>$" + blank + "^gat<n>$}";
+    TransferTokenReader reader = new TransferTokenReader(new StringReader("^" + chunk + "$"), true);
+    assertToken(TransferTokenType.tt_blank, "", reader.readToken(false));
+    assertToken(TransferTokenType.tt_word, chunk, reader.readToken(false));
+    assertToken(TransferTokenType.tt_eof, "", reader.readToken(false));
+  }
+
+  @Test
+  public void testUnterminatedSuperblank() throws IOException {
+    String blank = superblank(MEGABYTE);
+    String unterminated = blank.substring(0, blank.length() - 1);
+    TransferTokenReader reader = new TransferTokenReader(new StringReader(unterminated), false);
+    assertToken(TransferTokenType.tt_eof, unterminated, reader.readToken(false));
+  }
+}